@@ -0,0 +1,160 @@
+package org.iceparticles;
+
+import org.iceparticles.sim.BakedParticles;
+import org.iceparticles.sim.DepthSorter;
+import org.iceparticles.sim.ParticleFrame;
+import org.iceparticles.sim.ParticleMeshBuilder;
+
+import com.jme3.material.Material;
+import com.jme3.math.Quaternion;
+import com.jme3.math.Vector3f;
+import com.jme3.renderer.Camera;
+import com.jme3.renderer.RenderManager;
+import com.jme3.renderer.ViewPort;
+import com.jme3.renderer.queue.RenderQueue;
+import com.jme3.scene.Geometry;
+import com.jme3.scene.Node;
+import com.jme3.scene.Spatial;
+import com.jme3.scene.control.AbstractControl;
+
+/**
+ * Plays back a script baked by {@link org.iceparticles.sim.ParticleBaker},
+ * rendering its particles as a single geometry attached to the controlled
+ * node. Nothing is simulated, each frame is decoded straight from the mapped
+ * file into the mesh, so the cost is only that of building the mesh. Playback
+ * loops by default.
+ * <p>
+ * Particles were recorded relative to the origin, so always move with the
+ * node.
+ * <p>
+ * The viewer itself does not play bakes back, this is for applications that
+ * load the <code>.bake</code> files the editor writes.
+ */
+public class BakedParticleControl extends AbstractControl {
+
+	private final BakedParticles baked;
+	private final ParticleFrame frame = new ParticleFrame();
+	private final ParticleMeshBuilder builder = new ParticleMeshBuilder();
+	private final DepthSorter sorter = new DepthSorter();
+	private final Geometry geometry;
+	private final Camera camera;
+	private float time;
+	private float timeScale = 1;
+	private boolean loop = true;
+	private int current = -1;
+	private final Vector3f tmpVec = new Vector3f();
+	private final Quaternion tmpRot = new Quaternion();
+
+	public BakedParticleControl(BakedParticles baked, Material material, Camera camera) {
+		this.baked = baked;
+		this.camera = camera;
+		geometry = new Geometry("Baked-Particles", builder.getMesh());
+		geometry.setMaterial(material);
+		geometry.setQueueBucket(RenderQueue.Bucket.Transparent);
+	}
+
+	public BakedParticles getBaked() {
+		return baked;
+	}
+
+	public float getTime() {
+		return time;
+	}
+
+	/**
+	 * Jump to a time in the recording.
+	 *
+	 * @param time time
+	 */
+	public void setTime(float time) {
+		this.time = Math.max(0, time);
+	}
+
+	public float getTimeScale() {
+		return timeScale;
+	}
+
+	public void setTimeScale(float timeScale) {
+		this.timeScale = timeScale;
+	}
+
+	public boolean isLoop() {
+		return loop;
+	}
+
+	/**
+	 * Set whether playback starts again at the end, otherwise the last frame
+	 * is held.
+	 *
+	 * @param loop loop
+	 */
+	public void setLoop(boolean loop) {
+		this.loop = loop;
+	}
+
+	public void setMaterial(Material material) {
+		geometry.setMaterial(material);
+	}
+
+	/**
+	 * Get the number of particles in the current frame.
+	 *
+	 * @return alive
+	 */
+	public int getAliveCount() {
+		return frame.getCount();
+	}
+
+	@Override
+	public void setSpatial(Spatial spatial) {
+		if (this.spatial != null && spatial == null) {
+			geometry.removeFromParent();
+		}
+		super.setSpatial(spatial);
+		if (spatial instanceof Node) {
+			((Node) spatial).attachChild(geometry);
+		}
+	}
+
+	@Override
+	protected void controlUpdate(float tpf) {
+		int frames = baked.getFrameCount();
+		if (frames == 0) {
+			return;
+		}
+		time += tpf * timeScale;
+		int index = (int) (time / baked.getStep());
+		if (index >= frames) {
+			if (loop) {
+				time %= baked.getDuration();
+				index %= frames;
+			} else {
+				index = frames - 1;
+			}
+		}
+		if (index != current) {
+			baked.read(index, frame);
+			current = index;
+		}
+
+		// Billboards face the camera, so the mesh is built every frame
+		Vector3f left = camera.getLeft();
+		Vector3f up = camera.getUp();
+		builder.begin();
+		if (baked.isSorted()) {
+			spatial.worldToLocal(camera.getLocation(), tmpVec);
+			float cx = tmpVec.x, cy = tmpVec.y, cz = tmpVec.z;
+			tmpRot.set(spatial.getWorldRotation()).inverseLocal().mult(camera.getDirection(), tmpVec);
+			sorter.sort(frame, cx, cy, cz, tmpVec.x, tmpVec.y, tmpVec.z);
+			builder.add(frame, sorter.getOrder(), sorter.getCount(), -left.x, -left.y, -left.z, up.x, up.y, up.z);
+		} else {
+			builder.add(frame, -left.x, -left.y, -left.z, up.x, up.y, up.z);
+		}
+		builder.end();
+		geometry.updateModelBound();
+	}
+
+	@Override
+	protected void controlRender(RenderManager rm, ViewPort vp) {
+	}
+}
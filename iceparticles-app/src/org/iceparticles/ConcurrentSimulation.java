@@ -0,0 +1,74 @@
+package org.iceparticles;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Steps a number of {@link KernelScriptControl}s at the same time on a pool of
+ * worker threads. Simulation is started with {@link #begin(float)} at the
+ * start of the frame, and all results are published to the scene graph by the
+ * first of the controls to be updated (the single sync point), so the
+ * simulation overlaps with any other work done on the render thread before the
+ * scene graph is updated.
+ */
+public class ConcurrentSimulation {
+
+	private final ForkJoinPool pool;
+	private final List<KernelScriptControl> controls = new ArrayList<KernelScriptControl>();
+	private final List<KernelScriptControl> scheduled = new ArrayList<KernelScriptControl>();
+
+	public ConcurrentSimulation(ForkJoinPool pool) {
+		this.pool = pool;
+	}
+
+	public ForkJoinPool getPool() {
+		return pool;
+	}
+
+	public void add(KernelScriptControl control) {
+		controls.add(control);
+		control.setConcurrentSimulation(this);
+	}
+
+	public void remove(KernelScriptControl control) {
+		sync();
+		controls.remove(control);
+		control.setConcurrentSimulation(null);
+	}
+
+	/**
+	 * Start simulating every enabled control that is due an update. Must be called on the render
+	 * thread.
+	 *
+	 * @param tpf time per frame
+	 */
+	public void begin(float tpf) {
+		sync();
+		for (int i = 0; i < controls.size(); i++) {
+			KernelScriptControl control = controls.get(i);
+			if (control.isEnabled() && control.getSpatial() != null && !control.isAsync()) {
+				if (control.isDue(tpf)) {
+					pool.execute(control.prepare());
+					scheduled.add(control);
+				} else {
+					control.skip();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Wait for all scheduled controls to finish simulating, and publish their
+	 * results. Must be called on the render thread.
+	 */
+	public void sync() {
+		if (scheduled.isEmpty()) {
+			return;
+		}
+		for (int i = 0; i < scheduled.size(); i++) {
+			scheduled.get(i).publish();
+		}
+		scheduled.clear();
+	}
+}
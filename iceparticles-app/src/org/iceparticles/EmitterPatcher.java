@@ -0,0 +1,114 @@
+package org.iceparticles;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.jme3.math.ColorRGBA;
+import com.jme3.math.Vector3f;
+
+import emitter.Emitter;
+import emitter.Interpolation;
+import emitter.influencers.AlphaInfluencer;
+import emitter.influencers.ColorInfluencer;
+import emitter.influencers.GravityInfluencer;
+import emitter.influencers.ImpulseInfluencer;
+import emitter.influencers.ParticleInfluencer;
+import emitter.influencers.RotationInfluencer;
+import emitter.influencers.SizeInfluencer;
+
+/**
+ * Applies changed emitter or affector parameters to a live emitter, keeping
+ * its particles and its influencers. The emitter runtime has no notion of the
+ * OGRE definition an emitter was created from, so the definition is turned
+ * into a fresh (uninitialised) emitter, which is only read from. Its settings,
+ * and the parameters of each of its influencers, are copied onto the live
+ * emitter and the live emitter's own influencers.
+ * <p>
+ * The rates, life and force of the emitter are copied, as are the parameters
+ * of the gravity, colour, alpha, size, rotation and impulse influencers. If the
+ * influencers differ in type or number, or any is of another type, nothing is
+ * changed and the emitter must be recreated instead.
+ */
+class EmitterPatcher {
+
+	private EmitterPatcher() {
+	}
+
+	/**
+	 * Copy the settings of an emitter to a live emitter.
+	 *
+	 * @param live live emitter
+	 * @param fresh emitter created from the changed definition
+	 * @return <code>false</code> if the emitter could not be patched
+	 */
+	static boolean patch(Emitter live, Emitter fresh) {
+		List<ParticleInfluencer> to = new ArrayList<ParticleInfluencer>(live.getInfluencers());
+		List<ParticleInfluencer> from = new ArrayList<ParticleInfluencer>(fresh.getInfluencers());
+		if (to.size() != from.size()) {
+			return false;
+		}
+		for (int i = 0; i < to.size(); i++) {
+			if (to.get(i).getClass() != from.get(i).getClass() || !isPatchable(to.get(i))) {
+				return false;
+			}
+		}
+
+		live.setEmissionsPerSecond(fresh.getEmissionsPerSecond());
+		live.setParticlesPerEmission(fresh.getParticlesPerEmission());
+		live.setLifeMinMax(fresh.getLifeMin(), fresh.getLifeMax());
+		live.setForceMinMax(fresh.getForceMin(), fresh.getForceMax());
+		for (int i = 0; i < to.size(); i++) {
+			patch(to.get(i), from.get(i));
+		}
+		return true;
+	}
+
+	private static boolean isPatchable(ParticleInfluencer influencer) {
+		return influencer instanceof GravityInfluencer || influencer instanceof ColorInfluencer
+				|| influencer instanceof AlphaInfluencer || influencer instanceof SizeInfluencer
+				|| influencer instanceof RotationInfluencer || influencer instanceof ImpulseInfluencer;
+	}
+
+	private static void patch(ParticleInfluencer live, ParticleInfluencer fresh) {
+		if (live instanceof GravityInfluencer) {
+			((GravityInfluencer) live).setGravity(((GravityInfluencer) fresh).getGravity().clone());
+		} else if (live instanceof ColorInfluencer) {
+			ColorInfluencer l = (ColorInfluencer) live, f = (ColorInfluencer) fresh;
+			ColorRGBA[] colours = f.getColors();
+			Interpolation[] interpolations = f.getInterpolations();
+			l.removeAll();
+			for (int i = 0; i < colours.length; i++) {
+				l.addColor(colours[i].clone(), interpolations[i]);
+			}
+		} else if (live instanceof AlphaInfluencer) {
+			AlphaInfluencer l = (AlphaInfluencer) live, f = (AlphaInfluencer) fresh;
+			float[] alphas = f.getAlphas();
+			Interpolation[] interpolations = f.getInterpolations();
+			l.removeAll();
+			for (int i = 0; i < alphas.length; i++) {
+				l.addAlpha(alphas[i], interpolations[i]);
+			}
+		} else if (live instanceof SizeInfluencer) {
+			SizeInfluencer l = (SizeInfluencer) live, f = (SizeInfluencer) fresh;
+			Vector3f[] sizes = f.getSizes();
+			Interpolation[] interpolations = f.getInterpolations();
+			l.removeAll();
+			for (int i = 0; i < sizes.length; i++) {
+				l.addSize(sizes[i].clone(), interpolations[i]);
+			}
+		} else if (live instanceof RotationInfluencer) {
+			RotationInfluencer l = (RotationInfluencer) live, f = (RotationInfluencer) fresh;
+			Vector3f[] speeds = f.getRotations();
+			Interpolation[] interpolations = f.getInterpolations();
+			l.removeAll();
+			for (int i = 0; i < speeds.length; i++) {
+				l.addRotationSpeed(speeds[i].clone(), interpolations[i]);
+			}
+		} else if (live instanceof ImpulseInfluencer) {
+			ImpulseInfluencer l = (ImpulseInfluencer) live, f = (ImpulseInfluencer) fresh;
+			l.setChance(f.getChance());
+			l.setStrength(f.getStrength());
+			l.setMagnitude(f.getMagnitude());
+		}
+	}
+}
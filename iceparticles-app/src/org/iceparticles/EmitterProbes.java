@@ -0,0 +1,174 @@
+package org.iceparticles;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.iceparticles.sim.AllocationMeter;
+import org.iceparticles.sim.ScriptStats;
+
+import com.jme3.renderer.RenderManager;
+import com.jme3.renderer.ViewPort;
+import com.jme3.scene.Node;
+import com.jme3.scene.control.AbstractControl;
+
+import emitter.Emitter;
+
+/**
+ * Times the emitters of a script run by the emitter runtime. The emitters are
+ * controls of the script's node, and controls are updated in the order they
+ * were added, so a probe control is added before each emitter and another
+ * after the last. The time between one probe and the next is that of the
+ * emitter following the first. When tracking allocations, the bytes allocated
+ * between the first probe and the last are those of the emitters.
+ * <p>
+ * When the emitters are stepped at a fixed step, the node is updated once for
+ * each step, and the probes only count while stepping (see {@link #begin()}).
+ * The steps of a frame are recorded as one update, as they are for kernels.
+ */
+class EmitterProbes {
+
+	private final Node node;
+	private final ScriptStats stats;
+	private final List<Probe> probes = new ArrayList<Probe>();
+	private final Probe end = new Probe(-1);
+	private long started;
+	private long last;
+	private long allocated;
+	private boolean tracking;
+	private int current = -1;
+	private boolean stepped;
+	private boolean stepping;
+	private long steps;
+
+	EmitterProbes(Node node, ScriptStats stats) {
+		this.node = node;
+		this.stats = stats;
+	}
+
+	/**
+	 * Add an emitter to the node, after the emitters already added.
+	 *
+	 * @param emitter emitter
+	 */
+	void add(Emitter emitter) {
+		node.removeControl(end);
+		Probe probe = new Probe(probes.size());
+		probes.add(probe);
+		node.addControl(probe);
+		node.addControl(emitter);
+		node.addControl(end);
+	}
+
+	/**
+	 * Replace an emitter. The new emitter is moved to the end, along with its
+	 * probe.
+	 *
+	 * @param index index
+	 * @param old old emitter
+	 * @param emitter new emitter
+	 */
+	void replace(int index, Emitter old, Emitter emitter) {
+		Probe probe = probes.get(index);
+		node.removeControl(old);
+		node.removeControl(probe);
+		node.removeControl(end);
+		node.addControl(probe);
+		node.addControl(emitter);
+		node.addControl(end);
+	}
+
+	/**
+	 * Set whether the emitters are stepped at a fixed step, between
+	 * {@link #begin()} and {@link #end()}, rather than updated by the scene
+	 * graph once a frame. Any other update of the node is not counted.
+	 *
+	 * @param stepped stepped
+	 */
+	void setStepped(boolean stepped) {
+		this.stepped = stepped;
+	}
+
+	/**
+	 * Start the steps of a frame.
+	 */
+	void begin() {
+		stepping = true;
+		steps = 0;
+		tracking = stats.isTrackingAllocations();
+		if (tracking) {
+			allocated = AllocationMeter.getAllocatedBytes();
+		}
+	}
+
+	/**
+	 * Record the steps of a frame as one update.
+	 */
+	void end() {
+		stepping = false;
+		stats.recordUpdate(steps);
+		if (tracking) {
+			stats.addAllocated(AllocationMeter.since(allocated));
+		}
+	}
+
+	/**
+	 * Set the number of particles alive in all the emitters.
+	 *
+	 * @param emitters emitters
+	 */
+	void count(List<Emitter> emitters) {
+		int alive = 0;
+		for (Emitter e : emitters) {
+			alive += e.getActiveParticleCount();
+		}
+		stats.setAlive(alive);
+	}
+
+	private void mark(int index) {
+		if (stepped && !stepping) {
+			return;
+		}
+		long now = System.nanoTime();
+		ScriptStats.Timer[] timers = stats.getEmitters();
+		if (current == -1) {
+			started = now;
+			if (!stepping) {
+				tracking = stats.isTrackingAllocations();
+				if (tracking) {
+					allocated = AllocationMeter.getAllocatedBytes();
+				}
+			}
+		} else if (current < timers.length) {
+			timers[current].add(now - last);
+		}
+		if (index == -1 && current != -1) {
+			if (stepping) {
+				steps += now - started;
+			} else {
+				stats.recordUpdate(now - started);
+				if (tracking) {
+					stats.addAllocated(AllocationMeter.since(allocated));
+				}
+			}
+		}
+		current = index;
+		last = now;
+	}
+
+	class Probe extends AbstractControl {
+		private final int index;
+
+		Probe(int index) {
+			this.index = index;
+		}
+
+		@Override
+		protected void controlUpdate(float tpf) {
+			mark(index);
+		}
+
+		@Override
+		protected void controlRender(RenderManager rm, ViewPort vp) {
+		}
+	}
+}
@@ -0,0 +1,667 @@
+package org.iceparticles;
+
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ScheduledExecutorService;
+
+import org.iceparticles.sim.AllocationMeter;
+import org.iceparticles.sim.AsyncSimulation;
+import org.iceparticles.sim.DepthSorter;
+import org.iceparticles.sim.FixedTimestep;
+import org.iceparticles.sim.ParticleFrame;
+import org.iceparticles.sim.ParticleMeshBuilder;
+import org.iceparticles.sim.ParticleStore;
+import org.iceparticles.sim.ScriptSimulation;
+import org.iceparticles.sim.ScriptStats;
+import org.iceparticles.sim.SpatialGrid;
+import org.icescene.ogreparticle.OGREParticleScript;
+
+import com.jme3.material.Material;
+import com.jme3.math.Plane;
+import com.jme3.math.Quaternion;
+import com.jme3.math.Vector3f;
+import com.jme3.renderer.Camera;
+import com.jme3.renderer.RenderManager;
+import com.jme3.renderer.ViewPort;
+import com.jme3.renderer.queue.RenderQueue;
+import com.jme3.scene.Geometry;
+import com.jme3.scene.Node;
+import com.jme3.scene.Spatial;
+import com.jme3.scene.control.AbstractControl;
+
+/**
+ * Drives a {@link ScriptSimulation} from the scene graph, and renders its
+ * particles as a single geometry attached to the controlled node.
+ * <p>
+ * When added to a {@link ConcurrentSimulation}, the simulation and mesh
+ * building happen on a worker thread, and only the publishing of the result
+ * (bounds) happens on the render thread. Alternatively, when asynchronous, the
+ * simulation runs continuously on its own thread and the render thread only
+ * builds the mesh from the latest completed step.
+ * <p>
+ * When batched (see {@link MaterialBatchControl}), no geometry is attached, and
+ * the particles of the last update are instead added to the batch of the
+ * script's material.
+ */
+public class KernelScriptControl extends AbstractControl {
+
+	/**
+	 * Default size of the cells particles of cull_each scripts are culled by.
+	 */
+	public final static float DEFAULT_CELL_SIZE = 10f;
+
+	private enum State {
+		IDLE, RUNNING, PUBLISHED, SKIPPED
+	}
+
+	private final ScriptSimulation simulation;
+	private final ScriptStats stats;
+	private final ParticleMeshBuilder builder = new ParticleMeshBuilder();
+	private final DepthSorter sorter = new DepthSorter();
+	private SpatialGrid grid = new SpatialGrid(DEFAULT_CELL_SIZE);
+	private final Geometry geometry;
+	private final Camera camera;
+	private float timeScale = 1;
+	private ConcurrentSimulation concurrentSimulation;
+	private AsyncSimulation async;
+	private State state = State.IDLE;
+	private float pendingTpf;
+	private int interval = 1;
+	private float emissionScale = 1;
+	private float quotaScale = 1;
+	private int frames;
+	private float elapsed;
+	private float prewarm;
+	private FixedTimestep timestep;
+	private int maxSteps = FixedTimestep.DEFAULT_MAX_STEPS;
+	private float alpha = 1;
+	private float rx, ry, rz, ux, uy, uz;
+	private float cx, cy, cz, dx, dy, dz;
+	private final float[] planes = new float[6 * 4];
+	private int alive;
+	private boolean batched;
+	private ParticleStore lastStore;
+	private ParticleFrame lastFrame;
+	private int[] lastOrder;
+	private int lastCount;
+	private final Vector3f tmpVec = new Vector3f();
+	private final Quaternion tmpRot = new Quaternion();
+
+	@SuppressWarnings("serial")
+	private final RecursiveAction task = new RecursiveAction() {
+		@Override
+		protected void compute() {
+			simulate(pendingTpf);
+		}
+	};
+
+	public KernelScriptControl(ScriptSimulation simulation, Material material, Camera camera) {
+		this.simulation = simulation;
+		this.camera = camera;
+		stats = new ScriptStats(simulation.getScript().getName());
+		simulation.setStats(stats);
+		geometry = new Geometry(simulation.getScript().getName() + "-Particles", builder.getMesh());
+		geometry.setMaterial(material);
+		geometry.setQueueBucket(RenderQueue.Bucket.Transparent);
+		setLocalSpace(simulation.getScript().isLocalSpace());
+	}
+
+	public ScriptSimulation getSimulation() {
+		return simulation;
+	}
+
+	/**
+	 * Get the timings and counters of the script. The update timer includes
+	 * sorting, culling and building the mesh as well as the simulation.
+	 *
+	 * @return stats
+	 */
+	public ScriptStats getStats() {
+		return stats;
+	}
+
+	public ParticleMeshBuilder getBuilder() {
+		return builder;
+	}
+
+	/**
+	 * Get the sorter used when the script is sorted.
+	 *
+	 * @return sorter
+	 */
+	public DepthSorter getSorter() {
+		return sorter;
+	}
+
+	/**
+	 * Get the grid used to cull particles when the script is cull_each.
+	 *
+	 * @return grid
+	 */
+	public SpatialGrid getGrid() {
+		return grid;
+	}
+
+	/**
+	 * Set the size of the cells of the grid used to cull particles when the
+	 * script is cull_each.
+	 *
+	 * @param cellSize cell size
+	 */
+	public void setCellSize(float cellSize) {
+		if (cellSize != grid.getCellSize()) {
+			if (concurrentSimulation != null) {
+				concurrentSimulation.sync();
+			}
+			grid = new SpatialGrid(cellSize);
+		}
+	}
+
+	/**
+	 * Get the number of live particles at the last build.
+	 *
+	 * @return alive
+	 */
+	public int getAliveCount() {
+		return alive;
+	}
+
+	/**
+	 * Get the number of particles written to the mesh at the last build. For
+	 * cull_each scripts, this is only those in visible cells.
+	 *
+	 * @return written
+	 */
+	public int getWrittenCount() {
+		if (batched) {
+			return lastOrder == null ? alive : lastCount;
+		}
+		return builder.getQuads();
+	}
+
+	public boolean isBatched() {
+		return batched;
+	}
+
+	/**
+	 * Set whether the particles are added to a batch rather than rendered by
+	 * the geometry of this control.
+	 *
+	 * @param batched batched
+	 */
+	public void setBatched(boolean batched) {
+		if (batched != this.batched) {
+			this.batched = batched;
+			if (batched) {
+				geometry.removeFromParent();
+			} else if (spatial instanceof Node) {
+				((Node) spatial).attachChild(geometry);
+			}
+		}
+	}
+
+	public void setMaterial(Material material) {
+		geometry.setMaterial(material);
+	}
+
+	public float getTimeScale() {
+		return timeScale;
+	}
+
+	public void setTimeScale(float timeScale) {
+		this.timeScale = timeScale;
+		if (async != null) {
+			async.setTimeScale(timeScale);
+		}
+	}
+
+	public int getInterval() {
+		return interval;
+	}
+
+	/**
+	 * Set the level of detail to simulate at. The emission rate is scaled, and
+	 * the simulation only stepped every <code>interval</code> frames (by the
+	 * time elapsed over all of them).
+	 *
+	 * @param rate emission rate scale
+	 * @param interval frames between updates
+	 */
+	public void setLod(float rate, int interval) {
+		this.interval = Math.max(1, interval);
+		this.emissionScale = rate;
+		if (timestep != null) {
+			timestep.setMaxSteps(maxSteps * this.interval);
+		}
+		applyScales();
+	}
+
+	/**
+	 * Get the fixed step the simulation is advanced by.
+	 *
+	 * @return step or zero if advanced by the time of each frame
+	 */
+	public float getFixedStep() {
+		return timestep == null ? 0 : timestep.getStep();
+	}
+
+	/**
+	 * Advance the simulation in fixed steps rather than by the time of each
+	 * frame, so its cost does not depend on the frame rate and a slow frame
+	 * does not cause one large step. Particles are rendered interpolated
+	 * between the last two steps. When asynchronous, the simulation is already
+	 * stepped at a fixed rate, and this has no effect.
+	 *
+	 * @param step fixed step, or zero to step by the time of each frame
+	 * @param maxSteps most steps taken in one update, any further time is
+	 *            dropped
+	 */
+	public void setFixedStep(float step, int maxSteps) {
+		if (concurrentSimulation != null) {
+			concurrentSimulation.sync();
+		}
+		this.maxSteps = maxSteps;
+		if (step <= 0) {
+			timestep = null;
+		} else if (timestep == null || timestep.getStep() != step) {
+			timestep = new FixedTimestep(step);
+		}
+		if (timestep != null) {
+			timestep.setMaxSteps(maxSteps * interval);
+		}
+		alpha = 1;
+		simulation.setInterpolated(timestep != null);
+	}
+
+	public float getQuotaScale() {
+		return quotaScale;
+	}
+
+	/**
+	 * Scale the quota of the script, e.g. for level of detail or to keep within
+	 * a particle budget.
+	 *
+	 * @param quotaScale quota scale
+	 */
+	public void setQuotaScale(float quotaScale) {
+		this.quotaScale = quotaScale;
+		applyScales();
+	}
+
+	/**
+	 * Fast forward the simulation before it is next stepped. This happens
+	 * wherever the simulation is stepped, i.e. on a worker thread when
+	 * concurrent or asynchronous.
+	 *
+	 * @param seconds time to simulate
+	 */
+	public void prewarm(float seconds) {
+		if (async != null) {
+			async.prewarm(seconds);
+		} else {
+			prewarm = seconds;
+		}
+	}
+
+	public boolean isAsync() {
+		return async != null;
+	}
+
+	/**
+	 * Get the step the simulation is run at when asynchronous.
+	 *
+	 * @return step or zero if not asynchronous
+	 */
+	public float getAsyncStep() {
+		return async == null ? 0 : async.getStep();
+	}
+
+	/**
+	 * Start simulating on a thread of the given executor rather than during
+	 * the update.
+	 *
+	 * @param executor executor
+	 * @param step fixed simulation step
+	 */
+	public void startAsync(ScheduledExecutorService executor, float step) {
+		if (async == null) {
+			if (concurrentSimulation != null) {
+				concurrentSimulation.sync();
+			}
+			async = new AsyncSimulation(simulation);
+			async.setTimeScale(timeScale);
+			async.setScales(emissionScale, quotaScale);
+			if (prewarm > 0) {
+				async.prewarm(prewarm);
+				prewarm = 0;
+			}
+			updateOrigin();
+			async.start(executor, step);
+		}
+	}
+
+	/**
+	 * Stop simulating asynchronously, and go back to simulating during the
+	 * update.
+	 */
+	public void stopAsync() {
+		if (async != null) {
+			async.stop();
+			async = null;
+		}
+	}
+
+	public ConcurrentSimulation getConcurrentSimulation() {
+		return concurrentSimulation;
+	}
+
+	void setConcurrentSimulation(ConcurrentSimulation concurrentSimulation) {
+		this.concurrentSimulation = concurrentSimulation;
+		state = State.IDLE;
+	}
+
+	/**
+	 * Recompile the simulation after the script has been edited. Particles
+	 * already alive are kept.
+	 */
+	public void compile() {
+		if (async != null) {
+			async.compile();
+		} else {
+			if (concurrentSimulation != null) {
+				concurrentSimulation.sync();
+			}
+			simulation.compile();
+		}
+		setLocalSpace(simulation.getScript().isLocalSpace());
+	}
+
+	@Override
+	public void setSpatial(Spatial spatial) {
+		if (this.spatial != null && spatial == null) {
+			geometry.removeFromParent();
+		}
+		super.setSpatial(spatial);
+		if (spatial instanceof Node && !batched) {
+			((Node) spatial).attachChild(geometry);
+		}
+	}
+
+	@Override
+	protected void controlUpdate(float tpf) {
+		if (async != null) {
+			updateOrigin();
+			if (!isDue(tpf)) {
+				return;
+			}
+			elapsed = 0;
+			boolean tracking = stats.isTrackingAllocations();
+			long allocated = tracking ? AllocationMeter.getAllocatedBytes() : 0;
+			long started = System.nanoTime();
+			captureCamera();
+			ParticleFrame frame = async.acquire();
+			OGREParticleScript script = simulation.getScript();
+			int[] order = null;
+			int count = 0;
+			if (script.isSorted()) {
+				sorter.sort(frame, cx, cy, cz, dx, dy, dz);
+				order = sorter.getOrder();
+				count = sorter.getCount();
+			}
+			if (script.isCullEach()) {
+				grid.update(frame);
+				count = cull(order, count);
+				order = grid.getVisible();
+			}
+			alive = frame.getCount();
+			build(null, frame, order, count);
+			if (!batched) {
+				geometry.updateModelBound();
+			}
+			stats.recordUpdate(System.nanoTime() - started);
+			if (tracking) {
+				stats.addAllocated(AllocationMeter.since(allocated));
+			}
+			return;
+		}
+		switch (state) {
+		case RUNNING:
+			concurrentSimulation.sync();
+			state = State.IDLE;
+			break;
+		case PUBLISHED:
+		case SKIPPED:
+			state = State.IDLE;
+			break;
+		default:
+			if (isDue(tpf)) {
+				prepare();
+				simulate(pendingTpf);
+				if (!batched) {
+					geometry.updateModelBound();
+				}
+			}
+			state = State.IDLE;
+			break;
+		}
+	}
+
+	@Override
+	protected void controlRender(RenderManager rm, ViewPort vp) {
+	}
+
+	/**
+	 * Count a frame towards the next update, and get if the update is due.
+	 *
+	 * @param tpf time per frame
+	 * @return due
+	 */
+	boolean isDue(float tpf) {
+		elapsed += tpf;
+		if (++frames < interval) {
+			return false;
+		}
+		frames = 0;
+		return true;
+	}
+
+	/**
+	 * Skip this frame, the last result remains visible.
+	 */
+	void skip() {
+		state = State.SKIPPED;
+	}
+
+	/**
+	 * Capture everything the simulation needs from the scene graph, so that it
+	 * may then be run off the render thread. All the time elapsed since the
+	 * last update is simulated.
+	 *
+	 * @return task that runs the simulation
+	 */
+	RecursiveAction prepare() {
+		if (!simulation.getScript().isLocalSpace()) {
+			Vector3f w = spatial.getWorldTranslation();
+			simulation.setOrigin(w.x, w.y, w.z);
+		}
+		captureCamera();
+		pendingTpf = elapsed * timeScale;
+		elapsed = 0;
+		task.reinitialize();
+		state = State.RUNNING;
+		return task;
+	}
+
+	/**
+	 * Wait for the simulation to finish, and make its result visible to the
+	 * scene graph. Must be called on the render thread.
+	 */
+	void publish() {
+		task.join();
+		// Built during the update so the bounds are correct before culling
+		if (!batched) {
+			geometry.updateModelBound();
+		}
+		state = State.PUBLISHED;
+	}
+
+	protected void simulate(float tpf) {
+		// Measured on whichever thread simulates, i.e. a worker when concurrent
+		boolean tracking = stats.isTrackingAllocations();
+		long allocated = tracking ? AllocationMeter.getAllocatedBytes() : 0;
+		long started = System.nanoTime();
+		if (prewarm > 0) {
+			simulation.prewarm(prewarm, ScriptSimulation.PREWARM_STEP);
+			prewarm = 0;
+		}
+		if (timestep == null) {
+			simulation.step(tpf);
+		} else {
+			simulation.advance(timestep, tpf);
+			alpha = timestep.getAlpha();
+		}
+		ParticleStore store = simulation.getStore();
+		OGREParticleScript script = simulation.getScript();
+		int[] order = null;
+		int count = 0;
+		if (script.isSorted()) {
+			sorter.sort(store, cx, cy, cz, dx, dy, dz);
+			order = sorter.getOrder();
+			count = sorter.getCount();
+		}
+		if (script.isCullEach()) {
+			grid.update(store);
+			count = cull(order, count);
+			order = grid.getVisible();
+		}
+		alive = store.getActiveCount();
+		build(store, null, order, count);
+		stats.recordUpdate(System.nanoTime() - started);
+		if (tracking) {
+			stats.addAllocated(AllocationMeter.since(allocated));
+		}
+	}
+
+	/**
+	 * Append the particles of the last update to a builder, e.g. that of a
+	 * batch.
+	 *
+	 * @param b builder
+	 */
+	public void addTo(ParticleMeshBuilder b) {
+		if (lastFrame != null) {
+			if (lastOrder == null) {
+				b.add(lastFrame, rx, ry, rz, ux, uy, uz);
+			} else {
+				b.add(lastFrame, lastOrder, lastCount, rx, ry, rz, ux, uy, uz);
+			}
+		} else if (lastStore != null) {
+			b.setInterpolation(alpha);
+			if (lastOrder == null) {
+				b.add(lastStore, rx, ry, rz, ux, uy, uz);
+			} else {
+				b.add(lastStore, lastOrder, lastCount, rx, ry, rz, ux, uy, uz);
+			}
+		}
+	}
+
+	private void build(ParticleStore store, ParticleFrame frame, int[] order, int count) {
+		lastStore = store;
+		lastFrame = frame;
+		lastOrder = order;
+		lastCount = count;
+		if (!batched) {
+			builder.begin();
+			addTo(builder);
+			builder.end();
+		}
+		stats.setAlive(alive);
+		stats.addVertexBytes(getWrittenCount() * ParticleMeshBuilder.BYTES_PER_PARTICLE);
+	}
+
+	private int cull(int[] sorted, int count) {
+		int visible = grid.cull(planes, 6);
+		return sorted == null ? visible : grid.filter(sorted, count);
+	}
+
+	private void captureCamera() {
+		Vector3f left = camera.getLeft();
+		Vector3f up = camera.getUp();
+		rx = -left.x;
+		ry = -left.y;
+		rz = -left.z;
+		ux = up.x;
+		uy = up.y;
+		uz = up.z;
+
+		// Sort in the space the particles are in
+		Vector3f dir = camera.getDirection();
+		if (simulation.getScript().isLocalSpace()) {
+			spatial.worldToLocal(camera.getLocation(), tmpVec);
+			cx = tmpVec.x;
+			cy = tmpVec.y;
+			cz = tmpVec.z;
+			tmpRot.set(spatial.getWorldRotation()).inverseLocal().mult(dir, tmpVec);
+			dx = tmpVec.x;
+			dy = tmpVec.y;
+			dz = tmpVec.z;
+		} else {
+			Vector3f loc = camera.getLocation();
+			cx = loc.x;
+			cy = loc.y;
+			cz = loc.z;
+			dx = dir.x;
+			dy = dir.y;
+			dz = dir.z;
+		}
+
+		// Frustum planes, also in the space the particles are in
+		if (simulation.getScript().isCullEach()) {
+			for (int i = 0; i < 6; i++) {
+				Plane plane = camera.getWorldPlane(i);
+				Vector3f n = plane.getNormal();
+				int k = i * 4;
+				if (simulation.getScript().isLocalSpace()) {
+					// n . (R s p + t) - c = (s R' n) . p - (c - n . t)
+					Vector3f t = spatial.getWorldTranslation();
+					tmpRot.set(spatial.getWorldRotation()).inverseLocal().mult(n, tmpVec)
+							.multLocal(spatial.getWorldScale().x);
+					planes[k] = tmpVec.x;
+					planes[k + 1] = tmpVec.y;
+					planes[k + 2] = tmpVec.z;
+					planes[k + 3] = plane.getConstant() - n.dot(t);
+				} else {
+					planes[k] = n.x;
+					planes[k + 1] = n.y;
+					planes[k + 2] = n.z;
+					planes[k + 3] = plane.getConstant();
+				}
+			}
+		}
+	}
+
+	private void applyScales() {
+		if (async != null) {
+			async.setScales(emissionScale, quotaScale);
+		} else {
+			if (concurrentSimulation != null) {
+				concurrentSimulation.sync();
+			}
+			simulation.setEmissionScale(emissionScale);
+			if (quotaScale != simulation.getQuotaScale()) {
+				simulation.setQuotaScale(quotaScale);
+			}
+		}
+	}
+
+	private void updateOrigin() {
+		if (async != null && spatial != null && !simulation.getScript().isLocalSpace()) {
+			Vector3f w = spatial.getWorldTranslation();
+			async.setOrigin(w.x, w.y, w.z);
+		}
+	}
+
+	private void setLocalSpace(boolean localSpace) {
+		// World space particles are already in world coordinates
+		geometry.setIgnoreTransform(!localSpace);
+	}
+}
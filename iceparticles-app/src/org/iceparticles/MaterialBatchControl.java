@@ -0,0 +1,124 @@
+package org.iceparticles;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.iceparticles.sim.ParticleBatches;
+import org.iceparticles.sim.ParticleMeshBuilder;
+import org.icescene.ogreparticle.OGREParticleScript;
+
+import com.jme3.renderer.RenderManager;
+import com.jme3.renderer.ViewPort;
+import com.jme3.renderer.queue.RenderQueue;
+import com.jme3.scene.Geometry;
+import com.jme3.scene.Node;
+import com.jme3.scene.Spatial;
+import com.jme3.scene.control.AbstractControl;
+
+/**
+ * Merges the particles of all {@link KernelScriptControl}s that share a
+ * material into one mesh per material, so the number of draw calls depends
+ * on the number of materials rather than the number of scripts.
+ * <p>
+ * The controlled node must be updated after the nodes of all the scripts, i.e.
+ * be the last child of their parent, so that every script has been simulated
+ * before the batches are built. Particles are batched in world space, in the
+ * order scripts were added.
+ */
+public class MaterialBatchControl extends AbstractControl {
+
+	private final ParticleBatches<String> batches = new ParticleBatches<String>();
+	private final Map<String, Geometry> geometries = new HashMap<String, Geometry>();
+	private final List<KernelScriptControl> controls = new ArrayList<KernelScriptControl>();
+	private final ParticleMaterials materials;
+
+	public MaterialBatchControl(ParticleMaterials materials) {
+		this.materials = materials;
+	}
+
+	public ParticleBatches<String> getBatches() {
+		return batches;
+	}
+
+	public void add(KernelScriptControl control) {
+		if (!controls.contains(control)) {
+			controls.add(control);
+			control.setBatched(true);
+		}
+	}
+
+	public void remove(KernelScriptControl control) {
+		if (controls.remove(control)) {
+			control.setBatched(false);
+		}
+	}
+
+	/**
+	 * Stop batching all controls, returning them to rendering their own
+	 * geometry.
+	 */
+	public void clear() {
+		for (KernelScriptControl control : controls) {
+			control.setBatched(false);
+		}
+		controls.clear();
+	}
+
+	@Override
+	public void setSpatial(Spatial spatial) {
+		if (this.spatial != null && spatial == null) {
+			for (Geometry geometry : geometries.values()) {
+				geometry.removeFromParent();
+			}
+		}
+		super.setSpatial(spatial);
+		if (spatial instanceof Node) {
+			for (Geometry geometry : geometries.values()) {
+				((Node) spatial).attachChild(geometry);
+			}
+		}
+	}
+
+	@Override
+	protected void controlUpdate(float tpf) {
+		batches.begin();
+		for (int i = 0; i < controls.size(); i++) {
+			KernelScriptControl control = controls.get(i);
+			Spatial s = control.getSpatial();
+			if (!control.isEnabled() || s == null) {
+				continue;
+			}
+			OGREParticleScript script = control.getSimulation().getScript();
+			ParticleMeshBuilder builder = batches.add(String.valueOf(script.getMaterialName()));
+			builder.setTransform(script.isLocalSpace() ? s.getWorldTransform() : null);
+			control.addTo(builder);
+		}
+		batches.end();
+
+		for (int i = 0; i < batches.size(); i++) {
+			ParticleBatches.Batch<String> batch = batches.get(i);
+			Geometry geometry = geometries.get(batch.getKey());
+			if (geometry == null) {
+				geometry = new Geometry("ParticleBatch-" + batch.getKey(), batch.getBuilder().getMesh());
+				geometry.setMaterial(materials.get(batch.getKey()));
+				geometry.setQueueBucket(RenderQueue.Bucket.Transparent);
+				// Particles are already in world coordinates
+				geometry.setIgnoreTransform(true);
+				geometries.put(batch.getKey(), geometry);
+				((Node) spatial).attachChild(geometry);
+			}
+			if (batch.getBuilder().getQuads() == 0) {
+				geometry.setCullHint(Spatial.CullHint.Always);
+			} else {
+				geometry.setCullHint(Spatial.CullHint.Inherit);
+				geometry.updateModelBound();
+			}
+		}
+	}
+
+	@Override
+	protected void controlRender(RenderManager rm, ViewPort vp) {
+	}
+}
@@ -0,0 +1,197 @@
+package org.iceparticles;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Caps the total number of live particles across all active scripts. Each
+ * script requests its (level of detail scaled) quota, and while the total
+ * requested is over budget, the budget is shared out in proportion to the
+ * priority of each script divided by its distance from the camera. Scripts
+ * whose share is more than they asked for give the excess back to the rest.
+ */
+public class ParticleBudget {
+
+	private final static Logger LOG = Logger.getLogger(ParticleBudget.class.getName());
+
+	/**
+	 * The distance within which scripts are not weighted down by distance.
+	 */
+	public final static float NEAR_DISTANCE = 1f;
+
+	public static class Allocation {
+		private final String name;
+		private int priority = ScriptSettings.DEFAULT_PRIORITY;
+		private float distance;
+		private int requested;
+		private int allocated;
+		private boolean throttled;
+		private float need;
+
+		Allocation(String name) {
+			this.name = name;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public int getPriority() {
+			return priority;
+		}
+
+		public float getDistance() {
+			return distance;
+		}
+
+		/**
+		 * Get the number of particles the script asked for.
+		 *
+		 * @return requested
+		 */
+		public int getRequested() {
+			return requested;
+		}
+
+		/**
+		 * Get the number of particles the script may have.
+		 *
+		 * @return allocated
+		 */
+		public int getAllocated() {
+			return allocated;
+		}
+
+		public boolean isThrottled() {
+			return allocated < requested;
+		}
+
+		void request(int priority, float distance, int requested) {
+			this.priority = Math.max(1, priority);
+			this.distance = distance;
+			this.requested = Math.max(0, requested);
+		}
+
+		float getWeight() {
+			return priority / Math.max(NEAR_DISTANCE, distance);
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%s %d/%d (priority %d, distance %.1f)", name, allocated, requested, priority,
+					distance);
+		}
+	}
+
+	private final static Comparator<Allocation> BY_NEED = new Comparator<Allocation>() {
+		@Override
+		public int compare(Allocation o1, Allocation o2) {
+			return Float.compare(o1.need, o2.need);
+		}
+	};
+
+	private final List<Allocation> allocations = new ArrayList<Allocation>();
+	private Allocation[] sorted = new Allocation[0];
+	private int budget;
+	private int totalRequested;
+	private int totalAllocated;
+
+	/**
+	 * Get the maximum total number of live particles.
+	 *
+	 * @return budget, zero for no limit
+	 */
+	public int getBudget() {
+		return budget;
+	}
+
+	public void setBudget(int budget) {
+		this.budget = Math.max(0, budget);
+	}
+
+	public Allocation add(String name) {
+		Allocation a = new Allocation(name);
+		allocations.add(a);
+		return a;
+	}
+
+	public void remove(Allocation allocation) {
+		allocations.remove(allocation);
+	}
+
+	/**
+	 * Get the allocations as of the last {@link #allocate()}.
+	 *
+	 * @return allocations
+	 */
+	public List<Allocation> getAllocations() {
+		return Collections.unmodifiableList(allocations);
+	}
+
+	public int getTotalRequested() {
+		return totalRequested;
+	}
+
+	public int getTotalAllocated() {
+		return totalAllocated;
+	}
+
+	/**
+	 * Share the budget between the current requests.
+	 */
+	public void allocate() {
+		final int n = allocations.size();
+		totalRequested = 0;
+		for (int i = 0; i < n; i++) {
+			totalRequested += allocations.get(i).requested;
+		}
+
+		if (budget == 0 || totalRequested <= budget) {
+			for (int i = 0; i < n; i++) {
+				Allocation a = allocations.get(i);
+				a.allocated = a.requested;
+			}
+		} else {
+			/*
+			 * Water filling. In order of how much of the budget each needs
+			 * relative to its weight, scripts take the lesser of what they
+			 * asked for and their weighted share of what remains.
+			 */
+			if (sorted.length < n) {
+				sorted = new Allocation[n];
+			}
+			float totalWeight = 0;
+			for (int i = 0; i < n; i++) {
+				Allocation a = allocations.get(i);
+				a.need = a.requested / a.getWeight();
+				totalWeight += a.getWeight();
+				sorted[i] = a;
+			}
+			Arrays.sort(sorted, 0, n, BY_NEED);
+			int remaining = budget;
+			for (int i = 0; i < n; i++) {
+				Allocation a = sorted[i];
+				float w = a.getWeight();
+				int share = totalWeight > 0 ? (int) (remaining * (w / totalWeight)) : 0;
+				a.allocated = Math.min(a.requested, share);
+				remaining -= a.allocated;
+				totalWeight -= w;
+				sorted[i] = null;
+			}
+		}
+
+		totalAllocated = 0;
+		for (int i = 0; i < n; i++) {
+			Allocation a = allocations.get(i);
+			totalAllocated += a.allocated;
+			if (a.throttled != a.isThrottled()) {
+				a.throttled = a.isThrottled();
+				LOG.info(a.throttled ? String.format("Throttling %s", a) : String.format("No longer throttling %s", a));
+			}
+		}
+	}
+}
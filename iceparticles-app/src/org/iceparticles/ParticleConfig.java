@@ -2,6 +2,8 @@ package org.iceparticles;
 
 import java.util.prefs.Preferences;
 
+import org.iceparticles.sim.FixedTimestep;
+import org.iceparticles.sim.ParticleBaker;
 import org.icelib.AbstractConfig;
 import org.icescene.SceneConfig;
 
@@ -27,6 +29,63 @@ public class ParticleConfig extends SceneConfig {
     // Debug particles
     public final static String PARTICLES_TIME_SCALE= PARTICLES_EDITOR + "TimeScale";
     public final static float PARTICLES_TIME_SCALE_DEFAULT = 1f;
+    // Simulate using kernels over particle arrays rather than the emitter runtime
+    public final static String PARTICLES_KERNELS = PARTICLES_EDITOR + "Kernels";
+    public final static boolean PARTICLES_KERNELS_DEFAULT = false;
+    // Apply affectors to chunks of particles in parallel (kernels only)
+    public final static String PARTICLES_PARALLEL = PARTICLES_EDITOR + "Parallel";
+    public final static boolean PARTICLES_PARALLEL_DEFAULT = false;
+    // Number of live particles a script must have before affectors are applied in parallel
+    public final static String PARTICLES_PARALLEL_THRESHOLD = PARTICLES_EDITOR + "ParallelThreshold";
+    public final static int PARTICLES_PARALLEL_THRESHOLD_DEFAULT = 10000;
+    // Apply the whole affector chain in a single pass over the particles (kernels only)
+    public final static String PARTICLES_FUSED = PARTICLES_EDITOR + "Fused";
+    public final static boolean PARTICLES_FUSED_DEFAULT = false;
+    // Generate a class for each script's affector chain with its parameters inlined (kernels only)
+    public final static String PARTICLES_GENERATED = PARTICLES_EDITOR + "Generated";
+    public final static boolean PARTICLES_GENERATED_DEFAULT = false;
+    // Compact dead particles away as they die, so loops only visit live particles (kernels only)
+    public final static String PARTICLES_COMPACT = PARTICLES_EDITOR + "Compact";
+    public final static boolean PARTICLES_COMPACT_DEFAULT = false;
+    // Simulate scripts concurrently on worker threads (kernels only)
+    public final static String PARTICLES_CONCURRENT = PARTICLES_EDITOR + "Concurrent";
+    public final static boolean PARTICLES_CONCURRENT_DEFAULT = false;
+    // Simulate scripts continuously on their own threads, decoupled from the frame rate (kernels only)
+    public final static String PARTICLES_ASYNC = PARTICLES_EDITOR + "Async";
+    public final static boolean PARTICLES_ASYNC_DEFAULT = false;
+    // Distance particles of sorted scripts may be out of order before they are sorted again (kernels only)
+    public final static String PARTICLES_SORT_THRESHOLD = PARTICLES_EDITOR + "SortThreshold";
+    public final static float PARTICLES_SORT_THRESHOLD_DEFAULT = 0.01f;
+    // Size of the grid cells particles of cull_each scripts are culled by (kernels only)
+    public final static String PARTICLES_CULL_CELL_SIZE = PARTICLES_EDITOR + "CullCellSize";
+    public final static float PARTICLES_CULL_CELL_SIZE_DEFAULT = KernelScriptControl.DEFAULT_CELL_SIZE;
+    // Merge the particles of all scripts sharing a material into one mesh (kernels only)
+    public final static String PARTICLES_BATCH = PARTICLES_EDITOR + "Batch";
+    public final static boolean PARTICLES_BATCH_DEFAULT = false;
+    // Maximum total live particles across all scripts, shared by priority and distance (zero for no limit)
+    public final static String PARTICLES_BUDGET = PARTICLES_EDITOR + "Budget";
+    public final static int PARTICLES_BUDGET_DEFAULT = 0;
+    // Simulate in fixed steps rather than by the time of each frame, interpolating kernel particles between steps
+    public final static String PARTICLES_FIXED_STEP = PARTICLES_EDITOR + "FixedStep";
+    public final static boolean PARTICLES_FIXED_STEP_DEFAULT = false;
+    // Fixed steps per second
+    public final static String PARTICLES_STEP_RATE = PARTICLES_EDITOR + "StepRate";
+    public final static int PARTICLES_STEP_RATE_DEFAULT = 60;
+    // Most fixed steps simulated in one frame, any more time is dropped
+    public final static String PARTICLES_MAX_STEPS = PARTICLES_EDITOR + "MaxSteps";
+    public final static int PARTICLES_MAX_STEPS_DEFAULT = FixedTimestep.DEFAULT_MAX_STEPS;
+    // Measure the bytes allocated updating each script (diagnostic, has a small cost)
+    public final static String PARTICLES_TRACK_ALLOCATIONS = PARTICLES_EDITOR + "TrackAllocations";
+    public final static boolean PARTICLES_TRACK_ALLOCATIONS_DEFAULT = false;
+    // Throttle or suspend scripts outside the view, as set for each script
+    public final static String PARTICLES_OFFSCREEN = PARTICLES_EDITOR + "Offscreen";
+    public final static boolean PARTICLES_OFFSCREEN_DEFAULT = false;
+    // Seconds recorded when baking scripts for playback
+    public final static String PARTICLES_BAKE_SECONDS = PARTICLES_EDITOR + "BakeSeconds";
+    public final static float PARTICLES_BAKE_SECONDS_DEFAULT = 10f;
+    // Frames per second recorded when baking
+    public final static String PARTICLES_BAKE_RATE = PARTICLES_EDITOR + "BakeRate";
+    public final static int PARTICLES_BAKE_RATE_DEFAULT = Math.round(1f / ParticleBaker.DEFAULT_STEP);
     
     public static Object getDefaultValue(String key) {
         return AbstractConfig.getDefaultValue(ParticleConfig.class, key);
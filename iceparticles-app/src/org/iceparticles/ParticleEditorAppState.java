@@ -6,12 +6,17 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.Callable;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.prefs.Preferences;
 
 import org.icelib.Icelib;
+import org.iceparticles.sim.HeadlessSimulation;
+import org.iceparticles.sim.ParticleBaker;
+import org.iceparticles.sim.ScriptSimulation;
 import org.icescene.IcemoonAppState;
 import org.icescene.IcesceneApp;
 import org.icescene.ogreparticle.OGREParticleConfiguration;
@@ -55,8 +60,10 @@ public class ParticleEditorAppState extends IcemoonAppState<IcemoonAppState<?>>
 	private OGREParticleConfiguration particleConfiguration;
 	private final UndoManager undoManager;
 	private boolean needsSave;
+	private boolean baking;
 	private UndoManager.ListenerAdapter listener;
 	private PushButton saveEnv;
+	private PushButton bake;
 	private PushButton copy;
 	private PushButton paste;
 	private PushButton delete;
@@ -91,6 +98,9 @@ public class ParticleEditorAppState extends IcemoonAppState<IcemoonAppState<?>>
 	@Override
 	protected void onCleanup() {
 		undoManager.removeListener(listener);
+		if (particleEditorPanel != null) {
+			particleEditorPanel.stopStats();
+		}
 		super.onCleanup();
 		setConfiguration(null);
 		if (particleEditWindow.isVisible()) {
@@ -220,7 +230,7 @@ public class ParticleEditorAppState extends IcemoonAppState<IcemoonAppState<?>>
 
 	protected BaseElement createButtons() {
 		BaseElement bottom = new BaseElement(screen);
-		bottom.setLayoutManager(new MigLayout(screen, "", "push[][][][]push", "[]"));
+		bottom.setLayoutManager(new MigLayout(screen, "", "push[][][][][]push", "[]"));
 
 		// Save
 		saveEnv = new PushButton(screen) {
@@ -233,6 +243,17 @@ public class ParticleEditorAppState extends IcemoonAppState<IcemoonAppState<?>>
 		saveEnv.setText("Save");
 		bottom.addElement(saveEnv);
 
+		// Bake
+		bake = new PushButton(screen) {
+			{
+				setStyleClass("fancy");
+			}
+		};
+		bake.onMouseReleased(evt -> bake());
+		bake.setToolTipText("Record every script in the file so it may be played back without simulating.");
+		bake.setText("Bake");
+		bottom.addElement(bake);
+
 		// Copy
 		copy = new PushButton(screen) {
 			{
@@ -302,6 +323,74 @@ public class ParticleEditorAppState extends IcemoonAppState<IcemoonAppState<?>>
 		delete.setEnabled(external);
 		paste.setEnabled(external);
 		saveEnv.setEnabled(needsSave);
+		bake.setEnabled(particleConfiguration != null && !baking);
+	}
+
+	/**
+	 * Bake every script of the configuration into the particles folder, each
+	 * with its own seed and prewarm time. The scripts are compiled here, but
+	 * simulated and written in the background, and the bake button is
+	 * disabled until they are done.
+	 */
+	protected void bake() {
+		final File dir = getParticlesFolder();
+		final float seconds = prefs.getFloat(ParticleConfig.PARTICLES_BAKE_SECONDS,
+				ParticleConfig.PARTICLES_BAKE_SECONDS_DEFAULT);
+		float step = 1f / Math.max(1, prefs.getInt(ParticleConfig.PARTICLES_BAKE_RATE,
+				ParticleConfig.PARTICLES_BAKE_RATE_DEFAULT));
+		final String name = particleConfiguration.getConfigurationName();
+		final Map<File, ParticleBaker> bakers = new LinkedHashMap<File, ParticleBaker>();
+		for (OGREParticleScript script : particleConfiguration.getBackingObject().values()) {
+			ScriptSettings settings = ParticleSettings.get(assetManager, script);
+			ParticleBaker baker = new ParticleBaker(new ScriptSimulation(script, settings.getEffectiveSeed()));
+			baker.setStep(step);
+			baker.setPrewarm(settings.getPrewarm());
+			bakers.put(new File(dir, HeadlessSimulation.getBakeName(particleConfiguration, script)), baker);
+		}
+
+		baking = true;
+		setAvailable();
+		info(String.format("Baking %d script(s) of %s", bakers.size(), name));
+		((IcesceneApp) app).getWorldLoaderExecutorService().execute(new Runnable() {
+
+			@Override
+			public String toString() {
+				return "Baking " + name;
+			}
+
+			@Override
+			public void run() {
+				IOException failure = null;
+				try {
+					if (!dir.exists() && !dir.mkdirs()) {
+						throw new IOException(String.format("Could not create %s", dir));
+					}
+					for (Map.Entry<File, ParticleBaker> en : bakers.entrySet()) {
+						LOG.info(String.format("Baking %s to %s", en.getValue().getSimulation().getScript().getName(),
+								en.getKey()));
+						en.getValue().bake(en.getKey(), seconds);
+					}
+				} catch (IOException e) {
+					LOG.log(Level.SEVERE, "Failed to bake particle configuration.", e);
+					failure = e;
+				}
+				final IOException failed = failure;
+				app.enqueue(new Callable<Void>() {
+					@Override
+					public Void call() throws Exception {
+						baking = false;
+						setAvailable();
+						if (failed == null) {
+							((ServerAssetManager) app.getAssetManager()).index();
+							info(String.format("Baked %d script(s) of %s", bakers.size(), name));
+						} else {
+							error(String.format("Failed to bake %s", name), failed);
+						}
+						return null;
+					}
+				});
+			}
+		});
 	}
 
 	protected void deleteScriptFile() {
@@ -355,6 +444,7 @@ public class ParticleEditorAppState extends IcemoonAppState<IcemoonAppState<?>>
 		FileOutputStream fos = new FileOutputStream(file);
 		try {
 			particleConfiguration.write(fos, false);
+			ParticleSettings.get(assetManager, particleConfiguration).save(file);
 		} finally {
 			((ServerAssetManager) app.getAssetManager()).index();
 			fos.close();
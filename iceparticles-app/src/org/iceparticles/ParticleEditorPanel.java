@@ -2,13 +2,18 @@ package org.iceparticles;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Callable;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.prefs.Preferences;
 
+import org.iceparticles.sim.ScriptStats;
 import org.icescene.HUDMessageAppState;
 import org.icescene.IcesceneApp;
 import org.icescene.ogreparticle.OGREParticleConfiguration;
@@ -51,6 +56,11 @@ public class ParticleEditorPanel extends StyledContainer {
 
 	private static final Logger LOG = Logger.getLogger(ParticleEditorPanel.class.getName());
 
+	/**
+	 * Seconds between updates of the stats table.
+	 */
+	private final static float STATS_INTERVAL = 1f;
+
 	public enum ScriptsRightClickMenuAction {
 
 		DELETE, COPY, PASTE
@@ -70,6 +80,8 @@ public class ParticleEditorPanel extends StyledContainer {
 	private final PushButton newScript;
 	private final PushButton deleteScript;
 	private PushButton stopScripts;
+	private final StatsTable stats;
+	private Alarm.AlarmTask statsTask;
 
 	class ScriptTable extends Table {
 
@@ -112,6 +124,46 @@ public class ParticleEditorPanel extends StyledContainer {
 
 	}
 
+	/**
+	 * The timings and counters of the active scripts, and of each of their
+	 * emitters and affectors, most expensive first.
+	 */
+	class StatsTable extends Table {
+
+		public StatsTable(BaseScreen screen) {
+			super(screen);
+
+			setColumnResizeMode(Table.ColumnResizeMode.AUTO_FIRST);
+			setSortable(true);
+			addColumn("Script");
+			addColumn("ms");
+			addColumn("Alive");
+			addColumn("Live %");
+			addColumn("Emit/s");
+			addColumn("Kill/s");
+			addColumn("KB/s");
+			addColumn("B/frame");
+			addColumn("B/particle");
+			setToolTipText("Average milliseconds per frame spent updating each active script, "
+					+ "emitter and affector, along with the particles alive, the percentage of "
+					+ "slots iterated that were live, the particles emitted and "
+					+ "killed per second, the kilobytes of vertex data uploaded per second and, "
+					+ "when tracking allocations, the bytes allocated per frame and per particle.");
+		}
+	}
+
+	static class StatsEntry {
+		private final String name;
+		private final float millis;
+		private final ScriptStats script;
+
+		StatsEntry(String name, float millis, ScriptStats script) {
+			this.name = name;
+			this.millis = millis;
+			this.script = script;
+		}
+	}
+
 	public ParticleEditorPanel(ParticleViewerAppState particleViewer, UndoManager undoManager, BaseScreen screen,
 			Preferences prefs, OGREParticleConfiguration configuration) {
 		super(screen);
@@ -206,7 +258,14 @@ public class ParticleEditorPanel extends StyledContainer {
 		top.addElement(deleteScript);
 
 		top.setMinDimensions(Size.ZERO);
-		top.addElement(scripts, "span 5, growx");
+
+		// Stats, next to the scripts
+		stats = new StatsTable(screen);
+		SplitPanel tables = new SplitPanel(screen, Orientation.HORIZONTAL);
+		tables.setLeftOrTop(scripts);
+		tables.setRightOrBottom(stats);
+		tables.setDefaultDividerLocationRatio(0.5f);
+		top.addElement(tables, "span 5, growx, growy");
 
 		// Split
 		split = new SplitPanel(screen, Orientation.VERTICAL);
@@ -215,6 +274,88 @@ public class ParticleEditorPanel extends StyledContainer {
 		split.setDefaultDividerLocationRatio(0.3f);
 
 		addElement(split);
+
+		if (this.particleViewer != null) {
+			scheduleStats();
+		}
+	}
+
+	/**
+	 * Stop updating the stats table.
+	 */
+	public void stopStats() {
+		if (statsTask != null) {
+			statsTask.cancel();
+			statsTask = null;
+		}
+	}
+
+	protected void updateStats() {
+		List<StatsEntry> entries = new ArrayList<StatsEntry>();
+		for (ScriptStats s : particleViewer.getStats()) {
+			entries.add(new StatsEntry(s.getName(), s.getUpdate().getMillis(), s));
+			for (ScriptStats.Timer t : s.getEmitters()) {
+				entries.add(new StatsEntry(s.getName() + " / " + t.getName(), t.getMillis(), null));
+			}
+			for (ScriptStats.Timer t : s.getAffectors()) {
+				entries.add(new StatsEntry(s.getName() + " / " + t.getName(), t.getMillis(), null));
+			}
+		}
+		// Most expensive first
+		Collections.sort(entries, new Comparator<StatsEntry>() {
+			@Override
+			public int compare(StatsEntry o1, StatsEntry o2) {
+				return Float.compare(o2.millis, o1.millis);
+			}
+		});
+
+		stats.invalidate();
+		stats.removeAllRows();
+		for (StatsEntry e : entries) {
+			TableRow r = new TableRow(screen, stats, e);
+			r.addCell(e.name, e.name);
+			r.addCell(String.format("%.3f", e.millis), e.millis);
+			ScriptStats s = e.script;
+			if (s == null) {
+				for (int i = 0; i < 7; i++) {
+					r.addCell("", -1f);
+				}
+			} else {
+				r.addCell(String.valueOf(s.getAlive()), s.getAlive());
+				if (s.isCounting()) {
+					r.addCell(String.format("%.0f", s.getLiveRatio() * 100), s.getLiveRatio());
+					r.addCell(String.format("%.0f", s.getEmittedPerSecond()), s.getEmittedPerSecond());
+					r.addCell(String.format("%.0f", s.getKilledPerSecond()), s.getKilledPerSecond());
+					r.addCell(String.format("%.1f", s.getVertexBytesPerSecond() / 1024f), s.getVertexBytesPerSecond());
+				} else {
+					// Not reported by the emitter runtime
+					for (int i = 0; i < 4; i++) {
+						r.addCell("-", -1f);
+					}
+				}
+				if (s.isTrackingAllocations()) {
+					r.addCell(String.format("%.0f", s.getAllocatedPerFrame()), s.getAllocatedPerFrame());
+					r.addCell(String.format("%.2f", s.getAllocatedPerParticle()), s.getAllocatedPerParticle());
+				} else {
+					r.addCell("-", -1f);
+					r.addCell("-", -1f);
+				}
+			}
+			stats.addRow(r);
+		}
+		stats.validate();
+	}
+
+	private void scheduleStats() {
+		statsTask = ((IcesceneApp) ToolKit.get().getApplication()).getAlarm().timed(new Callable<Void>() {
+			public Void call() throws Exception {
+				if (statsTask != null) {
+					updateStats();
+					scheduleStats();
+				}
+				return null;
+			}
+		}, STATS_INTERVAL);
 	}
 
 	public void setConfiguration(OGREParticleConfiguration configuration) {
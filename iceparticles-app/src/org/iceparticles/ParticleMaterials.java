@@ -0,0 +1,73 @@
+package org.iceparticles;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.icescene.assets.ExtendedMaterialListKey;
+
+import com.jme3.asset.AssetManager;
+import com.jme3.material.Material;
+import com.jme3.material.MaterialList;
+import com.jme3.material.RenderState.BlendMode;
+
+import icemoon.iceloader.ServerAssetManager;
+
+/**
+ * Resolves the material names used by particle scripts to materials suitable
+ * for particles rendered from kernel simulations (i.e. with vertex colours).
+ */
+public class ParticleMaterials {
+
+	private final static Logger LOG = Logger.getLogger(ParticleMaterials.class.getName());
+
+	private final AssetManager assetManager;
+	private final Map<String, Material> materials = new HashMap<String, Material>();
+	private Map<String, MaterialList> lists;
+
+	public ParticleMaterials(AssetManager assetManager) {
+		this.assetManager = assetManager;
+	}
+
+	public Material get(String name) {
+		Material mat = materials.get(name);
+		if (mat == null) {
+			mat = load(name);
+			materials.put(name, mat);
+		}
+		return mat;
+	}
+
+	private Material load(String name) {
+		if (lists == null) {
+			lists = new HashMap<String, MaterialList>();
+			if (assetManager instanceof ServerAssetManager) {
+				for (String path : ((ServerAssetManager) assetManager).getAssetNamesMatching("Effects/.*\\.material")) {
+					try {
+						MaterialList ml = assetManager.loadAsset(new ExtendedMaterialListKey(path));
+						for (String key : ml.keySet()) {
+							lists.put(key, ml);
+						}
+					} catch (Exception e) {
+						LOG.log(Level.WARNING, String.format("Failed to load material list %s", path), e);
+					}
+				}
+			}
+		}
+		MaterialList ml = name == null ? null : lists.get(name);
+		Material mat;
+		if (ml == null) {
+			LOG.warning(String.format("No material %s, using default", name));
+			mat = new Material(assetManager, "Common/MatDefs/Misc/Unshaded.j3md");
+			mat.getAdditionalRenderState().setBlendMode(BlendMode.AlphaAdditive);
+		} else {
+			mat = ml.get(name).clone();
+		}
+		if (mat.getMaterialDef().getMaterialParam("VertexColor") != null) {
+			mat.setBoolean("VertexColor", true);
+		}
+		mat.getAdditionalRenderState().setDepthWrite(false);
+		return mat;
+	}
+}
@@ -0,0 +1,247 @@
+package org.iceparticles;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.prefs.Preferences;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Exposes the particle runtime for monitoring over JMX, along with a
+ * {@link ScriptMonitor} for each active script. Settings are changed through
+ * the same preferences the editor uses, so they are applied on the scene
+ * thread.
+ */
+public class ParticleRuntime implements ParticleRuntimeMBean {
+
+	private final static Logger LOG = Logger.getLogger(ParticleRuntime.class.getName());
+
+	public final static String DOMAIN = "org.iceparticles";
+
+	private final Preferences prefs;
+	private final ParticleBudget budget;
+	private final Map<String, ScriptMonitor> scripts = new ConcurrentHashMap<String, ScriptMonitor>();
+	private MBeanServer server;
+
+	public ParticleRuntime(Preferences prefs, ParticleBudget budget) {
+		this.prefs = prefs;
+		this.budget = budget;
+	}
+
+	public static ObjectName getObjectName() throws JMException {
+		return new ObjectName(DOMAIN + ":type=ParticleRuntime");
+	}
+
+	public static ObjectName getObjectName(String key) throws JMException {
+		return new ObjectName(DOMAIN + ":type=Script,name=" + ObjectName.quote(key));
+	}
+
+	/**
+	 * Register this and the monitors of all active scripts (and any added
+	 * later) with a server.
+	 *
+	 * @param server server
+	 * @throws JMException on error
+	 */
+	public synchronized void register(MBeanServer server) throws JMException {
+		unregister();
+		server.registerMBean(this, getObjectName());
+		this.server = server;
+		for (Map.Entry<String, ScriptMonitor> en : scripts.entrySet()) {
+			registerScript(en.getKey(), en.getValue());
+		}
+	}
+
+	/**
+	 * Unregister this and all the script monitors from the server they were
+	 * registered with.
+	 */
+	public synchronized void unregister() {
+		if (server != null) {
+			for (String key : scripts.keySet()) {
+				unregisterScript(key);
+			}
+			try {
+				server.unregisterMBean(getObjectName());
+			} catch (JMException jme) {
+				LOG.log(Level.WARNING, "Failed to unregister particle runtime.", jme);
+			}
+			server = null;
+		}
+	}
+
+	public synchronized void add(String key, ScriptMonitor monitor) {
+		remove(key);
+		scripts.put(key, monitor);
+		if (server != null) {
+			registerScript(key, monitor);
+		}
+	}
+
+	public synchronized void remove(String key) {
+		if (scripts.containsKey(key)) {
+			if (server != null) {
+				unregisterScript(key);
+			}
+			scripts.remove(key);
+		}
+	}
+
+	@Override
+	public String[] getActiveScripts() {
+		return scripts.keySet().toArray(new String[0]);
+	}
+
+	@Override
+	public int getActiveScriptCount() {
+		return scripts.size();
+	}
+
+	@Override
+	public int getLiveParticles() {
+		int alive = 0;
+		for (ScriptMonitor m : scripts.values()) {
+			alive += m.getAlive();
+		}
+		return alive;
+	}
+
+	@Override
+	public int getPoolSize() {
+		int size = 0;
+		for (ScriptMonitor m : scripts.values()) {
+			size += m.getPoolSize();
+		}
+		return size;
+	}
+
+	@Override
+	public long getMemoryUsage() {
+		long bytes = 0;
+		for (ScriptMonitor m : scripts.values()) {
+			bytes += m.getMemoryUsage();
+		}
+		return bytes;
+	}
+
+	@Override
+	public float getUpdateMillis() {
+		float ms = 0;
+		for (ScriptMonitor m : scripts.values()) {
+			ms += m.getUpdateMillis();
+		}
+		return ms;
+	}
+
+	@Override
+	public int getBudget() {
+		return budget.getBudget();
+	}
+
+	@Override
+	public void setBudget(int budget) {
+		prefs.putInt(ParticleConfig.PARTICLES_BUDGET, Math.max(0, budget));
+	}
+
+	@Override
+	public int getBudgetRequested() {
+		return budget.getTotalRequested();
+	}
+
+	@Override
+	public int getBudgetAllocated() {
+		return budget.getTotalAllocated();
+	}
+
+	@Override
+	public float getTimeScale() {
+		return prefs.getFloat(ParticleConfig.PARTICLES_TIME_SCALE, ParticleConfig.PARTICLES_TIME_SCALE_DEFAULT);
+	}
+
+	@Override
+	public void setTimeScale(float timeScale) {
+		prefs.putFloat(ParticleConfig.PARTICLES_TIME_SCALE, Math.max(0, timeScale));
+	}
+
+	@Override
+	public boolean isDebugEmitter() {
+		return prefs.getBoolean(ParticleConfig.PARTICLES_DEBUG_EMITTER, ParticleConfig.PARTICLES_DEBUG_EMITTER_DEFAULT);
+	}
+
+	@Override
+	public void setDebugEmitter(boolean debugEmitter) {
+		prefs.putBoolean(ParticleConfig.PARTICLES_DEBUG_EMITTER, debugEmitter);
+	}
+
+	@Override
+	public boolean isDebugParticles() {
+		return prefs.getBoolean(ParticleConfig.PARTICLES_DEBUG_PARTICLES,
+				ParticleConfig.PARTICLES_DEBUG_PARTICLES_DEFAULT);
+	}
+
+	@Override
+	public void setDebugParticles(boolean debugParticles) {
+		prefs.putBoolean(ParticleConfig.PARTICLES_DEBUG_PARTICLES, debugParticles);
+	}
+
+	@Override
+	public boolean isKernels() {
+		return prefs.getBoolean(ParticleConfig.PARTICLES_KERNELS, ParticleConfig.PARTICLES_KERNELS_DEFAULT);
+	}
+
+	@Override
+	public void setKernels(boolean kernels) {
+		prefs.putBoolean(ParticleConfig.PARTICLES_KERNELS, kernels);
+	}
+
+	@Override
+	public boolean isFixedStep() {
+		return prefs.getBoolean(ParticleConfig.PARTICLES_FIXED_STEP, ParticleConfig.PARTICLES_FIXED_STEP_DEFAULT);
+	}
+
+	@Override
+	public void setFixedStep(boolean fixedStep) {
+		prefs.putBoolean(ParticleConfig.PARTICLES_FIXED_STEP, fixedStep);
+	}
+
+	@Override
+	public boolean isTrackAllocations() {
+		return prefs.getBoolean(ParticleConfig.PARTICLES_TRACK_ALLOCATIONS,
+				ParticleConfig.PARTICLES_TRACK_ALLOCATIONS_DEFAULT);
+	}
+
+	@Override
+	public void setTrackAllocations(boolean trackAllocations) {
+		prefs.putBoolean(ParticleConfig.PARTICLES_TRACK_ALLOCATIONS, trackAllocations);
+	}
+
+	@Override
+	public boolean isCompact() {
+		return prefs.getBoolean(ParticleConfig.PARTICLES_COMPACT, ParticleConfig.PARTICLES_COMPACT_DEFAULT);
+	}
+
+	@Override
+	public void setCompact(boolean compact) {
+		prefs.putBoolean(ParticleConfig.PARTICLES_COMPACT, compact);
+	}
+
+	private void registerScript(String key, ScriptMonitor monitor) {
+		try {
+			server.registerMBean(monitor, getObjectName(key));
+		} catch (JMException jme) {
+			LOG.log(Level.WARNING, String.format("Failed to register monitor for %s.", key), jme);
+		}
+	}
+
+	private void unregisterScript(String key) {
+		try {
+			server.unregisterMBean(getObjectName(key));
+		} catch (JMException jme) {
+			LOG.log(Level.WARNING, String.format("Failed to unregister monitor for %s.", key), jme);
+		}
+	}
+}
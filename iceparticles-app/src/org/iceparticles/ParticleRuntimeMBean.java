@@ -0,0 +1,87 @@
+package org.iceparticles;
+
+/**
+ * Management interface of the particle runtime (see {@link ParticleRuntime}).
+ */
+public interface ParticleRuntimeMBean {
+
+	String[] getActiveScripts();
+
+	int getActiveScriptCount();
+
+	/**
+	 * Get the total number of live particles across all active scripts.
+	 *
+	 * @return live particles
+	 */
+	int getLiveParticles();
+
+	/**
+	 * Get the total number of particles there is storage for.
+	 *
+	 * @return pool size
+	 */
+	int getPoolSize();
+
+	/**
+	 * Estimate the memory used by the particle storage and mesh buffers of all
+	 * active scripts.
+	 *
+	 * @return bytes
+	 */
+	long getMemoryUsage();
+
+	/**
+	 * Get the total update time per frame of all active scripts over the last
+	 * second.
+	 *
+	 * @return milliseconds
+	 */
+	float getUpdateMillis();
+
+	int getBudget();
+
+	void setBudget(int budget);
+
+	int getBudgetRequested();
+
+	int getBudgetAllocated();
+
+	float getTimeScale();
+
+	void setTimeScale(float timeScale);
+
+	boolean isDebugEmitter();
+
+	void setDebugEmitter(boolean debugEmitter);
+
+	boolean isDebugParticles();
+
+	void setDebugParticles(boolean debugParticles);
+
+	boolean isKernels();
+
+	void setKernels(boolean kernels);
+
+	boolean isFixedStep();
+
+	void setFixedStep(boolean fixedStep);
+
+	boolean isTrackAllocations();
+
+	/**
+	 * Set whether the bytes allocated updating each script are measured.
+	 *
+	 * @param trackAllocations track allocations
+	 */
+	void setTrackAllocations(boolean trackAllocations);
+
+	boolean isCompact();
+
+	/**
+	 * Set whether dead particles are compacted away as they die.
+	 *
+	 * @param compact compact
+	 */
+	void setCompact(boolean compact);
+}
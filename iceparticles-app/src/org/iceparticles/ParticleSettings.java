@@ -0,0 +1,154 @@
+package org.iceparticles;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.WeakHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.icescene.ogreparticle.OGREParticleConfiguration;
+import org.icescene.ogreparticle.OGREParticleScript;
+
+import com.jme3.asset.AssetInfo;
+import com.jme3.asset.AssetKey;
+import com.jme3.asset.AssetManager;
+
+/**
+ * The {@link ScriptSettings} of all the scripts in a particle configuration.
+ * These are stored as properties in a file next to the particle file, with the
+ * same name but the extension {@value #EXTENSION}.
+ */
+public class ParticleSettings {
+
+	private final static Logger LOG = Logger.getLogger(ParticleSettings.class.getName());
+
+	public final static String EXTENSION = ".settings";
+
+	private final static Map<OGREParticleConfiguration, ParticleSettings> cache = new WeakHashMap<OGREParticleConfiguration, ParticleSettings>();
+
+	/**
+	 * Get the settings for a configuration, loading them from the assets the
+	 * first time they are asked for.
+	 *
+	 * @param assetManager asset manager
+	 * @param configuration configuration
+	 * @return settings
+	 */
+	public static synchronized ParticleSettings get(AssetManager assetManager,
+			OGREParticleConfiguration configuration) {
+		ParticleSettings settings = cache.get(configuration);
+		if (settings == null) {
+			settings = new ParticleSettings();
+			String path = getSettingsPath(configuration.getAssetPath());
+			AssetInfo info = path == null ? null : assetManager.locateAsset(new AssetKey<Object>(path));
+			if (info != null) {
+				try {
+					InputStream in = info.openStream();
+					try {
+						settings.load(in);
+					} finally {
+						in.close();
+					}
+				} catch (IOException ioe) {
+					LOG.log(Level.WARNING, String.format("Failed to load particle settings %s", path), ioe);
+				}
+			}
+			cache.put(configuration, settings);
+		}
+		return settings;
+	}
+
+	/**
+	 * Get the settings for a script.
+	 *
+	 * @param assetManager asset manager
+	 * @param script script
+	 * @return settings
+	 */
+	public static ScriptSettings get(AssetManager assetManager, OGREParticleScript script) {
+		return get(assetManager, script.getConfiguration()).getScript(script.getName());
+	}
+
+	/**
+	 * Get the path of the settings file for a particle file.
+	 *
+	 * @param particlePath path of particle file
+	 * @return path of settings file
+	 */
+	public static String getSettingsPath(String particlePath) {
+		if (particlePath == null) {
+			return null;
+		}
+		int idx = particlePath.lastIndexOf('.');
+		return (idx > particlePath.lastIndexOf('/') ? particlePath.substring(0, idx) : particlePath) + EXTENSION;
+	}
+
+	private final Map<String, ScriptSettings> scripts = new TreeMap<String, ScriptSettings>();
+	private Properties properties = new Properties();
+
+	public synchronized ScriptSettings getScript(String name) {
+		ScriptSettings settings = scripts.get(name);
+		if (settings == null) {
+			settings = new ScriptSettings(name);
+			settings.load(properties);
+			scripts.put(name, settings);
+		}
+		return settings;
+	}
+
+	public synchronized boolean isDefault() {
+		return collect().isEmpty();
+	}
+
+	public synchronized void load(InputStream in) throws IOException {
+		properties = new Properties();
+		properties.load(in);
+		scripts.clear();
+	}
+
+	public synchronized void write(OutputStream out) throws IOException {
+		Properties p = collect();
+		p.store(out, "Iceparticles script settings");
+		properties = p;
+	}
+
+	private Properties collect() {
+		Properties p = new Properties();
+		// Keep anything for scripts not looked at
+		p.putAll(properties);
+		for (ScriptSettings s : scripts.values()) {
+			s.store(p);
+		}
+		return p;
+	}
+
+	/**
+	 * Save the settings next to a particle file. If all settings are the
+	 * defaults, any existing settings file is removed instead.
+	 *
+	 * @param particleFile particle file
+	 * @throws IOException on error
+	 */
+	public synchronized void save(File particleFile) throws IOException {
+		File file = new File(particleFile.getParentFile(), getSettingsPath(particleFile.getName()));
+		if (isDefault()) {
+			if (file.exists() && !file.delete()) {
+				throw new IOException(String.format("Failed to delete %s", file));
+			}
+			return;
+		}
+		LOG.info(String.format("Writing particle settings to %s", file));
+		FileOutputStream fos = new FileOutputStream(file);
+		try {
+			write(fos);
+		} finally {
+			fos.close();
+		}
+	}
+}
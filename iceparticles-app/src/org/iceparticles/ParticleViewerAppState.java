@@ -1,17 +1,40 @@
 package org.iceparticles;
 
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.prefs.PreferenceChangeEvent;
 import java.util.prefs.Preferences;
 
+import javax.management.JMException;
+
+import org.iceparticles.sim.AllocationMeter;
+import org.iceparticles.sim.AsyncSimulation;
+import org.iceparticles.sim.FixedTimestep;
+import org.iceparticles.sim.HeadlessSimulation;
+import org.iceparticles.sim.Kernels;
+import org.iceparticles.sim.ScriptSimulation;
+import org.iceparticles.sim.ScriptStats;
 import org.icescene.ogreparticle.OGREParticleEmitter;
 import org.icescene.ogreparticle.OGREParticleScript;
 import org.icescene.ogreparticle.TimedEmitter;
 import org.icescene.scene.AbstractDebugSceneAppState;
 
+import com.jme3.bounding.BoundingSphere;
+import com.jme3.bounding.BoundingVolume;
+import com.jme3.math.Vector3f;
+import com.jme3.renderer.Camera;
 import com.jme3.renderer.queue.RenderQueue;
 import com.jme3.scene.Node;
-import com.jme3.scene.Spatial;
 
 import emitter.Emitter;
 
@@ -19,9 +42,207 @@ public class ParticleViewerAppState extends AbstractDebugSceneAppState {
 
     private final static Logger LOG = Logger.getLogger(ParticleViewerAppState.class.getName());
 
+    /**
+     * Allocations must change by more than one part in this before a script's
+     * quota is changed.
+     */
+    private final static int QUOTA_HYSTERESIS = 8;
+
+    /**
+     * Seconds between samples of the stats of each script.
+     */
+    private final static float STATS_INTERVAL = 1f;
+
+    /**
+     * Throttled off-screen scripts are updated this many times less often.
+     */
+    private final static int THROTTLE_INTERVAL = 8;
+
+    /**
+     * The most seconds a script catches up by when it becomes visible again
+     * after being suspended.
+     */
+    private final static float MAX_CATCH_UP = 5f;
+
+    static class LiveScript {
+        private final OGREParticleScript script;
+        private final String key;
+        private final Node node;
+        private final List<Emitter> emitters = new ArrayList<Emitter>();
+        private final List<Float> emissionRates = new ArrayList<Float>();
+        private KernelScriptControl kernel;
+        private ScriptSnapshot snapshot;
+        private ScriptSettings settings;
+        private ScriptLod.Band band = ScriptLod.Band.FULL;
+        private int frames;
+        private float elapsed;
+        private FixedTimestep timestep;
+        private ScriptStats stats;
+        private EmitterProbes probes;
+        private ParticleBudget.Allocation allocation;
+        private int appliedQuota = -1;
+        private boolean suspended;
+        private float suspendedFor;
+
+        LiveScript(OGREParticleScript script, String key, Node node) {
+            this.script = script;
+            this.key = key;
+            this.node = node;
+        }
+    }
+
+    /**
+     * The active scripts, along with their nodes and emitters. Scripts are
+     * looked up by identity, falling back to their key (configuration and
+     * script name) so that a reloaded copy of a script replaces the original.
+     */
+    static class ScriptRegistry {
+        private final Map<OGREParticleScript, LiveScript> byScript =
+                new IdentityHashMap<OGREParticleScript, LiveScript>();
+        private final Map<String, LiveScript> byKey = new LinkedHashMap<String, LiveScript>();
+
+        LiveScript get(OGREParticleScript script) {
+            LiveScript live = byScript.get(script);
+            return live == null ? byKey.get(getScriptKey(script)) : live;
+        }
+
+        void put(LiveScript live) {
+            LiveScript existing = byKey.put(live.key, live);
+            if (existing != null) {
+                byScript.remove(existing.script);
+            }
+            byScript.put(live.script, live);
+        }
+
+        LiveScript remove(OGREParticleScript script) {
+            LiveScript live = get(script);
+            if (live != null) {
+                byScript.remove(live.script);
+                byKey.remove(live.key);
+            }
+            return live;
+        }
+
+        Collection<LiveScript> values() {
+            return byKey.values();
+        }
+    }
+
+    private final ScriptRegistry liveScripts = new ScriptRegistry();
+    private ParticleMaterials materials;
+    private ConcurrentSimulation concurrentSimulation;
+    private ScheduledExecutorService asyncExecutor;
+    private Node batchNode;
+    private MaterialBatchControl batchControl;
+    private final ParticleBudget budget = new ParticleBudget();
+    private final ParticleRuntime runtime;
+    private float sinceStats;
+    private final BoundingSphere pointBound = new BoundingSphere(0, Vector3f.ZERO);
+
     public ParticleViewerAppState(Preferences prefs, Node parentNode) {
         super(prefs, parentNode);
         addPrefKeyPattern(ParticleConfig.PARTICLES_EDITOR + ".*");
+        configureConcurrent();
+        budget.setBudget(prefs.getInt(ParticleConfig.PARTICLES_BUDGET, ParticleConfig.PARTICLES_BUDGET_DEFAULT));
+        runtime = new ParticleRuntime(prefs, budget);
+    }
+
+    /**
+     * Get the budget shared between all active scripts, including the current
+     * allocation of each.
+     *
+     * @return budget
+     */
+    public ParticleBudget getBudget() {
+        return budget;
+    }
+
+    /**
+     * Get the runtime MBean, registered with the platform MBean server while
+     * this state is attached.
+     *
+     * @return runtime
+     */
+    public ParticleRuntime getRuntime() {
+        return runtime;
+    }
+
+    /**
+     * Get the timings and counters of every active script, as of the last
+     * sample (taken every {@value #STATS_INTERVAL} seconds).
+     *
+     * @return stats of each script
+     */
+    public List<ScriptStats> getStats() {
+        List<ScriptStats> l = new ArrayList<ScriptStats>();
+        for (LiveScript live : liveScripts.values()) {
+            l.add(live.stats);
+        }
+        return l;
+    }
+
+    @Override
+    protected void postInitialize() {
+        super.postInitialize();
+        configureBatching();
+        try {
+            runtime.register(ManagementFactory.getPlatformMBeanServer());
+        } catch (JMException jme) {
+            LOG.log(Level.WARNING, "Failed to register particle runtime MBean.", jme);
+        }
+    }
+
+    @Override
+    public void update(float tpf) {
+        super.update(tpf);
+        Camera cam = app.getCamera();
+        boolean offscreen = prefs.getBoolean(ParticleConfig.PARTICLES_OFFSCREEN,
+                ParticleConfig.PARTICLES_OFFSCREEN_DEFAULT);
+        for (LiveScript live : liveScripts.values()) {
+            live.stats.frame();
+            ScriptSettings.Offscreen policy = ScriptSettings.Offscreen.SIMULATE;
+            if (offscreen && !isVisible(live, cam)) {
+                policy = live.settings.getOffscreen();
+            }
+            updateLod(live, cam.getLocation(), policy, tpf);
+        }
+        budget.allocate();
+        sinceStats += tpf;
+        if (sinceStats >= STATS_INTERVAL) {
+            sinceStats = 0;
+            sampleStats();
+        }
+        for (LiveScript live : liveScripts.values()) {
+            applyQuota(live);
+        }
+        if (concurrentSimulation != null) {
+            // Results are published when the first script node is updated
+            concurrentSimulation.begin(tpf);
+        }
+    }
+
+    @Override
+    protected void onCleanup() {
+        super.onCleanup();
+        runtime.unregister();
+        if (concurrentSimulation != null) {
+            concurrentSimulation.sync();
+        }
+        for (LiveScript live : liveScripts.values()) {
+            if (live.kernel != null) {
+                live.kernel.stopAsync();
+            }
+        }
+        if (asyncExecutor != null) {
+            asyncExecutor.shutdown();
+            asyncExecutor = null;
+        }
+        if (batchControl != null) {
+            batchControl.clear();
+            batchNode.removeFromParent();
+            batchNode = null;
+            batchControl = null;
+        }
     }
 
     @Override
@@ -35,14 +256,90 @@ public class ParticleViewerAppState extends AbstractDebugSceneAppState {
             boolean debugParticles = prefs.getBoolean(ParticleConfig.PARTICLES_DEBUG_PARTICLES,
                     ParticleConfig.PARTICLES_DEBUG_PARTICLES_DEFAULT);
             float ts = prefs.getFloat(ParticleConfig.PARTICLES_TIME_SCALE, ParticleConfig.PARTICLES_TIME_SCALE_DEFAULT);
-            for (Spatial s : parentNode.getChildren()) {
-                if (s instanceof Node) {
-                    TimedEmitter e = s.getControl(TimedEmitter.class);
-                    if (e != null) {
-    					e.setTimeScale(ts);
-                        e.setEmitterTestMode(debugEmitters, debugParticles);
-                    }
+            for (LiveScript live : liveScripts.values()) {
+                for (Emitter e : live.emitters) {
+                    e.setEmitterTestMode(debugEmitters, debugParticles);
+                }
+                if (live.kernel != null) {
+                    live.kernel.setTimeScale(ts);
                 }
+                // Emitter time scale also depends on the level of detail
+                live.band = null;
+            }
+        } else if (evt.getKey().equals(ParticleConfig.PARTICLES_PARALLEL)
+                || evt.getKey().equals(ParticleConfig.PARTICLES_PARALLEL_THRESHOLD)) {
+            for (LiveScript live : liveScripts.values()) {
+                if (live.kernel != null) {
+                    configureParallel(live.kernel.getSimulation());
+                }
+            }
+        } else if (evt.getKey().equals(ParticleConfig.PARTICLES_FUSED)) {
+            boolean fused = prefs.getBoolean(ParticleConfig.PARTICLES_FUSED, ParticleConfig.PARTICLES_FUSED_DEFAULT);
+            for (LiveScript live : liveScripts.values()) {
+                if (live.kernel != null) {
+                    live.kernel.getSimulation().setFused(fused);
+                }
+            }
+        } else if (evt.getKey().equals(ParticleConfig.PARTICLES_GENERATED)) {
+            boolean generated = prefs.getBoolean(ParticleConfig.PARTICLES_GENERATED,
+                    ParticleConfig.PARTICLES_GENERATED_DEFAULT);
+            for (LiveScript live : liveScripts.values()) {
+                if (live.kernel != null) {
+                    live.kernel.getSimulation().setGenerated(generated);
+                }
+            }
+        } else if (evt.getKey().equals(ParticleConfig.PARTICLES_COMPACT)) {
+            boolean compact = prefs.getBoolean(ParticleConfig.PARTICLES_COMPACT,
+                    ParticleConfig.PARTICLES_COMPACT_DEFAULT);
+            for (LiveScript live : liveScripts.values()) {
+                if (live.kernel != null) {
+                    live.kernel.getSimulation().setCompacting(compact);
+                }
+            }
+        } else if (evt.getKey().equals(ParticleConfig.PARTICLES_CULL_CELL_SIZE)) {
+            for (LiveScript live : liveScripts.values()) {
+                if (live.kernel != null) {
+                    live.kernel.setCellSize(getCullCellSize());
+                }
+            }
+        } else if (evt.getKey().equals(ParticleConfig.PARTICLES_SORT_THRESHOLD)) {
+            for (LiveScript live : liveScripts.values()) {
+                if (live.kernel != null) {
+                    live.kernel.getSorter().setThreshold(getSortThreshold());
+                }
+            }
+        } else if (evt.getKey().equals(ParticleConfig.PARTICLES_ASYNC)) {
+            for (LiveScript live : liveScripts.values()) {
+                if (live.kernel != null) {
+                    configureAsync(live.kernel);
+                }
+            }
+        } else if (evt.getKey().equals(ParticleConfig.PARTICLES_FIXED_STEP)
+                || evt.getKey().equals(ParticleConfig.PARTICLES_STEP_RATE)
+                || evt.getKey().equals(ParticleConfig.PARTICLES_MAX_STEPS)) {
+            float step = getFixedStep();
+            for (LiveScript live : liveScripts.values()) {
+                if (live.kernel != null) {
+                    live.kernel.setFixedStep(step, getMaxSteps());
+                    configureAsync(live.kernel);
+                } else {
+                    live.timestep = step == 0 ? null : new FixedTimestep(step, getMaxSteps());
+                    live.band = null;
+                }
+            }
+        } else if (evt.getKey().equals(ParticleConfig.PARTICLES_TRACK_ALLOCATIONS)) {
+            for (LiveScript live : liveScripts.values()) {
+                live.stats.setTrackingAllocations(isTrackAllocations());
+            }
+        } else if (evt.getKey().equals(ParticleConfig.PARTICLES_BUDGET)) {
+            budget.setBudget(prefs.getInt(ParticleConfig.PARTICLES_BUDGET, ParticleConfig.PARTICLES_BUDGET_DEFAULT));
+        } else if (evt.getKey().equals(ParticleConfig.PARTICLES_BATCH)) {
+            configureBatching();
+        } else if (evt.getKey().equals(ParticleConfig.PARTICLES_CONCURRENT)) {
+            configureConcurrent();
+        } else if (evt.getKey().equals(ParticleConfig.PARTICLES_KERNELS)) {
+            for (LiveScript live : new ArrayList<LiveScript>(liveScripts.values())) {
+                addScript(live.script);
             }
         }
     }
@@ -51,57 +348,552 @@ public class ParticleViewerAppState extends AbstractDebugSceneAppState {
         removeScript(group);
         final String groupKey = getScriptKey(group);
         Node node = new Node(groupKey);
-        boolean debugEmitters = prefs.getBoolean(ParticleConfig.PARTICLES_DEBUG_EMITTER,
-                ParticleConfig.PARTICLES_DEBUG_EMITTER_DEFAULT);
-        boolean debugParticles = prefs.getBoolean(ParticleConfig.PARTICLES_DEBUG_PARTICLES,
-                ParticleConfig.PARTICLES_DEBUG_PARTICLES_DEFAULT);
-        for (OGREParticleEmitter i : group.getEmitters()) {
-            final Emitter emitter = i.createEmitter(assetManager);
-            LOG.info(String.format("Adding emitter %s to %s", emitter, groupKey));
-            emitter.setEnabled(true);
-            emitter.setEmitterTestMode(debugEmitters, debugParticles);
-            emitter.initialize(assetManager);
-
-
-            node.addControl(emitter);
+        LiveScript live = new LiveScript(group, groupKey, node);
+        live.settings = ParticleSettings.get(assetManager, group);
+        boolean kernels = prefs.getBoolean(ParticleConfig.PARTICLES_KERNELS,
+                ParticleConfig.PARTICLES_KERNELS_DEFAULT);
+        if (kernels && !Kernels.isSupported(group)) {
+            LOG.warning(String.format("%s is not supported by kernels, adding it to the emitter runtime",
+                    groupKey));
+            kernels = false;
+        }
+        if (kernels) {
+            LOG.info(String.format("Adding kernel simulation of %s", groupKey));
+            ScriptSimulation simulation = new ScriptSimulation(group, live.settings.getEffectiveSeed());
+            configureParallel(simulation);
+            simulation.setFused(
+                    prefs.getBoolean(ParticleConfig.PARTICLES_FUSED, ParticleConfig.PARTICLES_FUSED_DEFAULT));
+            simulation.setGenerated(
+                    prefs.getBoolean(ParticleConfig.PARTICLES_GENERATED, ParticleConfig.PARTICLES_GENERATED_DEFAULT));
+            simulation.setCompacting(
+                    prefs.getBoolean(ParticleConfig.PARTICLES_COMPACT, ParticleConfig.PARTICLES_COMPACT_DEFAULT));
+            live.kernel = new KernelScriptControl(simulation, getMaterials().get(group.getMaterialName()),
+                    app.getCamera());
+            live.kernel.setTimeScale(prefs.getFloat(ParticleConfig.PARTICLES_TIME_SCALE,
+                    ParticleConfig.PARTICLES_TIME_SCALE_DEFAULT));
+            live.kernel.getSorter().setThreshold(getSortThreshold());
+            live.kernel.setCellSize(getCullCellSize());
+            live.kernel.setFixedStep(getFixedStep(), getMaxSteps());
+            live.stats = live.kernel.getStats();
+            node.addControl(live.kernel);
+            if (concurrentSimulation != null) {
+                concurrentSimulation.add(live.kernel);
+            }
+            configureAsync(live.kernel);
+            if (batchControl != null) {
+                batchControl.add(live.kernel);
+            }
+        } else {
+            live.stats = new ScriptStats(group.getName());
+            String[] names = new String[group.getEmitters().size()];
+            for (int i = 0; i < names.length; i++) {
+                names[i] = String.format("Emitter %d (%s)", i + 1,
+                        group.getEmitters().get(i).getClass().getSimpleName());
+            }
+            live.stats.setEmitters(names);
+            live.probes = new EmitterProbes(node, live.stats);
+            for (OGREParticleEmitter i : group.getEmitters()) {
+                final Emitter emitter = createEmitter(i);
+                LOG.info(String.format("Adding emitter %s to %s", emitter, groupKey));
+                live.probes.add(emitter);
+                live.emitters.add(emitter);
+                live.emissionRates.add(emitter.getEmissionsPerSecond());
+            }
+            float step = getFixedStep();
+            if (step != 0) {
+                live.timestep = new FixedTimestep(step, getMaxSteps());
+                // Hand the stepping of the emitters over at the first update
+                live.band = null;
+            }
         }
+        live.stats.setTrackingAllocations(isTrackAllocations());
+        live.snapshot = new ScriptSnapshot(group);
+        live.allocation = budget.add(groupKey);
+        prewarm(live);
+        liveScripts.put(live);
+        runtime.add(groupKey, new ScriptMonitor(group, live.stats, live.allocation, live.kernel, live.emitters));
         node.setQueueBucket(RenderQueue.Bucket.Transparent);
         parentNode.attachChild(node);
+        if (batchNode != null) {
+            // Batches must be built after every script has been updated
+            parentNode.detachChild(batchNode);
+            parentNode.attachChild(batchNode);
+        }
     }
 
     public boolean hasScript(OGREParticleScript group) {
-        final String groupKey = getScriptKey(group);
-        return parentNode.getChild(groupKey) != null;
+        return liveScripts.get(group) != null;
     }
 
     public void removeScript(OGREParticleScript group) {
-        final String groupKey = getScriptKey(group);
-        LOG.info(String.format("Removing emitter %s", groupKey));
-        Node groupNode = (Node) parentNode.getChild(groupKey);
-        if (groupNode != null) {
-            groupNode.removeFromParent();
-            LOG.info(String.format("Removed emitter %s", groupKey));
+        LiveScript live = liveScripts.remove(group);
+        if (live == null) {
+            return;
+        }
+        LOG.info(String.format("Removing emitter %s", live.key));
+        budget.remove(live.allocation);
+        runtime.remove(live.key);
+        if (live.kernel != null) {
+            live.kernel.stopAsync();
+            if (concurrentSimulation != null) {
+                concurrentSimulation.remove(live.kernel);
+            }
+            if (batchControl != null) {
+                batchControl.remove(live.kernel);
+            }
         }
+        live.node.removeFromParent();
+        LOG.info(String.format("Removed emitter %s", live.key));
     }
 
     public void scriptUpdated(OGREParticleScript script) {
-        if (hasScript(script)) {
-            removeScript(script);
-            addScript(script);
+        LiveScript live = liveScripts.get(script);
+        if (live != null) {
+            ScriptSnapshot snapshot = new ScriptSnapshot(script);
+            live.band = null;
+            boolean kernels = prefs.getBoolean(ParticleConfig.PARTICLES_KERNELS,
+                    ParticleConfig.PARTICLES_KERNELS_DEFAULT);
+            if (kernels && (live.kernel != null) != Kernels.isSupported(script)) {
+                // Moves between the kernels and the emitter runtime
+                LOG.info(String.format("Kernel support of %s changed, rebuilding", script.getName()));
+                removeScript(script);
+                addScript(script);
+                return;
+            }
+            if (live.kernel != null) {
+                // Kernels can always be recompiled in place
+                live.kernel.compile();
+                live.kernel.setMaterial(getMaterials().get(script.getMaterialName()));
+                live.snapshot = snapshot;
+                return;
+            }
+
+            ScriptSnapshot.Patch patch = snapshot.diff(live.snapshot);
+            if (patch.isStructural()) {
+                LOG.info(String.format("Structural change to %s, rebuilding", script.getName()));
+                removeScript(script);
+                addScript(script);
+                return;
+            }
+
+            if (patch.isQuota()) {
+                for (Emitter e : live.emitters) {
+                    e.setMaxParticles(script.getQuota());
+                }
+            }
+
+            /*
+             * Only emitters whose shape or other fixed settings changed are
+             * replaced. Parameter changes (of the emitter, or of any affector,
+             * which every emitter has a copy of) are patched into the live
+             * emitters and their influencers, and all keep their particles.
+             * Emitters whose influencers no longer match are also replaced.
+             */
+            BitSet recreated = (BitSet) patch.getRecreated().clone();
+            BitSet patched = new BitSet();
+            if (patch.isAffectors()) {
+                patched.set(0, live.emitters.size());
+            } else {
+                patched.or(patch.getEmitters());
+            }
+            patched.andNot(recreated);
+            for (int i = patched.nextSetBit(0); i >= 0; i = patched.nextSetBit(i + 1)) {
+                Emitter emitter = live.emitters.get(i);
+                if (EmitterPatcher.patch(emitter, script.getEmitters().get(i).createEmitter(assetManager))) {
+                    live.emissionRates.set(i, emitter.getEmissionsPerSecond());
+                } else {
+                    recreated.set(i);
+                }
+            }
+            for (int i = recreated.nextSetBit(0); i >= 0; i = recreated.nextSetBit(i + 1)) {
+                Emitter old = live.emitters.get(i);
+                Emitter emitter = createEmitter(script.getEmitters().get(i));
+                live.probes.replace(i, old, emitter);
+                live.emitters.set(i, emitter);
+                live.emissionRates.set(i, emitter.getEmissionsPerSecond());
+            }
+            live.snapshot = snapshot;
         }
     }
 
     public void scriptUpdated(OGREParticleScript script, EmitterUpdater updater) {
-        final String groupKey = getScriptKey(script);
-        LOG.info(String.format("Removing emitter %s", groupKey));
-        Node groupNode = (Node) parentNode.getChild(groupKey);
-        if (groupNode != null) {
-            TimedEmitter emitter = groupNode.getControl(TimedEmitter.class);
-            updater.update(emitter);
+        LiveScript live = liveScripts.get(script);
+        if (live != null) {
+            LOG.info(String.format("Updating emitter %s", live.key));
+            if (live.kernel != null) {
+                live.kernel.compile();
+            }
+            // Updaters expect the emitters at full detail
+            applyLod(live, ScriptLod.Band.FULL);
+            for (int i = 0; i < live.emitters.size(); i++) {
+                Emitter e = live.emitters.get(i);
+                if (e instanceof TimedEmitter) {
+                    updater.update((TimedEmitter) e);
+                }
+                live.emissionRates.set(i, e.getEmissionsPerSecond());
+            }
+            live.band = null;
+            live.snapshot = new ScriptSnapshot(script);
+        }
+    }
+
+    /**
+     * Fast forward a newly added script by its prewarm time. Kernel
+     * simulations prewarm when they are first stepped, emitters are updated
+     * directly at a coarse step.
+     */
+    private void prewarm(LiveScript live) {
+        float seconds = live.settings.getPrewarm();
+        if (seconds <= 0) {
+            return;
+        }
+        if (live.kernel != null) {
+            live.kernel.prewarm(seconds);
+        } else {
+            long started = System.nanoTime();
+            fastForward(live, seconds);
+            LOG.info(String.format("Prewarmed %s by %.1fs in %dms", live.script.getName(), seconds,
+                    (System.nanoTime() - started) / 1000000));
+        }
+    }
+
+    private void fastForward(LiveScript live, float seconds) {
+        int steps = (int) Math.ceil(seconds / ScriptSimulation.PREWARM_STEP);
+        live.node.updateGeometricState();
+        for (int i = 0; i < steps; i++) {
+            live.node.updateLogicalState(seconds / steps);
+        }
+    }
+
+    /**
+     * Get if any of a script may be in view. The bounds are those of the
+     * particles as of the last update, or where the script is if it has no
+     * particles (or they are batched), as that is where new ones will be.
+     */
+    private boolean isVisible(LiveScript live, Camera cam) {
+        BoundingVolume bound = live.node.getWorldBound();
+        if (bound == null || getAlive(live) == 0) {
+            pointBound.setCenter(live.node.getWorldTranslation());
+            bound = pointBound;
+        }
+        int planeState = cam.getPlaneState();
+        cam.setPlaneState(0);
+        boolean visible = cam.contains(bound) != Camera.FrustumIntersect.Outside;
+        cam.setPlaneState(planeState);
+        return visible;
+    }
+
+    private int getAlive(LiveScript live) {
+        if (live.kernel != null) {
+            return live.kernel.getAliveCount();
+        }
+        int alive = 0;
+        for (int i = 0; i < live.emitters.size(); i++) {
+            alive += live.emitters.get(i).getActiveParticleCount();
+        }
+        return alive;
+    }
+
+    /**
+     * Stop simulating a script while it is out of view. Asynchronous
+     * simulations carry on, as they are not run on the render thread, and
+     * only the building of their mesh stops.
+     */
+    private void suspend(LiveScript live, float tpf) {
+        if (!live.suspended) {
+            live.suspended = true;
+            live.suspendedFor = 0;
+            if (live.kernel != null) {
+                live.kernel.setEnabled(false);
+            } else {
+                for (Emitter e : live.emitters) {
+                    e.setEnabled(false);
+                }
+            }
+        }
+        live.suspendedFor += tpf;
+    }
+
+    /**
+     * Start simulating a suspended script again, first catching up (at a
+     * coarse step) with the time it was suspended for, so it looks as if it
+     * had never stopped.
+     */
+    private void resume(LiveScript live) {
+        live.suspended = false;
+        float seconds = Math.min(MAX_CATCH_UP, live.suspendedFor
+                * prefs.getFloat(ParticleConfig.PARTICLES_TIME_SCALE, ParticleConfig.PARTICLES_TIME_SCALE_DEFAULT));
+        if (live.kernel != null) {
+            live.kernel.setEnabled(true);
+            if (!live.kernel.isAsync() && seconds > 0) {
+                live.kernel.prewarm(seconds);
+            }
+        } else if (seconds > 0) {
+            for (Emitter e : live.emitters) {
+                e.setEnabled(true);
+                if (e instanceof TimedEmitter) {
+                    ((TimedEmitter) e).setTimeScale(1);
+                }
+            }
+            fastForward(live, seconds);
         }
+        // Enabled state and time scale are restored along with the band
+        live.band = null;
+    }
+
+    /**
+     * Select the level of detail band for the distance of a script from the
+     * camera, applying it if it has changed, and request the particles it
+     * needs from the budget. Emitters are only enabled for one frame in each
+     * of the band's update interval, their time scale making up for the frames
+     * missed. In fixed step mode, emitters are instead stepped here, as many
+     * times as are due for the time elapsed over the interval. Scripts out of
+     * view are throttled by lengthening the interval, or suspended.
+     */
+    private void updateLod(LiveScript live, Vector3f camLoc, ScriptSettings.Offscreen policy, float tpf) {
+        float distance = live.node.getWorldTranslation().distance(camLoc);
+        ScriptLod.Band band = live.settings.getLod().select(distance);
+        if (policy == ScriptSettings.Offscreen.SUSPEND) {
+            // Keep the particles, they are needed again when visible
+            suspend(live, tpf);
+            int requested = band.scaleQuota(live.script.getQuota());
+            if (live.kernel == null) {
+                requested *= live.emitters.size();
+            }
+            live.allocation.request(live.settings.getPriority(), distance, requested);
+            return;
+        }
+        if (live.suspended) {
+            resume(live);
+        }
+        if (policy == ScriptSettings.Offscreen.THROTTLE) {
+            band = new ScriptLod.Band(band.getDistance(), band.getRate(), band.getQuota(),
+                    band.getInterval() * THROTTLE_INTERVAL);
+        }
+        if (!band.equals(live.band)) {
+            applyLod(live, band);
+        }
+        int requested = band.scaleQuota(live.script.getQuota());
+        if (live.kernel == null) {
+            // Every emitter has the full quota
+            requested *= live.emitters.size();
+            boolean due = band.getInterval() == 1 || ++live.frames % band.getInterval() == 0;
+            if (live.timestep != null) {
+                live.elapsed += tpf;
+                if (due) {
+                    stepEmitters(live, live.timestep.advance(live.elapsed));
+                    live.elapsed = 0;
+                }
+            } else {
+                for (int i = 0; i < live.emitters.size(); i++) {
+                    Emitter e = live.emitters.get(i);
+                    if (e.isEnabled() != due) {
+                        e.setEnabled(due);
+                    }
+                }
+            }
+        }
+        live.allocation.request(live.settings.getPriority(), distance, requested);
+    }
+
+    private void sampleStats() {
+        for (LiveScript live : liveScripts.values()) {
+            if (live.probes != null) {
+                live.probes.count(live.emitters);
+            }
+            live.stats.sample();
+        }
+    }
+
+    private void applyLod(LiveScript live, ScriptLod.Band band) {
+        live.band = band;
+        live.frames = 0;
+        live.elapsed = 0;
+        live.appliedQuota = -1;
+        if (live.kernel != null) {
+            live.kernel.setLod(band.getRate(), band.getInterval());
+        } else {
+            float ts = prefs.getFloat(ParticleConfig.PARTICLES_TIME_SCALE, ParticleConfig.PARTICLES_TIME_SCALE_DEFAULT);
+            if (live.timestep != null) {
+                // Missed frames are made up for by taking more steps
+                live.timestep.setMaxSteps(getMaxSteps() * band.getInterval());
+            }
+            live.probes.setStepped(live.timestep != null);
+            for (int i = 0; i < live.emitters.size(); i++) {
+                Emitter e = live.emitters.get(i);
+                e.setEmissionsPerSecond(live.emissionRates.get(i) * band.getRate());
+                e.setEnabled(live.timestep == null);
+                if (e instanceof TimedEmitter) {
+                    ((TimedEmitter) e).setTimeScale(live.timestep == null ? ts * band.getInterval() : ts);
+                }
+            }
+        }
+    }
+
+    /**
+     * Step the emitters of a script at the fixed step. They are only enabled
+     * while doing so, so are not also updated by the scene graph.
+     */
+    private void stepEmitters(LiveScript live, int steps) {
+        if (steps == 0) {
+            return;
+        }
+        live.probes.begin();
+        for (Emitter e : live.emitters) {
+            e.setEnabled(true);
+        }
+        for (int i = 0; i < steps; i++) {
+            live.node.updateLogicalState(live.timestep.getStep());
+        }
+        for (Emitter e : live.emitters) {
+            e.setEnabled(false);
+        }
+        live.probes.end();
+    }
+
+    /**
+     * Limit a script to the particles allocated to it. Small changes in
+     * allocation are ignored (unless back to what was requested), as changing
+     * the maximum particles of an emitter is not cheap.
+     */
+    private void applyQuota(LiveScript live) {
+        ParticleBudget.Allocation a = live.allocation;
+        int allocated = a.getAllocated();
+        if (allocated == live.appliedQuota || (live.appliedQuota >= 0 && allocated != a.getRequested()
+                && Math.abs(allocated - live.appliedQuota) <= live.appliedQuota / QUOTA_HYSTERESIS)) {
+            return;
+        }
+        live.appliedQuota = allocated;
+        int quota = live.script.getQuota();
+        if (live.kernel != null) {
+            live.kernel.setQuotaScale(quota == 0 ? 0 : (float) allocated / quota);
+        } else if (!live.emitters.isEmpty()) {
+            int perEmitter = allocated / live.emitters.size();
+            for (Emitter e : live.emitters) {
+                e.setMaxParticles(perEmitter);
+            }
+        }
+    }
+
+    /**
+     * Get the fixed step scripts are simulated at.
+     *
+     * @return step or zero if simulated by the time of each frame
+     */
+    private float getFixedStep() {
+        if (!prefs.getBoolean(ParticleConfig.PARTICLES_FIXED_STEP, ParticleConfig.PARTICLES_FIXED_STEP_DEFAULT)) {
+            return 0;
+        }
+        return 1f / Math.max(1, prefs.getInt(ParticleConfig.PARTICLES_STEP_RATE, ParticleConfig.PARTICLES_STEP_RATE_DEFAULT));
+    }
+
+    private int getMaxSteps() {
+        return prefs.getInt(ParticleConfig.PARTICLES_MAX_STEPS, ParticleConfig.PARTICLES_MAX_STEPS_DEFAULT);
+    }
+
+    private boolean isTrackAllocations() {
+        boolean track = prefs.getBoolean(ParticleConfig.PARTICLES_TRACK_ALLOCATIONS,
+                ParticleConfig.PARTICLES_TRACK_ALLOCATIONS_DEFAULT);
+        if (track && !AllocationMeter.isSupported()) {
+            LOG.warning("Allocations cannot be tracked, this JVM does not measure thread allocation.");
+            return false;
+        }
+        return track;
+    }
+
+    private float getCullCellSize() {
+        return prefs.getFloat(ParticleConfig.PARTICLES_CULL_CELL_SIZE, ParticleConfig.PARTICLES_CULL_CELL_SIZE_DEFAULT);
+    }
+
+    private float getSortThreshold() {
+        return prefs.getFloat(ParticleConfig.PARTICLES_SORT_THRESHOLD, ParticleConfig.PARTICLES_SORT_THRESHOLD_DEFAULT);
+    }
+
+    private void configureAsync(KernelScriptControl kernel) {
+        if (prefs.getBoolean(ParticleConfig.PARTICLES_ASYNC, ParticleConfig.PARTICLES_ASYNC_DEFAULT)) {
+            if (asyncExecutor == null) {
+                asyncExecutor = AsyncSimulation.createExecutor();
+            }
+            float step = getFixedStep() == 0 ? HeadlessSimulation.DEFAULT_STEP : getFixedStep();
+            if (kernel.isAsync() && kernel.getAsyncStep() != step) {
+                kernel.stopAsync();
+            }
+            kernel.startAsync(asyncExecutor, step);
+        } else {
+            kernel.stopAsync();
+        }
+    }
+
+    private void configureBatching() {
+        boolean batch = prefs.getBoolean(ParticleConfig.PARTICLES_BATCH, ParticleConfig.PARTICLES_BATCH_DEFAULT);
+        if (batch && batchControl == null) {
+            batchControl = new MaterialBatchControl(getMaterials());
+            batchNode = new Node("ParticleBatches");
+            batchNode.addControl(batchControl);
+            batchNode.setQueueBucket(RenderQueue.Bucket.Transparent);
+            for (LiveScript live : liveScripts.values()) {
+                if (live.kernel != null) {
+                    batchControl.add(live.kernel);
+                }
+            }
+            parentNode.attachChild(batchNode);
+        } else if (!batch && batchControl != null) {
+            batchControl.clear();
+            batchNode.removeFromParent();
+            batchNode = null;
+            batchControl = null;
+        }
+    }
+
+    private void configureConcurrent() {
+        boolean concurrent = prefs.getBoolean(ParticleConfig.PARTICLES_CONCURRENT,
+                ParticleConfig.PARTICLES_CONCURRENT_DEFAULT);
+        if (concurrent && concurrentSimulation == null) {
+            concurrentSimulation = new ConcurrentSimulation(ForkJoinPool.commonPool());
+            for (LiveScript live : liveScripts.values()) {
+                if (live.kernel != null) {
+                    concurrentSimulation.add(live.kernel);
+                }
+            }
+        } else if (!concurrent && concurrentSimulation != null) {
+            for (LiveScript live : liveScripts.values()) {
+                if (live.kernel != null) {
+                    concurrentSimulation.remove(live.kernel);
+                }
+            }
+            concurrentSimulation = null;
+        }
+    }
+
+    private void configureParallel(ScriptSimulation simulation) {
+        if (prefs.getBoolean(ParticleConfig.PARTICLES_PARALLEL, ParticleConfig.PARTICLES_PARALLEL_DEFAULT)) {
+            simulation.setParallel(ForkJoinPool.commonPool(), prefs.getInt(ParticleConfig.PARTICLES_PARALLEL_THRESHOLD,
+                    ParticleConfig.PARTICLES_PARALLEL_THRESHOLD_DEFAULT));
+        } else {
+            simulation.setParallel(null, 0);
+        }
+    }
+
+    private ParticleMaterials getMaterials() {
+        if (materials == null) {
+            materials = new ParticleMaterials(assetManager);
+        }
+        return materials;
+    }
+
+    private Emitter createEmitter(OGREParticleEmitter ogreEmitter) {
+        boolean debugEmitters = prefs.getBoolean(ParticleConfig.PARTICLES_DEBUG_EMITTER,
+                ParticleConfig.PARTICLES_DEBUG_EMITTER_DEFAULT);
+        boolean debugParticles = prefs.getBoolean(ParticleConfig.PARTICLES_DEBUG_PARTICLES,
+                ParticleConfig.PARTICLES_DEBUG_PARTICLES_DEFAULT);
+        final Emitter emitter = ogreEmitter.createEmitter(assetManager);
+        emitter.setEnabled(true);
+        emitter.setEmitterTestMode(debugEmitters, debugParticles);
+        emitter.initialize(assetManager);
+        return emitter;
     }
 
-    private String getScriptKey(OGREParticleScript group) {
+    private static String getScriptKey(OGREParticleScript group) {
         return "Particle-" + group.getConfiguration().getConfigurationName() + "-" + group.getName();
     }
 
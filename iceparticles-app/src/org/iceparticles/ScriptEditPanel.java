@@ -21,10 +21,12 @@ import emitter.EmitterMesh.DirectionType;
 import icemoon.iceloader.ServerAssetManager;
 import icetone.controls.buttons.CheckBox;
 import icetone.controls.lists.ComboBox;
+import icetone.controls.lists.FloatRangeSpinnerModel;
 import icetone.controls.lists.IntegerRangeSpinnerModel;
 import icetone.controls.lists.Spinner;
 import icetone.controls.scrolling.ScrollPanel;
 import icetone.controls.text.Label;
+import icetone.core.BaseElement;
 import icetone.core.BaseScreen;
 import icetone.core.Orientation;
 import icetone.core.ToolKit;
@@ -42,6 +44,10 @@ public class ScriptEditPanel extends ScrollPanel {
 	private final MaterialFieldControl material;
 	private final Vector2fControl particleSize;
 	private final Spinner<Integer> quota;
+	private final Spinner<Integer> priority;
+	private final Spinner<Float> prewarm;
+	private final Spinner<Integer> seed;
+	private final ComboBox<ScriptSettings.Offscreen> offscreen;
 	private final CheckBox cullEach;
 	private final CheckBox sorted;
 	private final CheckBox localSpace;
@@ -55,6 +61,7 @@ public class ScriptEditPanel extends ScrollPanel {
 	private Vector3fControl commonDirection;
 	private Vector3fControl commonUpVector;
 	private Map<String, MaterialList> materialNames;
+	private final LodBandControl[] lodBands = new LodBandControl[ScriptLod.MAX_BANDS];
 
 	public ScriptEditPanel(Preferences prefs, ParticleViewerAppState particleViewer, UndoManager undoManager,
 			BaseScreen screen) {
@@ -77,6 +84,45 @@ public class ScriptEditPanel extends ScrollPanel {
 				+ "almost always want to change this, since it defaults to a very low "
 				+ "value (particle pools are only ever increased in size, never " + "decreased).");
 
+		// Priority
+		addScrollableContent(new Label("Priority", screen));
+		addScrollableContent(priority = new Spinner<Integer>(screen, Orientation.HORIZONTAL, false));
+		priority.setSpinnerModel(new IntegerRangeSpinnerModel(1, ScriptSettings.MAX_PRIORITY, 1,
+				ScriptSettings.DEFAULT_PRIORITY));
+		priority.setToolTipText("Not used in real OGRE scripts. When the total particles of all "
+				+ "scripts would exceed the particle budget, scripts get a share of the budget "
+				+ "in proportion to their priority, divided by their distance from the camera.");
+
+		// Prewarm
+		addScrollableContent(new Label("Prewarm", screen));
+		addScrollableContent(prewarm = new Spinner<Float>(screen, Orientation.HORIZONTAL, false));
+		prewarm.setSpinnerModel(new FloatRangeSpinnerModel(0, 600, 1, 0));
+		prewarm.setToolTipText("Not used in real OGRE scripts. The number of seconds the system "
+				+ "is fast forwarded by when it is activated, so long lived effects (e.g. smoke "
+				+ "or fog) start at their steady state rather than empty.");
+
+		// Seed
+		addScrollableContent(new Label("Seed", screen));
+		addScrollableContent(seed = new Spinner<Integer>(screen, Orientation.HORIZONTAL, false));
+		seed.setSpinnerModel(new IntegerRangeSpinnerModel(0, Integer.MAX_VALUE, 1, 0));
+		seed.setToolTipText("Not used in real OGRE scripts. The seed of the random numbers used "
+				+ "by the emitters and affectors, so the system looks the same every time it is run. "
+				+ "Zero uses a seed derived from the name of the script. Only used when "
+				+ "simulating with kernels.");
+
+		// Off-screen
+		addScrollableContent(new Label("Off-screen", screen));
+		offscreen = new ComboBox<ScriptSettings.Offscreen>(screen);
+		for (ScriptSettings.Offscreen o : ScriptSettings.Offscreen.values()) {
+			offscreen.addListItem(Icelib.toEnglish(o), o);
+		}
+		addScrollableContent(offscreen);
+		offscreen.setToolTipText("Not used in real OGRE scripts. What happens while the system is "
+				+ "out of view. It may keep simulating, simulate only every few frames, or be "
+				+ "suspended and quickly catch up when back in view. Systems that must always be "
+				+ "correct, such as long trails, should keep simulating. Only applies when "
+				+ "View > Suspend Off-screen is on.");
+
 		// Material
 
 		addScrollableContent(new Label("Material", screen));
@@ -244,9 +290,45 @@ public class ScriptEditPanel extends ScrollPanel {
 				+ "particles to remain attached to the local space the emitter is in "
 				+ "and to follow them directly. This option allows you to do that.");
 
+		// Level of detail
+		addScrollableContent(new Label("Level Of Detail", screen), "gaptop 20, span 2");
+		addScrollableContent(new Label("", screen));
+		BaseElement lodHeader = new BaseElement(screen);
+		lodHeader.setLayoutManager(new MigLayout(screen, "ins 0", "[60!][60!][60!][60!]", "[]"));
+		lodHeader.addElement(new Label("Distance", screen));
+		lodHeader.addElement(new Label("Rate", screen));
+		lodHeader.addElement(new Label("Quota", screen));
+		lodHeader.addElement(new Label("Interval", screen));
+		addScrollableContent(lodHeader);
+		for (int i = 0; i < lodBands.length; i++) {
+			addScrollableContent(new Label(String.format("Band %d", i + 1), screen));
+			addScrollableContent(lodBands[i] = new LodBandControl(screen, i));
+		}
+
 		/* Listen for events */
 		quota.onChange(evt -> ScriptEditPanel.this.undoManager
 				.storeAndExecute(new UpdateQuotaCommand(script, evt.getNewValue())));
+		prewarm.onChange(evt -> {
+			if (script != null && evt.getNewValue() != getSettings(script).getPrewarm()) {
+				undoManager.storeAndExecute(new UpdatePrewarmCommand(script, evt.getNewValue()));
+			}
+		});
+		seed.onChange(evt -> {
+			if (script != null && evt.getNewValue() != getSettings(script).getSeed()) {
+				undoManager.storeAndExecute(new UpdateSeedCommand(script, evt.getNewValue()));
+			}
+		});
+		offscreen.onChange(evt -> {
+			if (!evt.getSource().isAdjusting() && script != null
+					&& evt.getNewValue() != getSettings(script).getOffscreen()) {
+				undoManager.storeAndExecute(new UpdateOffscreenCommand(script, evt.getNewValue()));
+			}
+		});
+		priority.onChange(evt -> {
+			if (script != null && evt.getNewValue() != getSettings(script).getPriority()) {
+				undoManager.storeAndExecute(new UpdatePriorityCommand(script, evt.getNewValue()));
+			}
+		});
 		directionType.onChange(evt -> {
 			if (!evt.getSource().isAdjusting()) {
 				ScriptEditPanel.this.undoManager
@@ -322,6 +404,10 @@ public class ScriptEditPanel extends ScrollPanel {
 
 		if (script == null) {
 			quota.setEnabled(false);
+			priority.setEnabled(false);
+			prewarm.setEnabled(false);
+			seed.setEnabled(false);
+			offscreen.setEnabled(false);
 			material.setEnabled(false);
 			commonUpVector.setEnabled(false);
 			commonDirection.setEnabled(false);
@@ -333,8 +419,15 @@ public class ScriptEditPanel extends ScrollPanel {
 			billboardType.setEnabled(false);
 			billboardOrigin.setEnabled(false);
 			billboardRotation.setEnabled(false);
+			for (LodBandControl c : lodBands) {
+				c.setBandEnabled(false);
+			}
 		} else {
 			quota.setEnabled(true);
+			priority.setEnabled(true);
+			prewarm.setEnabled(true);
+			seed.setEnabled(true);
+			offscreen.setEnabled(true);
 			material.setEnabled(true);
 			commonUpVector.setEnabled(true);
 			commonDirection.setEnabled(true);
@@ -347,6 +440,10 @@ public class ScriptEditPanel extends ScrollPanel {
 			billboardOrigin.setEnabled(true);
 			billboardRotation.setEnabled(true);
 			quota.setSelectedValue(script.getQuota());
+			priority.setSelectedValue(getSettings(script).getPriority());
+			prewarm.setSelectedValue(getSettings(script).getPrewarm());
+			seed.setSelectedValue((int) Math.max(0, Math.min(Integer.MAX_VALUE, getSettings(script).getSeed())));
+			offscreen.runAdjusting(() -> offscreen.setSelectedByValue(getSettings(script).getOffscreen()));
 			material.setValue(script.getMaterialName());
 			cullEach.runAdjusting(() -> cullEach.setChecked(script.isCullEach()));
 			commonUpVector.setValue(script.getCommonUpVector());
@@ -358,6 +455,89 @@ public class ScriptEditPanel extends ScrollPanel {
 			billboardType.setSelectedByValue(script.getBillboardType());
 			billboardOrigin.setSelectedByValue(script.getBillboardOrigin());
 			billboardRotation.runAdjusting(() -> billboardRotation.setSelectedByValue(script.getBillboardRotation()));
+			ScriptLod lod = getSettings(script).getLod();
+			for (int i = 0; i < lodBands.length; i++) {
+				lodBands[i].setBandEnabled(true);
+				lodBands[i].setBand(lod.getBand(i));
+			}
+		}
+	}
+
+	private ScriptSettings getSettings(OGREParticleScript script) {
+		return ParticleSettings.get(ToolKit.get().getApplication().getAssetManager(), script);
+	}
+
+	/**
+	 * Edits one band of the level of detail of the script. A band with no
+	 * distance is unused.
+	 */
+	class LodBandControl extends BaseElement {
+
+		private final int index;
+		private final Spinner<Float> distance;
+		private final Spinner<Float> rate;
+		private final Spinner<Float> quota;
+		private final Spinner<Integer> interval;
+
+		LodBandControl(BaseScreen screen, int index) {
+			super(screen);
+			this.index = index;
+			setLayoutManager(new MigLayout(screen, "ins 0", "[60!][60!][60!][60!]", "[]"));
+
+			addElement(distance = new Spinner<Float>(screen, Orientation.HORIZONTAL, false));
+			distance.setSpinnerModel(new FloatRangeSpinnerModel(0, 99999, 10, 0));
+			distance.setToolTipText("The distance from the camera this band starts at. Nearer than "
+					+ "the first band, the script runs at full detail. Zero disables the band.");
+			addElement(rate = new Spinner<Float>(screen, Orientation.HORIZONTAL, false));
+			rate.setSpinnerModel(new FloatRangeSpinnerModel(0, 1, 0.05f, 1));
+			rate.setToolTipText("The fraction of the emission rate emitters run at in this band.");
+			addElement(quota = new Spinner<Float>(screen, Orientation.HORIZONTAL, false));
+			quota.setSpinnerModel(new FloatRangeSpinnerModel(0, 1, 0.05f, 1));
+			quota.setToolTipText("The fraction of the quota the script may use in this band.");
+			addElement(interval = new Spinner<Integer>(screen, Orientation.HORIZONTAL, false));
+			interval.setSpinnerModel(new IntegerRangeSpinnerModel(1, 60, 1, 1));
+			interval.setToolTipText("The number of frames between updates in this band, the time "
+					+ "elapsed over all of them being simulated at once.");
+
+			distance.onChange(evt -> changed());
+			rate.onChange(evt -> changed());
+			quota.onChange(evt -> changed());
+			interval.onChange(evt -> changed());
+		}
+
+		ScriptLod.Band getBand() {
+			return new ScriptLod.Band(distance.getSelectedValue(), rate.getSelectedValue(), quota.getSelectedValue(),
+					interval.getSelectedValue());
+		}
+
+		void setBand(ScriptLod.Band band) {
+			if (band == null) {
+				band = new ScriptLod.Band(0, 1, 1, 1);
+			}
+			if (!band.equals(getBand())) {
+				distance.setSelectedValue(band.getDistance());
+				rate.setSelectedValue(band.getRate());
+				quota.setSelectedValue(band.getQuota());
+				interval.setSelectedValue(band.getInterval());
+			}
+		}
+
+		void setBandEnabled(boolean enabled) {
+			distance.setEnabled(enabled);
+			rate.setEnabled(enabled);
+			quota.setEnabled(enabled);
+			interval.setEnabled(enabled);
+		}
+
+		private void changed() {
+			if (script == null) {
+				return;
+			}
+			ScriptLod.Band band = getBand();
+			ScriptLod.Band was = getSettings(script).getLod().getBand(index);
+			if (!band.equals(was == null ? new ScriptLod.Band(0, 1, 1, 1) : was)) {
+				undoManager.storeAndExecute(new UpdateLodBandCommand(script, index, band));
+			}
 		}
 	}
 
@@ -404,6 +584,148 @@ public class ScriptEditPanel extends ScrollPanel {
 		}
 	}
 
+	@SuppressWarnings("serial")
+	class UpdatePriorityCommand extends AbstractScriptCommand {
+
+		private int oldPriority;
+		private final int newPriority;
+
+		public UpdatePriorityCommand(OGREParticleScript script, int newPriority) {
+			super(script);
+			this.newPriority = newPriority;
+		}
+
+		public void undoCommand() {
+			getSettings(script).setPriority(oldPriority);
+			ScriptEditPanel.this.priority.setSelectedValue(oldPriority);
+		}
+
+		public void doCommand() {
+			ScriptSettings settings = getSettings(script);
+			oldPriority = settings.getPriority();
+			settings.setPriority(newPriority);
+			ScriptEditPanel.this.priority.setSelectedValue(newPriority);
+		}
+	}
+
+	@SuppressWarnings("serial")
+	class UpdateOffscreenCommand extends AbstractScriptCommand {
+
+		private ScriptSettings.Offscreen oldOffscreen;
+		private final ScriptSettings.Offscreen newOffscreen;
+
+		public UpdateOffscreenCommand(OGREParticleScript script, ScriptSettings.Offscreen newOffscreen) {
+			super(script);
+			this.newOffscreen = newOffscreen;
+		}
+
+		public void undoCommand() {
+			getSettings(script).setOffscreen(oldOffscreen);
+			ScriptEditPanel.this.offscreen.runAdjusting(() -> offscreen.setSelectedByValue(oldOffscreen));
+		}
+
+		public void doCommand() {
+			ScriptSettings settings = getSettings(script);
+			oldOffscreen = settings.getOffscreen();
+			settings.setOffscreen(newOffscreen);
+			ScriptEditPanel.this.offscreen.runAdjusting(() -> offscreen.setSelectedByValue(newOffscreen));
+		}
+	}
+
+	@SuppressWarnings("serial")
+	class UpdatePrewarmCommand extends AbstractScriptCommand {
+
+		private float oldPrewarm;
+		private final float newPrewarm;
+
+		public UpdatePrewarmCommand(OGREParticleScript script, float newPrewarm) {
+			super(script);
+			this.newPrewarm = newPrewarm;
+		}
+
+		public void undoCommand() {
+			getSettings(script).setPrewarm(oldPrewarm);
+			restart();
+			ScriptEditPanel.this.prewarm.setSelectedValue(oldPrewarm);
+		}
+
+		public void doCommand() {
+			ScriptSettings settings = getSettings(script);
+			oldPrewarm = settings.getPrewarm();
+			settings.setPrewarm(newPrewarm);
+			restart();
+			ScriptEditPanel.this.prewarm.setSelectedValue(newPrewarm);
+		}
+
+		private void restart() {
+			// Show the effect of the new prewarm time
+			if (particleViewer.hasScript(script)) {
+				particleViewer.addScript(script);
+			}
+		}
+	}
+
+	@SuppressWarnings("serial")
+	class UpdateSeedCommand extends AbstractScriptCommand {
+
+		private long oldSeed;
+		private final long newSeed;
+
+		public UpdateSeedCommand(OGREParticleScript script, long newSeed) {
+			super(script);
+			this.newSeed = newSeed;
+		}
+
+		public void undoCommand() {
+			getSettings(script).setSeed(oldSeed);
+			restart();
+			ScriptEditPanel.this.seed.setSelectedValue((int) oldSeed);
+		}
+
+		public void doCommand() {
+			ScriptSettings settings = getSettings(script);
+			oldSeed = settings.getSeed();
+			settings.setSeed(newSeed);
+			restart();
+			ScriptEditPanel.this.seed.setSelectedValue((int) newSeed);
+		}
+
+		private void restart() {
+			// Start again from the first number of the new sequence
+			if (particleViewer.hasScript(script)) {
+				particleViewer.addScript(script);
+			}
+		}
+	}
+
+	@SuppressWarnings("serial")
+	class UpdateLodBandCommand extends AbstractScriptCommand {
+
+		private final int index;
+		private ScriptLod.Band oldBand;
+		private final ScriptLod.Band newBand;
+
+		public UpdateLodBandCommand(OGREParticleScript script, int index, ScriptLod.Band newBand) {
+			super(script);
+			this.index = index;
+			this.newBand = newBand;
+		}
+
+		public void undoCommand() {
+			getSettings(script).getLod().setBand(index, oldBand);
+			particleViewer.scriptUpdated(script);
+			lodBands[index].setBand(oldBand);
+		}
+
+		public void doCommand() {
+			ScriptLod lod = getSettings(script).getLod();
+			oldBand = lod.getBand(index);
+			lod.setBand(index, newBand);
+			particleViewer.scriptUpdated(script);
+			lodBands[index].setBand(newBand);
+		}
+	}
+
 	@SuppressWarnings("serial")
 	class UpdateMaterialCommand extends AbstractScriptCommand {
 
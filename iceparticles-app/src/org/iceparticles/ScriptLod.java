@@ -0,0 +1,180 @@
+package org.iceparticles;
+
+import java.util.Properties;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Distance based level of detail for a script. Each band starts at a distance
+ * from the camera, beyond which the emission rate and quota of the script are
+ * scaled down, and it is only updated every so many frames. Nearer than the
+ * first band, scripts run at full detail.
+ */
+public class ScriptLod {
+
+	private final static Logger LOG = Logger.getLogger(ScriptLod.class.getName());
+
+	public final static int MAX_BANDS = 3;
+
+	public static class Band {
+
+		/**
+		 * Full detail, used nearer than the first band.
+		 */
+		public final static Band FULL = new Band(0, 1, 1, 1);
+
+		private final float distance;
+		private final float rate;
+		private final float quota;
+		private final int interval;
+
+		public Band(float distance, float rate, float quota, int interval) {
+			this.distance = Math.max(0, distance);
+			this.rate = Math.max(0, Math.min(1, rate));
+			this.quota = Math.max(0, Math.min(1, quota));
+			this.interval = Math.max(1, interval);
+		}
+
+		/**
+		 * Get the distance from the camera this band starts at.
+		 *
+		 * @return distance
+		 */
+		public float getDistance() {
+			return distance;
+		}
+
+		/**
+		 * Get the fraction of the emission rate emitters run at.
+		 *
+		 * @return rate scale
+		 */
+		public float getRate() {
+			return rate;
+		}
+
+		/**
+		 * Get the fraction of the quota the script may use.
+		 *
+		 * @return quota scale
+		 */
+		public float getQuota() {
+			return quota;
+		}
+
+		/**
+		 * Get the number of frames between updates, the time elapsed over all
+		 * of them being simulated at once.
+		 *
+		 * @return interval
+		 */
+		public int getInterval() {
+			return interval;
+		}
+
+		public int scaleQuota(int quota) {
+			return Math.round(quota * this.quota);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Band)) {
+				return false;
+			}
+			Band other = (Band) obj;
+			return distance == other.distance && rate == other.rate && quota == other.quota
+					&& interval == other.interval;
+		}
+
+		@Override
+		public int hashCode() {
+			int h = Float.floatToIntBits(distance);
+			h = h * 31 + Float.floatToIntBits(rate);
+			h = h * 31 + Float.floatToIntBits(quota);
+			return h * 31 + interval;
+		}
+
+		@Override
+		public String toString() {
+			return distance + "," + rate + "," + quota + "," + interval;
+		}
+
+		static Band parse(String str) {
+			String[] a = str.split(",");
+			return new Band(Float.parseFloat(a[0].trim()), Float.parseFloat(a[1].trim()), Float.parseFloat(a[2].trim()),
+					Integer.parseInt(a[3].trim()));
+		}
+	}
+
+	private final Band[] bands = new Band[MAX_BANDS];
+
+	/**
+	 * Get a band.
+	 *
+	 * @param index index
+	 * @return band or <code>null</code> if unused
+	 */
+	public Band getBand(int index) {
+		return bands[index];
+	}
+
+	/**
+	 * Set a band. A band with no distance is unused.
+	 *
+	 * @param index index
+	 * @param band band or <code>null</code> if unused
+	 */
+	public void setBand(int index, Band band) {
+		bands[index] = band == null || band.getDistance() == 0 ? null : band;
+	}
+
+	public boolean isEnabled() {
+		for (Band b : bands) {
+			if (b != null) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Select the band for a distance from the camera, i.e. the furthest one
+	 * that starts nearer than the distance.
+	 *
+	 * @param distance distance
+	 * @return band
+	 */
+	public Band select(float distance) {
+		Band selected = Band.FULL;
+		for (Band b : bands) {
+			if (b != null && distance >= b.getDistance() && b.getDistance() >= selected.getDistance()) {
+				selected = b;
+			}
+		}
+		return selected;
+	}
+
+	void load(Properties properties, String name) {
+		for (int i = 0; i < MAX_BANDS; i++) {
+			String val = properties.getProperty("lod." + i + "." + name);
+			if (val != null) {
+				try {
+					setBand(i, Band.parse(val));
+				} catch (RuntimeException re) {
+					LOG.log(Level.WARNING, String.format("Invalid LOD band %d for %s, '%s'", i, name, val), re);
+				}
+			}
+		}
+	}
+
+	void store(Properties properties, String name) {
+		for (int i = 0; i < MAX_BANDS; i++) {
+			String key = "lod." + i + "." + name;
+			if (bands[i] == null) {
+				properties.remove(key);
+			} else {
+				properties.setProperty(key, bands[i].toString());
+			}
+		}
+	}
+}
@@ -0,0 +1,140 @@
+package org.iceparticles;
+
+import java.util.List;
+
+import org.iceparticles.sim.ParticleMeshBuilder;
+import org.iceparticles.sim.ParticleStore;
+import org.iceparticles.sim.ScriptStats;
+import org.icescene.ogreparticle.OGREParticleScript;
+
+import emitter.Emitter;
+
+/**
+ * Exposes an active script for monitoring over JMX. Attributes are read from
+ * whatever thread the MBean server calls on, so only values that are safe (if
+ * not exact) to read while the script is being updated are used.
+ */
+public class ScriptMonitor implements ScriptMonitorMBean {
+
+	private final OGREParticleScript script;
+	private final ScriptStats stats;
+	private final ParticleBudget.Allocation allocation;
+	private final KernelScriptControl kernel;
+	private final List<Emitter> emitters;
+
+	public ScriptMonitor(OGREParticleScript script, ScriptStats stats, ParticleBudget.Allocation allocation,
+			KernelScriptControl kernel, List<Emitter> emitters) {
+		this.script = script;
+		this.stats = stats;
+		this.allocation = allocation;
+		this.kernel = kernel;
+		this.emitters = emitters;
+	}
+
+	@Override
+	public String getName() {
+		return script.getName();
+	}
+
+	@Override
+	public String getConfiguration() {
+		return script.getConfiguration() == null ? null : script.getConfiguration().getConfigurationName();
+	}
+
+	@Override
+	public boolean isKernels() {
+		return kernel != null;
+	}
+
+	@Override
+	public int getAlive() {
+		return stats.getAlive();
+	}
+
+	@Override
+	public int getQuota() {
+		return script.getQuota();
+	}
+
+	@Override
+	public int getAllocated() {
+		return allocation.getAllocated();
+	}
+
+	@Override
+	public boolean isThrottled() {
+		return allocation.isThrottled();
+	}
+
+	@Override
+	public int getPoolSize() {
+		if (kernel != null) {
+			return kernel.getSimulation().getStore().getCapacity();
+		}
+		int size = 0;
+		for (Emitter e : emitters.toArray(new Emitter[0])) {
+			size += e.getMaxParticles();
+		}
+		return size;
+	}
+
+	@Override
+	public long getMemoryUsage() {
+		if (kernel != null) {
+			ParticleStore store = kernel.getSimulation().getStore();
+			return store.getMemoryUsage() + kernel.getBuilder().getMemoryUsage();
+		}
+		// The emitter runtime's buffers are assumed to be about the size of ours
+		return getPoolSize() * (long) ParticleMeshBuilder.BYTES_PER_CAPACITY;
+	}
+
+	@Override
+	public float getUpdateMillis() {
+		return stats.getUpdate().getMillis();
+	}
+
+	@Override
+	public float getUpdateMillis50() {
+		return stats.getUpdatePercentile(50);
+	}
+
+	@Override
+	public float getUpdateMillis90() {
+		return stats.getUpdatePercentile(90);
+	}
+
+	@Override
+	public float getUpdateMillis99() {
+		return stats.getUpdatePercentile(99);
+	}
+
+	@Override
+	public float getEmittedPerSecond() {
+		return stats.getEmittedPerSecond();
+	}
+
+	@Override
+	public float getKilledPerSecond() {
+		return stats.getKilledPerSecond();
+	}
+
+	@Override
+	public float getVertexKilobytesPerSecond() {
+		return stats.getVertexBytesPerSecond() / 1024f;
+	}
+
+	@Override
+	public float getAllocatedPerFrame() {
+		return stats.getAllocatedPerFrame();
+	}
+
+	@Override
+	public float getAllocatedPerParticle() {
+		return stats.getAllocatedPerParticle();
+	}
+
+	@Override
+	public float getLiveRatio() {
+		return stats.getLiveRatio();
+	}
+}
@@ -0,0 +1,83 @@
+package org.iceparticles;
+
+/**
+ * Management interface of an active script (see {@link ScriptMonitor}).
+ */
+public interface ScriptMonitorMBean {
+
+	String getName();
+
+	String getConfiguration();
+
+	/**
+	 * Get whether the script is simulated by kernels rather than the emitter
+	 * runtime.
+	 *
+	 * @return kernels
+	 */
+	boolean isKernels();
+
+	int getAlive();
+
+	int getQuota();
+
+	/**
+	 * Get the particles allocated to the script by the particle budget.
+	 *
+	 * @return allocated
+	 */
+	int getAllocated();
+
+	boolean isThrottled();
+
+	/**
+	 * Get the number of particles there is currently storage for.
+	 *
+	 * @return pool size
+	 */
+	int getPoolSize();
+
+	/**
+	 * Estimate the memory used by the particle storage and mesh buffers.
+	 *
+	 * @return bytes
+	 */
+	long getMemoryUsage();
+
+	/**
+	 * Get the average update time per frame over the last second.
+	 *
+	 * @return milliseconds
+	 */
+	float getUpdateMillis();
+
+	float getUpdateMillis50();
+
+	float getUpdateMillis90();
+
+	float getUpdateMillis99();
+
+	float getEmittedPerSecond();
+
+	float getKilledPerSecond();
+
+	float getVertexKilobytesPerSecond();
+
+	/**
+	 * Get the average bytes allocated updating the script per frame over the
+	 * last second, while tracking allocations.
+	 *
+	 * @return bytes
+	 */
+	float getAllocatedPerFrame();
+
+	float getAllocatedPerParticle();
+
+	/**
+	 * Get the proportion of the slots iterated each step that held live
+	 * particles over the last second.
+	 *
+	 * @return ratio, from 0 to 1
+	 */
+	float getLiveRatio();
+}
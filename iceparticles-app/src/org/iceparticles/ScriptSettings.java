@@ -0,0 +1,191 @@
+package org.iceparticles;
+
+import java.util.Properties;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.iceparticles.sim.ParticleRandom;
+
+/**
+ * Settings of a script that are only used by Iceparticles, and so are not
+ * part of the OGRE script format. They are kept in {@link ParticleSettings},
+ * saved alongside the particle file the script is in.
+ */
+public class ScriptSettings {
+
+	/**
+	 * What happens to a script while it is outside the view.
+	 */
+	public enum Offscreen {
+		/**
+		 * Keep simulating as normal, e.g. for long trails that must always be
+		 * correct.
+		 */
+		SIMULATE,
+		/**
+		 * Keep simulating, but only every few frames.
+		 */
+		THROTTLE,
+		/**
+		 * Stop simulating, and quickly catch up when visible again.
+		 */
+		SUSPEND
+	}
+
+	public final static int DEFAULT_PRIORITY = 5;
+	public final static Offscreen DEFAULT_OFFSCREEN = Offscreen.SUSPEND;
+	public final static int MAX_PRIORITY = 10;
+
+	private final static Logger LOG = Logger.getLogger(ScriptSettings.class.getName());
+
+	private final String name;
+	private final ScriptLod lod = new ScriptLod();
+	private int priority = DEFAULT_PRIORITY;
+	private float prewarm;
+	private long seed;
+	private Offscreen offscreen = DEFAULT_OFFSCREEN;
+
+	public ScriptSettings(String name) {
+		this.name = name;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public ScriptLod getLod() {
+		return lod;
+	}
+
+	/**
+	 * Get the priority of the script when sharing out the particle budget
+	 * (see {@link ParticleBudget}), from 1 to {@value #MAX_PRIORITY}.
+	 *
+	 * @return priority
+	 */
+	public int getPriority() {
+		return priority;
+	}
+
+	public void setPriority(int priority) {
+		this.priority = Math.max(1, Math.min(MAX_PRIORITY, priority));
+	}
+
+	/**
+	 * Get the number of seconds the script is fast forwarded by when it is
+	 * activated, so long lived effects start at their steady state.
+	 *
+	 * @return prewarm seconds
+	 */
+	public float getPrewarm() {
+		return prewarm;
+	}
+
+	public void setPrewarm(float prewarm) {
+		this.prewarm = Math.max(0, prewarm);
+	}
+
+	/**
+	 * Get the seed the random streams of the script are derived from. Only
+	 * scripts simulated with kernels are seeded, the emitter runtime draws
+	 * from a generator shared with the rest of the application, so is not
+	 * repeatable.
+	 *
+	 * @return seed, zero to derive it from the name of the script
+	 */
+	public long getSeed() {
+		return seed;
+	}
+
+	public void setSeed(long seed) {
+		this.seed = seed;
+	}
+
+	/**
+	 * Get the seed actually used, so that the script looks the same every time
+	 * it is run even if no seed has been set.
+	 *
+	 * @return seed
+	 */
+	public long getEffectiveSeed() {
+		return ParticleRandom.seedFor(name, seed);
+	}
+
+	/**
+	 * Get what happens to the script while it is outside the view.
+	 *
+	 * @return off-screen policy
+	 */
+	public Offscreen getOffscreen() {
+		return offscreen;
+	}
+
+	public void setOffscreen(Offscreen offscreen) {
+		this.offscreen = offscreen == null ? DEFAULT_OFFSCREEN : offscreen;
+	}
+
+	public boolean isDefault() {
+		return !lod.isEnabled() && priority == DEFAULT_PRIORITY && prewarm == 0 && seed == 0
+				&& offscreen == DEFAULT_OFFSCREEN;
+	}
+
+	void load(Properties properties) {
+		lod.load(properties, name);
+		String val = properties.getProperty("priority." + name);
+		if (val != null) {
+			try {
+				setPriority(Integer.parseInt(val.trim()));
+			} catch (NumberFormatException nfe) {
+				LOG.log(Level.WARNING, String.format("Invalid priority for %s, '%s'", name, val), nfe);
+			}
+		}
+		val = properties.getProperty("prewarm." + name);
+		if (val != null) {
+			try {
+				setPrewarm(Float.parseFloat(val.trim()));
+			} catch (NumberFormatException nfe) {
+				LOG.log(Level.WARNING, String.format("Invalid prewarm for %s, '%s'", name, val), nfe);
+			}
+		}
+		val = properties.getProperty("seed." + name);
+		if (val != null) {
+			try {
+				setSeed(Long.parseLong(val.trim()));
+			} catch (NumberFormatException nfe) {
+				LOG.log(Level.WARNING, String.format("Invalid seed for %s, '%s'", name, val), nfe);
+			}
+		}
+		val = properties.getProperty("offscreen." + name);
+		if (val != null) {
+			try {
+				setOffscreen(Offscreen.valueOf(val.trim().toUpperCase()));
+			} catch (IllegalArgumentException iae) {
+				LOG.log(Level.WARNING, String.format("Invalid offscreen for %s, '%s'", name, val), iae);
+			}
+		}
+	}
+
+	void store(Properties properties) {
+		lod.store(properties, name);
+		if (priority == DEFAULT_PRIORITY) {
+			properties.remove("priority." + name);
+		} else {
+			properties.setProperty("priority." + name, String.valueOf(priority));
+		}
+		if (prewarm == 0) {
+			properties.remove("prewarm." + name);
+		} else {
+			properties.setProperty("prewarm." + name, String.valueOf(prewarm));
+		}
+		if (seed == 0) {
+			properties.remove("seed." + name);
+		} else {
+			properties.setProperty("seed." + name, String.valueOf(seed));
+		}
+		if (offscreen == DEFAULT_OFFSCREEN) {
+			properties.remove("offscreen." + name);
+		} else {
+			properties.setProperty("offscreen." + name, offscreen.name().toLowerCase());
+		}
+	}
+}
@@ -0,0 +1,282 @@
+package org.iceparticles;
+
+import java.beans.BeanInfo;
+import java.beans.IntrospectionException;
+import java.beans.Introspector;
+import java.beans.PropertyDescriptor;
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.icescene.ogreparticle.AbstractOGREParticleEmitter;
+import org.icescene.ogreparticle.OGREParticleAffector;
+import org.icescene.ogreparticle.OGREParticleConfiguration;
+import org.icescene.ogreparticle.OGREParticleEmitter;
+import org.icescene.ogreparticle.OGREParticleScript;
+
+/**
+ * Captures the editable state of an {@link OGREParticleScript} so that two
+ * versions of a script can be compared, and the live particles patched rather
+ * than rebuilt.
+ */
+public class ScriptSnapshot {
+
+	private final static Logger LOG = Logger.getLogger(ScriptSnapshot.class.getName());
+
+	/**
+	 * Emitter properties that the live emitter runtime can take without the
+	 * emitter being recreated (see {@link EmitterPatcher}). These are the bean
+	 * names of the accessors of {@link AbstractOGREParticleEmitter} that the
+	 * kernels are also compiled from. A change to any other property, such as
+	 * the position or shape, recreates the emitter.
+	 */
+	private final static Set<String> PATCHABLE = patchable("emissionRate", "minTimeToLive", "maxTimeToLive",
+			"minParticleVelocity", "maxParticleVelocity", "colourRangeStart", "colourRangeEnd");
+
+	/**
+	 * The result of comparing two snapshots.
+	 */
+	public static class Patch {
+		private boolean structural;
+		private boolean quota;
+		private boolean affectors;
+		private final BitSet emitters = new BitSet();
+		private final BitSet recreated = new BitSet();
+
+		/**
+		 * Get if the change cannot be applied to the live emitters and the
+		 * whole script must be rebuilt.
+		 *
+		 * @return structural change
+		 */
+		public boolean isStructural() {
+			return structural;
+		}
+
+		public boolean isQuota() {
+			return quota;
+		}
+
+		/**
+		 * Get if the parameters of any affector changed. As every emitter has
+		 * its own copy of the affectors, all of them must be patched.
+		 *
+		 * @return affector parameters changed
+		 */
+		public boolean isAffectors() {
+			return affectors;
+		}
+
+		/**
+		 * Get the indexes of the emitters whose own parameters changed, and
+		 * may be patched in place.
+		 *
+		 * @return changed emitters
+		 */
+		public BitSet getEmitters() {
+			return emitters;
+		}
+
+		/**
+		 * Get the indexes of the emitters that changed in a way that cannot be
+		 * patched, so must be recreated.
+		 *
+		 * @return recreated emitters
+		 */
+		public BitSet getRecreated() {
+			return recreated;
+		}
+
+		public boolean isEmpty() {
+			return !structural && !quota && !affectors && emitters.isEmpty() && recreated.isEmpty();
+		}
+	}
+
+	private final Map<String, Object> scriptProperties = new LinkedHashMap<String, Object>();
+	private final List<Map<String, Object>> emitters = new ArrayList<Map<String, Object>>();
+	private final List<Map<String, Object>> affectors = new ArrayList<Map<String, Object>>();
+	private final int quota;
+
+	public ScriptSnapshot(OGREParticleScript script) {
+		quota = script.getQuota();
+		scriptProperties.put("materialName", script.getMaterialName());
+		scriptProperties.put("sorted", copy(script.isSorted()));
+		scriptProperties.put("cullEach", copy(script.isCullEach()));
+		scriptProperties.put("localSpace", copy(script.isLocalSpace()));
+		scriptProperties.put("billboardType", copy(script.getBillboardType()));
+		scriptProperties.put("billboardOrigin", copy(script.getBillboardOrigin()));
+		scriptProperties.put("billboardRotation", copy(script.getBillboardRotation()));
+		scriptProperties.put("directionType", copy(script.getDirectionType()));
+		scriptProperties.put("particleSize", copy(script.getParticleSize()));
+		scriptProperties.put("commonDirection", copy(script.getCommonDirection()));
+		scriptProperties.put("commonUpVector", copy(script.getCommonUpVector()));
+		for (OGREParticleEmitter e : script.getEmitters()) {
+			emitters.add(properties(e));
+		}
+		for (OGREParticleAffector a : script.getAffectors()) {
+			affectors.add(properties(a));
+		}
+	}
+
+	/**
+	 * Compare this (the newer) snapshot against a previous one.
+	 *
+	 * @param previous previous snapshot
+	 * @return patch
+	 */
+	public Patch diff(ScriptSnapshot previous) {
+		Patch patch = new Patch();
+		/*
+		 * Anything script wide (material, billboarding etc) is baked into every
+		 * emitter, so can only be applied by rebuilding. Same goes for adding,
+		 * removing or changing the type of emitters or affectors.
+		 */
+		if (!same(scriptProperties, previous.scriptProperties) || emitters.size() != previous.emitters.size()
+				|| affectors.size() != previous.affectors.size()) {
+			patch.structural = true;
+			return patch;
+		}
+		for (int i = 0; i < affectors.size(); i++) {
+			Map<String, Object> now = affectors.get(i);
+			Map<String, Object> was = previous.affectors.get(i);
+			if (!now.get("class").equals(was.get("class"))) {
+				patch.structural = true;
+				return patch;
+			}
+			if (!same(now, was)) {
+				patch.affectors = true;
+			}
+		}
+		patch.quota = quota != previous.quota;
+		for (int i = 0; i < emitters.size(); i++) {
+			Map<String, Object> now = emitters.get(i);
+			Map<String, Object> was = previous.emitters.get(i);
+			if (!now.get("class").equals(was.get("class"))) {
+				patch.structural = true;
+				return patch;
+			}
+			if (!same(now, was)) {
+				if (patchable(now, was)) {
+					patch.emitters.set(i);
+				} else {
+					patch.recreated.set(i);
+				}
+			}
+		}
+		return patch;
+	}
+
+	private static boolean same(Map<String, Object> now, Map<String, Object> was) {
+		if (!now.keySet().equals(was.keySet())) {
+			return false;
+		}
+		for (Map.Entry<String, Object> en : now.entrySet()) {
+			if (!Objects.deepEquals(en.getValue(), was.get(en.getKey()))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean patchable(Map<String, Object> now, Map<String, Object> was) {
+		if (!now.keySet().equals(was.keySet())) {
+			return false;
+		}
+		for (Map.Entry<String, Object> en : now.entrySet()) {
+			if (!PATCHABLE.contains(en.getKey()) && !Objects.deepEquals(en.getValue(), was.get(en.getKey()))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Copy a property value, so that a value the editor changes in place
+	 * (such as a vector or colour) is not also changed in the snapshot.
+	 */
+	private static Object copy(Object value) {
+		if (value == null) {
+			return null;
+		}
+		Class<?> type = value.getClass();
+		if (type.isArray()) {
+			int length = Array.getLength(value);
+			Object copy = Array.newInstance(type.getComponentType(), length);
+			for (int i = 0; i < length; i++) {
+				Array.set(copy, i, copy(Array.get(value, i)));
+			}
+			return copy;
+		}
+		if (value instanceof Cloneable) {
+			try {
+				Method clone = type.getMethod("clone");
+				if (Modifier.isPublic(clone.getDeclaringClass().getModifiers())) {
+					return clone.invoke(value);
+				}
+			} catch (Exception e) {
+				LOG.log(Level.FINE, String.format("Could not copy %s", value), e);
+			}
+		}
+		return value;
+	}
+
+	/**
+	 * Check each patchable property is a property of every emitter, so that a
+	 * name that does not exist is reported rather than never patched.
+	 */
+	private static Set<String> patchable(String... names) {
+		Set<String> found = new HashSet<String>();
+		try {
+			for (PropertyDescriptor pd : Introspector.getBeanInfo(AbstractOGREParticleEmitter.class)
+					.getPropertyDescriptors()) {
+				found.add(pd.getName());
+			}
+		} catch (IntrospectionException ie) {
+			LOG.log(Level.WARNING, "Could not introspect emitters, no changes will be patched.", ie);
+		}
+		Set<String> patchable = new HashSet<String>();
+		for (String name : names) {
+			if (found.contains(name)) {
+				patchable.add(name);
+			} else {
+				LOG.warning(String.format("Emitters have no property %s, changes to it will recreate the emitter.",
+						name));
+			}
+		}
+		return patchable;
+	}
+
+	private static Map<String, Object> properties(Object bean) {
+		Map<String, Object> props = new LinkedHashMap<String, Object>();
+		props.put("class", bean.getClass().getName());
+		try {
+			BeanInfo info = Introspector.getBeanInfo(bean.getClass(), Object.class);
+			for (PropertyDescriptor pd : info.getPropertyDescriptors()) {
+				Method read = pd.getReadMethod();
+				Class<?> type = pd.getPropertyType();
+				if (read == null || type == null || OGREParticleScript.class.isAssignableFrom(type)
+						|| OGREParticleConfiguration.class.isAssignableFrom(type)) {
+					continue;
+				}
+				try {
+					props.put(pd.getName(), copy(read.invoke(bean)));
+				} catch (Exception e) {
+					LOG.log(Level.FINE, String.format("Could not read %s of %s", pd.getName(), bean), e);
+				}
+			}
+		} catch (IntrospectionException ie) {
+			LOG.log(Level.WARNING, String.format("Could not introspect %s", bean), ie);
+		}
+		return props;
+	}
+}
@@ -44,6 +44,61 @@ public class UIAppState extends AbstractSceneUIAppState {
 			}).setMenu("View").setStyle(Style.TOGGLE).setActive(prefs.getBoolean(
 					ParticleConfig.PARTICLES_DEBUG_PARTICLES, ParticleConfig.PARTICLES_DEBUG_PARTICLES_DEFAULT)));
 
+			menuBar.addAction(new AppAction("Kernel Simulation", evt -> {
+				prefs.putBoolean(ParticleConfig.PARTICLES_KERNELS, evt.getSourceAction().isActive());
+			}).setMenu("View").setStyle(Style.TOGGLE).setActive(
+					prefs.getBoolean(ParticleConfig.PARTICLES_KERNELS, ParticleConfig.PARTICLES_KERNELS_DEFAULT)));
+
+			menuBar.addAction(new AppAction("Parallel Affectors", evt -> {
+				prefs.putBoolean(ParticleConfig.PARTICLES_PARALLEL, evt.getSourceAction().isActive());
+			}).setMenu("View").setStyle(Style.TOGGLE).setActive(
+					prefs.getBoolean(ParticleConfig.PARTICLES_PARALLEL, ParticleConfig.PARTICLES_PARALLEL_DEFAULT)));
+
+			menuBar.addAction(new AppAction("Fuse Affectors", evt -> {
+				prefs.putBoolean(ParticleConfig.PARTICLES_FUSED, evt.getSourceAction().isActive());
+			}).setMenu("View").setStyle(Style.TOGGLE).setActive(
+					prefs.getBoolean(ParticleConfig.PARTICLES_FUSED, ParticleConfig.PARTICLES_FUSED_DEFAULT)));
+
+			menuBar.addAction(new AppAction("Generate Kernels", evt -> {
+				prefs.putBoolean(ParticleConfig.PARTICLES_GENERATED, evt.getSourceAction().isActive());
+			}).setMenu("View").setStyle(Style.TOGGLE).setActive(prefs.getBoolean(ParticleConfig.PARTICLES_GENERATED,
+					ParticleConfig.PARTICLES_GENERATED_DEFAULT)));
+
+			menuBar.addAction(new AppAction("Compact Particles", evt -> {
+				prefs.putBoolean(ParticleConfig.PARTICLES_COMPACT, evt.getSourceAction().isActive());
+			}).setMenu("View").setStyle(Style.TOGGLE).setActive(
+					prefs.getBoolean(ParticleConfig.PARTICLES_COMPACT, ParticleConfig.PARTICLES_COMPACT_DEFAULT)));
+
+			menuBar.addAction(new AppAction("Concurrent Scripts", evt -> {
+				prefs.putBoolean(ParticleConfig.PARTICLES_CONCURRENT, evt.getSourceAction().isActive());
+			}).setMenu("View").setStyle(Style.TOGGLE).setActive(
+					prefs.getBoolean(ParticleConfig.PARTICLES_CONCURRENT, ParticleConfig.PARTICLES_CONCURRENT_DEFAULT)));
+
+			menuBar.addAction(new AppAction("Asynchronous Simulation", evt -> {
+				prefs.putBoolean(ParticleConfig.PARTICLES_ASYNC, evt.getSourceAction().isActive());
+			}).setMenu("View").setStyle(Style.TOGGLE).setActive(
+					prefs.getBoolean(ParticleConfig.PARTICLES_ASYNC, ParticleConfig.PARTICLES_ASYNC_DEFAULT)));
+
+			menuBar.addAction(new AppAction("Batch By Material", evt -> {
+				prefs.putBoolean(ParticleConfig.PARTICLES_BATCH, evt.getSourceAction().isActive());
+			}).setMenu("View").setStyle(Style.TOGGLE).setActive(
+					prefs.getBoolean(ParticleConfig.PARTICLES_BATCH, ParticleConfig.PARTICLES_BATCH_DEFAULT)));
+
+			menuBar.addAction(new AppAction("Fixed Timestep", evt -> {
+				prefs.putBoolean(ParticleConfig.PARTICLES_FIXED_STEP, evt.getSourceAction().isActive());
+			}).setMenu("View").setStyle(Style.TOGGLE).setActive(
+					prefs.getBoolean(ParticleConfig.PARTICLES_FIXED_STEP, ParticleConfig.PARTICLES_FIXED_STEP_DEFAULT)));
+
+			menuBar.addAction(new AppAction("Track Allocations", evt -> {
+				prefs.putBoolean(ParticleConfig.PARTICLES_TRACK_ALLOCATIONS, evt.getSourceAction().isActive());
+			}).setMenu("View").setStyle(Style.TOGGLE).setActive(prefs.getBoolean(
+					ParticleConfig.PARTICLES_TRACK_ALLOCATIONS, ParticleConfig.PARTICLES_TRACK_ALLOCATIONS_DEFAULT)));
+
+			menuBar.addAction(new AppAction("Suspend Off-screen", evt -> {
+				prefs.putBoolean(ParticleConfig.PARTICLES_OFFSCREEN, evt.getSourceAction().isActive());
+			}).setMenu("View").setStyle(Style.TOGGLE).setActive(
+					prefs.getBoolean(ParticleConfig.PARTICLES_OFFSCREEN, ParticleConfig.PARTICLES_OFFSCREEN_DEFAULT)));
+
 			menuBar.validate();
 		}
 
@@ -0,0 +1,127 @@
+package org.iceparticles.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.iceparticles.sim.AllocationMeter;
+import org.iceparticles.sim.DepthSorter;
+import org.iceparticles.sim.ParticleMeshBuilder;
+import org.iceparticles.sim.ScriptSimulation;
+import org.iceparticles.sim.ScriptStats;
+import org.icescene.ogreparticle.OGREParticleScript;
+import org.icescene.ogreparticle.emitters.PointEmitter;
+
+/**
+ * Checks that updating the reference scripts allocates nothing once they have
+ * reached their steady state. The reference scripts are a single emitter of
+ * each type, and a point emitter with a single affector of each type, each
+ * both unsorted and sorted. Every script is updated the way the kernel
+ * runtime updates it (simulated, sorted and built into a mesh), with stats
+ * being collected.
+ * <p>
+ * Prints the bytes allocated per frame and per particle of each script, and
+ * exits with a status of 1 if any allocated, so may be run as part of a
+ * build. An optional argument sets the quota of the scripts.
+ */
+public class AllocationCheck {
+
+	private final static float STEP = 1f / 60f;
+
+	/**
+	 * Frames updated before measuring, enough for the scripts to fill their
+	 * quota, and for the update path to be compiled.
+	 */
+	private final static int WARMUP_FRAMES = 5000;
+
+	private final static int MEASURED_FRAMES = 1000;
+
+	/**
+	 * Rounds of measured frames, the least is taken so a one off allocation
+	 * (e.g. by the JIT compiler deoptimising) is not counted.
+	 */
+	private final static int ROUNDS = 3;
+
+	private final static int DEFAULT_QUOTA = 10000;
+
+	public static void main(String[] args) throws Exception {
+		if (!AllocationMeter.isSupported()) {
+			System.err.println("This JVM does not measure thread allocation.");
+			System.exit(2);
+		}
+		int quota = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_QUOTA;
+		List<String> failed = new ArrayList<String>();
+		for (boolean sorted : new boolean[] { false, true }) {
+			for (String emitterType : ParticleTypes.getEmitterTypes()) {
+				OGREParticleScript script = ParticleTypes.createScript(quota, sorted, false);
+				ParticleTypes.addEmitter(script, emitterType);
+				check(simpleName(emitterType), script, failed);
+			}
+			for (String affectorType : ParticleTypes.getAffectorTypes()) {
+				OGREParticleScript script = ParticleTypes.createScript(quota, sorted, false);
+				ParticleTypes.addEmitter(script, PointEmitter.class.getName());
+				ParticleTypes.addAffector(script, affectorType);
+				check(simpleName(affectorType), script, failed);
+			}
+		}
+		if (failed.isEmpty()) {
+			System.out.println("No steady state allocation.");
+		} else {
+			System.out.println(String.format("%d script(s) allocated: %s", failed.size(), failed));
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Measure the bytes allocated per frame updating a simulation after it has
+	 * reached its steady state.
+	 *
+	 * @param simulation simulation
+	 * @return bytes per frame
+	 */
+	public static float measure(ScriptSimulation simulation) {
+		DepthSorter sorter = new DepthSorter();
+		ParticleMeshBuilder builder = new ParticleMeshBuilder();
+		for (int i = 0; i < WARMUP_FRAMES; i++) {
+			update(simulation, sorter, builder);
+		}
+		long least = Long.MAX_VALUE;
+		for (int r = 0; r < ROUNDS; r++) {
+			long start = AllocationMeter.getAllocatedBytes();
+			for (int i = 0; i < MEASURED_FRAMES; i++) {
+				update(simulation, sorter, builder);
+			}
+			least = Math.min(least, AllocationMeter.since(start));
+		}
+		return least / (float) MEASURED_FRAMES;
+	}
+
+	private static void check(String name, OGREParticleScript script, List<String> failed) {
+		String label = String.format("%s%s", name, script.isSorted() ? " (sorted)" : "");
+		ScriptSimulation simulation = new ScriptSimulation(script);
+		simulation.setStats(new ScriptStats(script.getName()));
+		float bytes = measure(simulation);
+		int alive = simulation.getStore().getActiveCount();
+		System.out.println(String.format("%-40s %10.1f B/frame %8.3f B/particle", label, bytes,
+				alive == 0 ? 0 : bytes / alive));
+		if (bytes > 0) {
+			failed.add(label);
+		}
+	}
+
+	private static void update(ScriptSimulation simulation, DepthSorter sorter, ParticleMeshBuilder builder) {
+		simulation.step(STEP);
+		simulation.getStats().frame();
+		builder.begin();
+		if (simulation.getScript().isSorted()) {
+			sorter.sort(simulation.getStore(), 0, 0, -10, 0, 0, 1);
+			builder.add(simulation.getStore(), sorter.getOrder(), sorter.getCount(), 1, 0, 0, 0, 1, 0);
+		} else {
+			builder.add(simulation.getStore(), 1, 0, 0, 0, 1, 0);
+		}
+		builder.end();
+	}
+
+	private static String simpleName(String className) {
+		return className.substring(className.lastIndexOf('.') + 1);
+	}
+}
@@ -0,0 +1,48 @@
+package org.iceparticles.benchmarks;
+
+import java.util.List;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks against every emitter and affector type found on the
+ * classpath, writing the results as JSON (to <code>benchmarks.json</code> by
+ * default) so they may be compared between releases.
+ * <p>
+ * Any standard JMH arguments are also accepted, e.g. <code>-p quota=1000</code>
+ * to restrict the quotas or <code>-rff other.json</code> to change the result
+ * file.
+ */
+public class BenchmarkMain {
+
+	public static void main(String[] args) throws Exception {
+		CommandLineOptions cmdLine = new CommandLineOptions(args);
+		ChainedOptionsBuilder opts = new OptionsBuilder().parent(cmdLine);
+		if (cmdLine.getIncludes().isEmpty()) {
+			opts.include(EmitterUpdateBenchmark.class.getSimpleName());
+			opts.include(AffectorUpdateBenchmark.class.getSimpleName());
+			opts.include(DepthSortBenchmark.class.getSimpleName());
+			opts.include(FusedAffectorBenchmark.class.getSimpleName());
+			opts.include(GeneratedKernelBenchmark.class.getSimpleName());
+		}
+		if (!cmdLine.getParameter("emitterType").hasValue()) {
+			List<String> emitters = ParticleTypes.getEmitterTypes();
+			opts.param("emitterType", emitters.toArray(new String[0]));
+		}
+		if (!cmdLine.getParameter("affectorType").hasValue()) {
+			List<String> affectors = ParticleTypes.getAffectorTypes();
+			opts.param("affectorType", affectors.toArray(new String[0]));
+		}
+		if (!cmdLine.getResultFormat().hasValue()) {
+			opts.resultFormat(ResultFormatType.JSON);
+		}
+		if (!cmdLine.getResult().hasValue()) {
+			opts.result("benchmarks.json");
+		}
+		new Runner(opts.build()).run();
+	}
+}
@@ -0,0 +1,73 @@
+package org.iceparticles.benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.iceparticles.sim.DepthSorter;
+import org.iceparticles.sim.ParticleStore;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Back to front sorting of a field of slowly moving particles, comparing the
+ * incremental sort (re-using the previous frame's order) against sorting from
+ * scratch every frame.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class DepthSortBenchmark {
+
+	private final static float STEP = 1f / 60f;
+
+	@Param({ "1000", "10000", "100000" })
+	public int particles;
+
+	private ParticleStore store;
+	private DepthSorter sorter;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		Random random = new Random(0);
+		store = new ParticleStore(particles);
+		for (int n = 0; n < particles; n++) {
+			int i = store.allocate();
+			store.px[i] = random.nextFloat() * 100;
+			store.py[i] = random.nextFloat() * 100;
+			store.pz[i] = random.nextFloat() * 100;
+			store.vz[i] = (random.nextFloat() - 0.5f) * 0.05f;
+			store.life[i] = Float.MAX_VALUE;
+		}
+		sorter = new DepthSorter();
+		sorter.sort(store, 50, 50, -10, 0, 0, 1);
+	}
+
+	@Benchmark
+	public int incremental() {
+		move();
+		sorter.sort(store, 50, 50, -10, 0, 0, 1);
+		return sorter.getCount();
+	}
+
+	@Benchmark
+	public int full() {
+		move();
+		sorter.reset();
+		sorter.sort(store, 50, 50, -10, 0, 0, 1);
+		return sorter.getCount();
+	}
+
+	private void move() {
+		final float[] pz = store.pz, vz = store.vz;
+		for (int i = 0; i < particles; i++) {
+			pz[i] += vz[i] * STEP;
+		}
+	}
+}
@@ -0,0 +1,58 @@
+package org.iceparticles.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.iceparticles.sim.HeadlessSimulation;
+import org.icescene.ogreparticle.OGREParticleScript;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Update throughput of a script containing a single emitter of each type.
+ * Emitter types are supplied by {@link BenchmarkMain}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class EmitterUpdateBenchmark {
+
+	@Param
+	public String emitterType;
+
+	@Param({ "100", "1000", "10000", "100000", "999999" })
+	public int quota;
+
+	@Param({ "false", "true" })
+	public boolean sorted;
+
+	@Param({ "false", "true" })
+	public boolean localSpace;
+
+	private HeadlessSimulation sim;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		OGREParticleScript script = ParticleTypes.createScript(quota, sorted, localSpace);
+		ParticleTypes.addEmitter(script, emitterType);
+		sim = new HeadlessSimulation(ParticleTypes.createAssetManager());
+		sim.addScript(script);
+
+		// Reach steady state before measuring
+		sim.run(2f);
+	}
+
+	@Benchmark
+	public int update(ParticleCounters counters) {
+		sim.step();
+		int active = sim.getActiveParticleCount();
+		counters.particles += active;
+		return active;
+	}
+}
@@ -0,0 +1,91 @@
+package org.iceparticles.benchmarks;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.iceparticles.sim.AffectorKernel;
+import org.iceparticles.sim.ColourFaderKernel;
+import org.iceparticles.sim.ColourInterpolatorKernel;
+import org.iceparticles.sim.FusedAffectorChain;
+import org.iceparticles.sim.LinearForceKernel;
+import org.iceparticles.sim.ParticleRandom;
+import org.iceparticles.sim.ParticleStore;
+import org.iceparticles.sim.RotatorKernel;
+import org.iceparticles.sim.ScalerKernel;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Applying a chain of affectors to a full store, one pass per affector
+ * against a single fused pass (see {@link FusedAffectorChain}). Once the
+ * store no longer fits in cache, the time of the separate passes grows with
+ * the length of the chain much faster than that of the fused pass.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class FusedAffectorBenchmark {
+
+	private final static float STEP = 1f / 60f;
+
+	@Param({ "10000", "100000", "999999" })
+	public int particles;
+
+	@Param({ "1", "2", "3", "4", "5" })
+	public int affectors;
+
+	private ParticleStore store;
+	private AffectorKernel[] chain;
+	private FusedAffectorChain fused;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		Random random = new Random(0);
+		store = new ParticleStore(particles);
+		store.reserve(particles);
+		for (int n = 0; n < particles; n++) {
+			int i = store.allocate();
+			store.vx[i] = random.nextFloat() - 0.5f;
+			store.vy[i] = random.nextFloat() - 0.5f;
+			store.vz[i] = random.nextFloat() - 0.5f;
+			store.width[i] = store.height[i] = 1;
+			store.totalLife[i] = Float.MAX_VALUE;
+			store.life[i] = random.nextFloat() * Float.MAX_VALUE;
+		}
+		AffectorKernel[] all = { new LinearForceKernel(0, -1, 0, false), new ColourFaderKernel(-0.1f, -0.1f, 0, -0.2f),
+				new ScalerKernel(0.5f), new RotatorKernel(0, 0, -1, 1, new ParticleRandom(0)),
+				new ColourInterpolatorKernel(new float[] { 0, 0.5f, 1 },
+						new float[] { 1, 1, 1, 1, 1, 0.5f, 0, 1, 0, 0, 0, 0 }) };
+		chain = Arrays.copyOf(all, affectors);
+		for (AffectorKernel k : chain) {
+			for (int i = 0; i < particles; i++) {
+				k.initialise(store, i);
+			}
+		}
+		fused = new FusedAffectorChain(chain);
+	}
+
+	@Benchmark
+	public int separate() {
+		final int end = store.getEnd();
+		for (AffectorKernel k : chain) {
+			k.apply(store, 0, end, STEP);
+		}
+		return end;
+	}
+
+	@Benchmark
+	public int fused() {
+		final int end = store.getEnd();
+		fused.apply(store, 0, end, STEP, null);
+		return end;
+	}
+}
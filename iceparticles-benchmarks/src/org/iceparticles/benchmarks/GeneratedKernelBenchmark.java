@@ -0,0 +1,71 @@
+package org.iceparticles.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.iceparticles.sim.KernelGenerator;
+import org.iceparticles.sim.ScriptSimulation;
+import org.icescene.ogreparticle.OGREParticleScript;
+import org.icescene.ogreparticle.emitters.PointEmitter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Update throughput of the reference scripts (a point emitter with affectors
+ * of a single type) with the affector chain interpreted, against a kernel
+ * generated for the chain (see {@link KernelGenerator}). Scripts are stacked
+ * with more than one affector of the type, as effects often have several
+ * faders or scalers. Affector types are supplied by {@link BenchmarkMain},
+ * types that cannot be generated are always interpreted.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class GeneratedKernelBenchmark {
+
+	private final static float STEP = 1f / 60f;
+
+	@Param
+	public String affectorType;
+
+	@Param({ "1000", "100000", "999999" })
+	public int quota;
+
+	@Param({ "1", "4" })
+	public int depth;
+
+	@Param({ "false", "true" })
+	public boolean generated;
+
+	private ScriptSimulation simulation;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		OGREParticleScript script = ParticleTypes.createScript(quota, false, false);
+		ParticleTypes.addEmitter(script, PointEmitter.class.getName());
+		for (int i = 0; i < depth; i++) {
+			ParticleTypes.addAffector(script, affectorType);
+		}
+		simulation = new ScriptSimulation(script);
+		simulation.setGenerated(generated);
+
+		// Reach steady state before measuring
+		for (int i = 0; i < Math.round(2f / STEP); i++) {
+			simulation.step(STEP);
+		}
+	}
+
+	@Benchmark
+	public int update(ParticleCounters counters) {
+		simulation.step(STEP);
+		int active = simulation.getStore().getActiveCount();
+		counters.particles += active;
+		return active;
+	}
+}
@@ -0,0 +1,253 @@
+package org.iceparticles.benchmarks;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.iceparticles.sim.ParticleMeshBuilder;
+import org.iceparticles.sim.ParticleStore;
+
+import com.jme3.math.FastMath;
+import com.jme3.scene.Mesh;
+import com.jme3.scene.VertexBuffer.Type;
+
+/**
+ * Checks the mesh written by {@link ParticleMeshBuilder} without a renderer.
+ * Stores of known particles are built, and the position, texture coordinate,
+ * colour and index buffers, and the number of quads, compared against the
+ * quads expected of them. The camera looks down -Z, so the right axis is X and
+ * the up axis is Y, and the expected corners can be worked out by hand.
+ * <p>
+ * Covers dead slots, rotation, drawing in a given order, interpolation and the
+ * buffers growing with particles already added. Prints each failure, and exits
+ * with a status of 1 if there were any, so may be run as part of a build.
+ */
+public class MeshBuilderCheck {
+
+	private final static float EPSILON = 1e-5f;
+
+	private final static List<String> failed = new ArrayList<String>();
+
+	public static void main(String[] args) {
+		checkDeadSlots();
+		checkRotation();
+		checkOrder();
+		checkInterpolation();
+		checkGrowth();
+		if (failed.isEmpty()) {
+			System.out.println("Mesh is as expected.");
+		} else {
+			for (String f : failed) {
+				System.out.println(f);
+			}
+			System.out.println(String.format("%d check(s) failed.", failed.size()));
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Dead slots are skipped, and the buffers hold exactly the live quads.
+	 */
+	private static void checkDeadSlots() {
+		ParticleStore s = new ParticleStore(3);
+		add(s, 1, 2, 3, 2, 4, 0, 1, 0.5f, 0.25f, 0.75f);
+		int dead = add(s, 9, 9, 9, 1, 1, 0, 0, 0, 0, 0);
+		add(s, -1, 0, 0, 1, 1, 0, 0, 1, 0, 1);
+		s.kill(dead);
+
+		ParticleMeshBuilder b = build(s);
+		expect("dead slots", "quads", 2, b.getQuads());
+		expect("dead slots", "vertex bytes", 2 * ParticleMeshBuilder.BYTES_PER_PARTICLE, b.getVertexBytes());
+		expect("dead slots", "triangles", 4, b.getMesh().getTriangleCount());
+		expect("dead slots", "vertices", 8, b.getMesh().getVertexCount());
+		expectQuad("dead slots", b.getMesh(), 0, new float[] { 0, 0, 3, 2, 0, 3, 2, 4, 3, 0, 4, 3 },
+				new float[] { 1, 0.5f, 0.25f, 0.75f });
+		expectQuad("dead slots", b.getMesh(), 1, new float[] { -1.5f, -0.5f, 0, -0.5f, -0.5f, 0, -0.5f, 0.5f, 0,
+				-1.5f, 0.5f, 0 }, new float[] { 0, 1, 0, 1 });
+		expectShared("dead slots", b.getMesh(), 2);
+	}
+
+	/**
+	 * A quarter turn turns the right edge of the quad to face up.
+	 */
+	private static void checkRotation() {
+		ParticleStore s = new ParticleStore(1);
+		add(s, 0, 0, 0, 2, 4, FastMath.HALF_PI, 1, 1, 1, 1);
+
+		ParticleMeshBuilder b = build(s);
+		expect("rotation", "quads", 1, b.getQuads());
+		expectQuad("rotation", b.getMesh(), 0, new float[] { 2, -1, 0, 2, 1, 0, -2, 1, 0, -2, -1, 0 },
+				new float[] { 1, 1, 1, 1 });
+		expectShared("rotation", b.getMesh(), 1);
+	}
+
+	/**
+	 * Particles added in order (as when sorted) are written in that order.
+	 */
+	private static void checkOrder() {
+		ParticleStore s = new ParticleStore(3);
+		add(s, 0, 0, 0, 2, 2, 0, 1, 0, 0, 1);
+		add(s, 5, 0, 0, 2, 2, 0, 0, 1, 0, 1);
+		add(s, 10, 0, 0, 2, 2, 0, 0, 0, 1, 1);
+
+		ParticleMeshBuilder b = new ParticleMeshBuilder();
+		b.begin();
+		b.add(s, new int[] { 2, 0 }, 2, 1, 0, 0, 0, 1, 0);
+		b.end();
+		expect("order", "quads", 2, b.getQuads());
+		expectQuad("order", b.getMesh(), 0, new float[] { 9, -1, 0, 11, -1, 0, 11, 1, 0, 9, 1, 0 },
+				new float[] { 0, 0, 1, 1 });
+		expectQuad("order", b.getMesh(), 1, new float[] { -1, -1, 0, 1, -1, 0, 1, 1, 0, -1, 1, 0 },
+				new float[] { 1, 0, 0, 1 });
+		expectShared("order", b.getMesh(), 2);
+	}
+
+	/**
+	 * Interpolated particles are placed between their last and current
+	 * positions, and only while an interpolation is set.
+	 */
+	private static void checkInterpolation() {
+		ParticleStore s = new ParticleStore(1);
+		s.setInterpolated(true);
+		int i = add(s, 4, 0, 0, 2, 2, 0, 1, 1, 1, 1);
+		s.lx[i] = 0;
+		s.ly[i] = 2;
+		s.lz[i] = 0;
+
+		ParticleMeshBuilder b = new ParticleMeshBuilder();
+		b.begin();
+		b.setInterpolation(0.25f);
+		b.add(s, 1, 0, 0, 0, 1, 0);
+		b.end();
+		expectQuad("interpolation", b.getMesh(), 0, new float[] { 0, 0.5f, 0, 2, 0.5f, 0, 2, 2.5f, 0, 0, 2.5f, 0 },
+				new float[] { 1, 1, 1, 1 });
+
+		// A new build starts at the current positions
+		b.begin();
+		b.add(s, 1, 0, 0, 0, 1, 0);
+		b.end();
+		expectQuad("interpolation", b.getMesh(), 0, new float[] { 3, -1, 0, 5, -1, 0, 5, 1, 0, 3, 1, 0 },
+				new float[] { 1, 1, 1, 1 });
+	}
+
+	/**
+	 * Quads added before the buffers grow are kept, and the shared texture
+	 * coordinates and indices cover the new capacity.
+	 */
+	private static void checkGrowth() {
+		ParticleMeshBuilder b = new ParticleMeshBuilder();
+		int first = b.getCapacity();
+		int count = first * 2 + 3;
+		ParticleStore s = new ParticleStore(count);
+		for (int i = 0; i < count; i++) {
+			add(s, i * 10, 0, 0, 2, 2, 0, i / (float) count, 0, 0, 1);
+		}
+
+		b.begin();
+		// Grows part way through, once the first store is already written
+		ParticleStore firstStore = new ParticleStore(first);
+		for (int i = 0; i < first; i++) {
+			add(firstStore, 0, i * 10, 0, 2, 2, 0, 0, 1, 0, 1);
+		}
+		b.add(firstStore, 1, 0, 0, 0, 1, 0);
+		b.add(s, 1, 0, 0, 0, 1, 0);
+		b.end();
+		expect("growth", "quads", first + count, b.getQuads());
+		if (b.getCapacity() < first + count) {
+			failed.add(String.format("growth: capacity %d is less than %d quads", b.getCapacity(), first + count));
+		}
+		for (int i = 0; i < first; i++) {
+			expectQuad("growth", b.getMesh(), i, new float[] { -1, i * 10 - 1, 0, 1, i * 10 - 1, 0, 1, i * 10 + 1, 0,
+					-1, i * 10 + 1, 0 }, new float[] { 0, 1, 0, 1 });
+		}
+		for (int i = 0; i < count; i++) {
+			expectQuad("growth", b.getMesh(), first + i, new float[] { i * 10 - 1, -1, 0, i * 10 + 1, -1, 0,
+					i * 10 + 1, 1, 0, i * 10 - 1, 1, 0 }, new float[] { i / (float) count, 0, 0, 1 });
+		}
+		expectShared("growth", b.getMesh(), first + count);
+	}
+
+	private static int add(ParticleStore s, float x, float y, float z, float w, float h, float rot, float r, float g,
+			float bl, float a) {
+		int i = s.allocate();
+		s.px[i] = x;
+		s.py[i] = y;
+		s.pz[i] = z;
+		s.vx[i] = s.vy[i] = s.vz[i] = 0;
+		s.width[i] = w;
+		s.height[i] = h;
+		s.rotation[i] = rot;
+		s.rotationSpeed[i] = 0;
+		s.r[i] = r;
+		s.g[i] = g;
+		s.b[i] = bl;
+		s.a[i] = a;
+		s.life[i] = s.totalLife[i] = 1;
+		return i;
+	}
+
+	private static ParticleMeshBuilder build(ParticleStore s) {
+		ParticleMeshBuilder b = new ParticleMeshBuilder();
+		b.begin();
+		b.add(s, 1, 0, 0, 0, 1, 0);
+		b.end();
+		return b;
+	}
+
+	private static void expectQuad(String check, Mesh mesh, int quad, float[] corners, float[] colour) {
+		FloatBuffer positions = (FloatBuffer) mesh.getBuffer(Type.Position).getData();
+		FloatBuffer colours = (FloatBuffer) mesh.getBuffer(Type.Color).getData();
+		for (int k = 0; k < 12; k++) {
+			float actual = positions.get(quad * 12 + k);
+			if (Math.abs(actual - corners[k]) > EPSILON) {
+				failed.add(String.format("%s: quad %d vertex %d %s is %f, expected %f", check, quad, k / 3,
+						"xyz".charAt(k % 3), actual, corners[k]));
+			}
+		}
+		for (int v = 0; v < 4; v++) {
+			for (int c = 0; c < 4; c++) {
+				float actual = colours.get(quad * 16 + v * 4 + c);
+				if (Math.abs(actual - colour[c]) > EPSILON) {
+					failed.add(String.format("%s: quad %d vertex %d %s is %f, expected %f", check, quad, v,
+							"rgba".charAt(c), actual, colour[c]));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Check the buffer limits, and the texture coordinates and indices shared
+	 * by every quad.
+	 */
+	private static void expectShared(String check, Mesh mesh, int quads) {
+		expect(check, "position floats", quads * 12, mesh.getBuffer(Type.Position).getData().limit());
+		expect(check, "colour floats", quads * 16, mesh.getBuffer(Type.Color).getData().limit());
+		expect(check, "texture coordinate floats", quads * 8, mesh.getBuffer(Type.TexCoord).getData().limit());
+		expect(check, "indices", quads * 6, mesh.getBuffer(Type.Index).getData().limit());
+		FloatBuffer texCoords = (FloatBuffer) mesh.getBuffer(Type.TexCoord).getData();
+		IntBuffer indices = (IntBuffer) mesh.getBuffer(Type.Index).getData();
+		float[] uv = { 0, 0, 1, 0, 1, 1, 0, 1 };
+		int[] corners = { 0, 1, 2, 2, 3, 0 };
+		for (int q = 0; q < quads; q++) {
+			for (int k = 0; k < uv.length; k++) {
+				if (texCoords.get(q * 8 + k) != uv[k]) {
+					failed.add(String.format("%s: quad %d texture coordinate %d is %f, expected %f", check, q, k,
+							texCoords.get(q * 8 + k), uv[k]));
+				}
+			}
+			for (int k = 0; k < corners.length; k++) {
+				if (indices.get(q * 6 + k) != q * 4 + corners[k]) {
+					failed.add(String.format("%s: quad %d index %d is %d, expected %d", check, q, k,
+							indices.get(q * 6 + k), q * 4 + corners[k]));
+				}
+			}
+		}
+	}
+
+	private static void expect(String check, String what, int expected, int actual) {
+		if (expected != actual) {
+			failed.add(String.format("%s: %s is %d, expected %d", check, what, actual, expected));
+		}
+	}
+}
@@ -0,0 +1,23 @@
+package org.iceparticles.benchmarks;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Secondary result reporting the number of particles updated, which JMH
+ * normalises to particles per second.
+ */
+@AuxCounters(AuxCounters.Type.OPERATIONS)
+@State(Scope.Thread)
+public class ParticleCounters {
+
+	public long particles;
+
+	@Setup(Level.Iteration)
+	public void reset() {
+		particles = 0;
+	}
+}
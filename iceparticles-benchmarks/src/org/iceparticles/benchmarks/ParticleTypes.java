@@ -0,0 +1,149 @@
+package org.iceparticles.benchmarks;
+
+import java.beans.BeanInfo;
+import java.beans.Introspector;
+import java.beans.PropertyDescriptor;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.icescene.ogreparticle.AbstractOGREParticleEmitter;
+import org.icescene.ogreparticle.OGREParticleAffector;
+import org.icescene.ogreparticle.OGREParticleConfiguration;
+import org.icescene.ogreparticle.OGREParticleEmitter;
+import org.icescene.ogreparticle.OGREParticleScript;
+import org.reflections.Reflections;
+import org.reflections.scanners.SubTypesScanner;
+import org.reflections.util.ClasspathHelper;
+import org.reflections.util.ConfigurationBuilder;
+
+import com.jme3.asset.AssetManager;
+import com.jme3.asset.DesktopAssetManager;
+import com.jme3.asset.plugins.FileLocator;
+
+/**
+ * Discovers the emitter and affector implementations the same way the editor
+ * does, and builds the scripts the benchmarks run.
+ */
+public class ParticleTypes {
+
+	/**
+	 * System property that may point to a folder of assets (materials and
+	 * textures) used by the benchmark scripts.
+	 */
+	public final static String ASSETS_PROPERTY = "iceparticles.assets";
+
+	public final static String MATERIAL = "Particles/Burst2";
+
+	public static List<String> getEmitterTypes() {
+		return concreteSubTypes(AbstractOGREParticleEmitter.class);
+	}
+
+	public static List<String> getAffectorTypes() {
+		return concreteSubTypes(OGREParticleAffector.class);
+	}
+
+	public static AssetManager createAssetManager() {
+		AssetManager assetManager = new DesktopAssetManager(true);
+		String assets = System.getProperty(ASSETS_PROPERTY);
+		if (assets != null) {
+			assetManager.registerLocator(assets, FileLocator.class);
+		}
+		return assetManager;
+	}
+
+	/**
+	 * Create a script with no emitters or affectors.
+	 *
+	 * @param quota quota
+	 * @param sorted sorted
+	 * @param localSpace local space
+	 * @return script
+	 */
+	public static OGREParticleScript createScript(int quota, boolean sorted, boolean localSpace) {
+		OGREParticleConfiguration cfg = new OGREParticleConfiguration("Benchmark");
+		OGREParticleScript script = new OGREParticleScript("Benchmark", cfg);
+		script.setMaterialName(MATERIAL);
+		script.setNumParticles(quota);
+		script.setSorted(sorted);
+		script.setLocalSpace(localSpace);
+		cfg.addScript(script);
+		return script;
+	}
+
+	/**
+	 * Add an emitter that will fill the script's quota within a second.
+	 *
+	 * @param script script
+	 * @param type emitter class name
+	 * @return emitter
+	 * @throws Exception on error
+	 */
+	public static OGREParticleEmitter addEmitter(OGREParticleScript script, String type) throws Exception {
+		@SuppressWarnings("unchecked")
+		Class<? extends OGREParticleEmitter> clazz = (Class<? extends OGREParticleEmitter>) Class.forName(type);
+		OGREParticleEmitter emitter = clazz.getConstructor(OGREParticleScript.class).newInstance(script);
+		setProperty(emitter, "emissionRate", (float) script.getQuota());
+		setProperty(emitter, "timeToLive", 2f);
+		script.getEmitters().add(emitter);
+		return emitter;
+	}
+
+	public static OGREParticleAffector addAffector(OGREParticleScript script, String type) throws Exception {
+		@SuppressWarnings("unchecked")
+		Class<? extends OGREParticleAffector> clazz = (Class<? extends OGREParticleAffector>) Class.forName(type);
+		OGREParticleAffector affector = clazz.getConstructor(OGREParticleScript.class).newInstance(script);
+		script.getAffectors().add(affector);
+		return affector;
+	}
+
+	/**
+	 * Set a numeric property, failing if there is no such property, so the
+	 * benchmarks never silently run with default rates or lives.
+	 *
+	 * @throws IllegalArgumentException if the property does not exist, is
+	 *             not numeric or cannot be set
+	 */
+	private static void setProperty(Object bean, String name, float value) {
+		try {
+			BeanInfo info = Introspector.getBeanInfo(bean.getClass());
+			for (PropertyDescriptor pd : info.getPropertyDescriptors()) {
+				Method write = pd.getWriteMethod();
+				if (pd.getName().equals(name) && write != null) {
+					Class<?> type = pd.getPropertyType();
+					if (type == float.class) {
+						write.invoke(bean, value);
+					} else if (type == int.class) {
+						write.invoke(bean, (int) value);
+					} else if (type == double.class) {
+						write.invoke(bean, (double) value);
+					} else {
+						throw new IllegalArgumentException(
+								String.format("Property %s of %s is a %s, not a number.", name, bean, type));
+					}
+					return;
+				}
+			}
+		} catch (IllegalArgumentException iae) {
+			throw iae;
+		} catch (Exception e) {
+			throw new IllegalArgumentException(String.format("Could not set %s of %s", name, bean), e);
+		}
+		throw new IllegalArgumentException(String.format("%s has no writable property %s.", bean, name));
+	}
+
+	private static List<String> concreteSubTypes(Class<?> base) {
+		Reflections reflections = new Reflections(new ConfigurationBuilder()
+				.addUrls(ClasspathHelper.forPackage(base.getPackage().getName())).setScanners(new SubTypesScanner()));
+		List<String> names = new ArrayList<String>();
+		for (Class<?> c : reflections.getSubTypesOf(base)) {
+			if (!Modifier.isAbstract(c.getModifiers())) {
+				names.add(c.getName());
+			}
+		}
+		Collections.sort(names);
+		return names;
+	}
+}
@@ -0,0 +1,38 @@
+package org.iceparticles.sim;
+
+/**
+ * The array based equivalent of an OGRE particle affector. Kernels operate
+ * over a range of slots in a {@link ParticleStore}, skipping dead slots, and
+ * must not allocate.
+ */
+public interface AffectorKernel {
+
+	/**
+	 * Called once for each newly emitted particle.
+	 *
+	 * @param store store
+	 * @param i slot
+	 */
+	default void initialise(ParticleStore store, int i) {
+	}
+
+	/**
+	 * Get if {@link #apply(ParticleStore, int, int, float)} may be called for
+	 * different ranges of the same store at the same time.
+	 *
+	 * @return concurrent
+	 */
+	default boolean isConcurrent() {
+		return true;
+	}
+
+	/**
+	 * Apply this affector to the slots <code>[from, to)</code>.
+	 *
+	 * @param store store
+	 * @param from first slot
+	 * @param to one past the last slot
+	 * @param dt time step
+	 */
+	void apply(ParticleStore store, int from, int to, float dt);
+}
@@ -0,0 +1,94 @@
+package org.iceparticles.sim;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Measures the bytes allocated by the current thread, using the allocation
+ * counters of the JVM's thread MXBean where supported (HotSpot and its
+ * derivatives). Reading the counter may itself allocate a little on some
+ * JVMs, so this is calibrated at start up and subtracted from every
+ * measurement.
+ * <p>
+ * Typical use is
+ *
+ * <pre>
+ * long start = AllocationMeter.getAllocatedBytes();
+ * // .. work ..
+ * long bytes = AllocationMeter.since(start);
+ * </pre>
+ */
+public final class AllocationMeter {
+
+	private final static int CALIBRATION_ROUNDS = 1000;
+
+	private final static com.sun.management.ThreadMXBean BEAN;
+	private final static long OVERHEAD;
+
+	static {
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		com.sun.management.ThreadMXBean b = null;
+		if (bean instanceof com.sun.management.ThreadMXBean) {
+			b = (com.sun.management.ThreadMXBean) bean;
+			try {
+				if (!b.isThreadAllocatedMemorySupported()) {
+					b = null;
+				} else if (!b.isThreadAllocatedMemoryEnabled()) {
+					b.setThreadAllocatedMemoryEnabled(true);
+				}
+			} catch (UnsupportedOperationException | SecurityException e) {
+				b = null;
+			}
+		}
+		BEAN = b;
+
+		long overhead = 0;
+		if (BEAN != null) {
+			// The least of many, so a stray allocation does not count
+			overhead = Long.MAX_VALUE;
+			long id = Thread.currentThread().getId();
+			for (int i = 0; i < CALIBRATION_ROUNDS; i++) {
+				long a = BEAN.getThreadAllocatedBytes(id);
+				long z = BEAN.getThreadAllocatedBytes(id);
+				overhead = Math.min(overhead, z - a);
+			}
+		}
+		OVERHEAD = Math.max(0, overhead);
+	}
+
+	private AllocationMeter() {
+	}
+
+	public static boolean isSupported() {
+		return BEAN != null;
+	}
+
+	/**
+	 * Get the bytes measuring one allocation costs, that are subtracted from
+	 * every measurement.
+	 *
+	 * @return bytes
+	 */
+	public static long getOverhead() {
+		return OVERHEAD;
+	}
+
+	/**
+	 * Get the total bytes allocated by the current thread so far.
+	 *
+	 * @return bytes or zero if not supported
+	 */
+	public static long getAllocatedBytes() {
+		return BEAN == null ? 0 : BEAN.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	/**
+	 * Get the bytes allocated by the current thread since an earlier call to
+	 * {@link #getAllocatedBytes()} on the same thread.
+	 *
+	 * @param start bytes allocated at the start
+	 * @return bytes
+	 */
+	public static long since(long start) {
+		return BEAN == null ? 0 : Math.max(0, getAllocatedBytes() - start - OVERHEAD);
+	}
+}
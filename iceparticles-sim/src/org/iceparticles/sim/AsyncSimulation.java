@@ -0,0 +1,183 @@
+package org.iceparticles.sim;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs a {@link ScriptSimulation} on its own thread at a fixed step, handing
+ * each completed step to the render thread through a {@link TripleBuffer} of
+ * {@link ParticleFrame}s. The render thread only ever copies the latest frame
+ * into its mesh, so the cost of simulation is removed from frame time.
+ * <p>
+ * Requests from the render thread (origin, time scale, recompiling) are
+ * picked up by the simulation thread at the start of its next step.
+ */
+public class AsyncSimulation implements Runnable {
+
+	private final static Logger LOG = Logger.getLogger(AsyncSimulation.class.getName());
+
+	/**
+	 * Create an executor suitable for running simulations on, using all but
+	 * one of the available processors.
+	 *
+	 * @return executor
+	 */
+	public static ScheduledExecutorService createExecutor() {
+		final AtomicInteger threads = new AtomicInteger();
+		return Executors.newScheduledThreadPool(Math.max(1, Runtime.getRuntime().availableProcessors() - 1),
+				new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "ParticleSimulation-" + threads.incrementAndGet());
+						t.setDaemon(true);
+						return t;
+					}
+				});
+	}
+
+	private final ScriptSimulation simulation;
+	private final TripleBuffer<ParticleFrame> frames = new TripleBuffer<ParticleFrame>(new ParticleFrame(),
+			new ParticleFrame(), new ParticleFrame());
+	private volatile float ox, oy, oz;
+	private volatile float timeScale = 1;
+	private volatile float emissionScale = 1;
+	private volatile float quotaScale = 1;
+	private volatile boolean compile;
+	private volatile float prewarm;
+	private float step = 1f / 60f;
+	private ScheduledFuture<?> future;
+
+	public AsyncSimulation(ScriptSimulation simulation) {
+		this.simulation = simulation;
+	}
+
+	public ScriptSimulation getSimulation() {
+		return simulation;
+	}
+
+	public float getStep() {
+		return step;
+	}
+
+	public boolean isRunning() {
+		return future != null;
+	}
+
+	/**
+	 * Start stepping the simulation on the given executor.
+	 *
+	 * @param executor executor
+	 * @param step fixed step
+	 */
+	public synchronized void start(ScheduledExecutorService executor, float step) {
+		if (future != null) {
+			throw new IllegalStateException("Already running.");
+		}
+		this.step = step;
+		future = executor.scheduleAtFixedRate(this, 0, (long) (step * 1000000000L), TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Stop stepping the simulation. Any step in progress is allowed to finish
+	 * before this returns, after which the simulation may be safely used by
+	 * the calling thread.
+	 */
+	public synchronized void stop() {
+		if (future != null) {
+			future.cancel(false);
+			future = null;
+		}
+	}
+
+	public void setOrigin(float x, float y, float z) {
+		ox = x;
+		oy = y;
+		oz = z;
+	}
+
+	public void setTimeScale(float timeScale) {
+		this.timeScale = timeScale;
+	}
+
+	/**
+	 * Set the emission and quota scales of the simulation (see
+	 * {@link ScriptSimulation#setEmissionScale(float)} and
+	 * {@link ScriptSimulation#setQuotaScale(float)}).
+	 *
+	 * @param emissionScale emission scale
+	 * @param quotaScale quota scale
+	 */
+	public void setScales(float emissionScale, float quotaScale) {
+		this.emissionScale = emissionScale;
+		this.quotaScale = quotaScale;
+	}
+
+	/**
+	 * Request the simulation recompiles its kernels before the next step, i.e.
+	 * after the script has been edited.
+	 */
+	public void compile() {
+		compile = true;
+	}
+
+	/**
+	 * Request the simulation is fast forwarded before the next step (see
+	 * {@link ScriptSimulation#prewarm(float, float)}).
+	 *
+	 * @param seconds time to simulate
+	 */
+	public void prewarm(float seconds) {
+		prewarm = seconds;
+	}
+
+	/**
+	 * Get the latest completed frame. Only to be called by the render thread,
+	 * which owns the frame until the next call.
+	 *
+	 * @return frame
+	 */
+	public ParticleFrame acquire() {
+		return frames.acquire();
+	}
+
+	@Override
+	public synchronized void run() {
+		if (future == null) {
+			return;
+		}
+		try {
+			if (compile) {
+				compile = false;
+				simulation.compile();
+			}
+			simulation.setOrigin(ox, oy, oz);
+			simulation.setEmissionScale(emissionScale);
+			if (quotaScale != simulation.getQuotaScale()) {
+				simulation.setQuotaScale(quotaScale);
+			}
+			if (prewarm > 0) {
+				float seconds = prewarm;
+				prewarm = 0;
+				simulation.prewarm(seconds, ScriptSimulation.PREWARM_STEP);
+			}
+			ScriptStats stats = simulation.getStats();
+			boolean tracking = stats != null && stats.isTrackingAllocations();
+			long allocated = tracking ? AllocationMeter.getAllocatedBytes() : 0;
+			simulation.step(step * timeScale);
+			frames.getWriteBuffer().copy(simulation.getStore(), simulation.getTime());
+			frames.publish();
+			if (tracking) {
+				stats.addAllocated(AllocationMeter.since(allocated));
+			}
+		} catch (RuntimeException re) {
+			// Exceptions would otherwise silently cancel the schedule
+			LOG.log(Level.SEVERE, String.format("Failed to step %s", simulation.getScript().getName()), re);
+		}
+	}
+}
@@ -0,0 +1,186 @@
+package org.iceparticles.sim;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A recording of a script made by {@link ParticleBaker}, memory mapped so
+ * frames are read straight from the file (via the page cache) as they are
+ * played back, without any simulation.
+ * <p>
+ * The file is a header, the name of the script's material, the frames, then an
+ * index of the offset of each frame. Each frame holds the bounds of its
+ * particles, against which positions are quantized to 16 bits, followed by 16
+ * bytes per particle (position, size and rotation as 16 bits each, colour as 8
+ * bits per component). All values are little endian.
+ * <p>
+ * The whole file is mapped as one buffer, so may be no larger than
+ * {@link #MAX_SIZE}.
+ * <p>
+ * Reading a frame does not change the state of this object, so frames may be
+ * read by any number of threads at once.
+ */
+public class BakedParticles {
+
+	public final static String EXTENSION = ".bake";
+
+	/**
+	 * The largest file that may be mapped.
+	 */
+	public final static long MAX_SIZE = Integer.MAX_VALUE;
+
+	final static int MAGIC = 0x4b425049;
+	final static int VERSION = 1;
+	final static int HEADER_BYTES = 32;
+	final static int FRAME_HEADER_BYTES = 32;
+	final static int PARTICLE_BYTES = 16;
+	final static int FLAG_LOCAL_SPACE = 1;
+	final static int FLAG_SORTED = 2;
+	final static float TWO_PI = (float) (Math.PI * 2);
+
+	private final ByteBuffer buffer;
+	private final int flags;
+	private final float step;
+	private final int frameCount;
+	private final int maxCount;
+	private final long indexOffset;
+	private final String materialName;
+
+	/**
+	 * Map a baked file. The file may not be deleted or replaced (on some
+	 * platforms) until this is garbage collected.
+	 *
+	 * @param file file
+	 * @return baked particles
+	 * @throws IOException if the file cannot be read or is not a bake
+	 */
+	public static BakedParticles open(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			if (channel.size() > MAX_SIZE) {
+				throw new IOException(String.format("Particle bake %s is too large (%d bytes) to map.", file,
+						channel.size()));
+			}
+			// The mapping remains valid once the channel is closed
+			return new BakedParticles(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+		} finally {
+			raf.close();
+		}
+	}
+
+	public BakedParticles(ByteBuffer buffer) throws IOException {
+		this.buffer = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+		if (this.buffer.limit() < HEADER_BYTES || this.buffer.getInt(0) != MAGIC) {
+			throw new IOException("Not a particle bake.");
+		}
+		int version = this.buffer.getInt(4);
+		if (version != VERSION) {
+			throw new IOException(String.format("Unsupported particle bake version %d.", version));
+		}
+		flags = this.buffer.getInt(8);
+		step = this.buffer.getFloat(12);
+		frameCount = this.buffer.getInt(16);
+		maxCount = this.buffer.getInt(20);
+		indexOffset = this.buffer.getLong(24);
+		if (indexOffset + frameCount * 8L > this.buffer.limit()) {
+			throw new IOException("Particle bake is truncated.");
+		}
+		byte[] name = new byte[this.buffer.getShort(HEADER_BYTES) & 0xffff];
+		for (int i = 0; i < name.length; i++) {
+			name[i] = this.buffer.get(HEADER_BYTES + 2 + i);
+		}
+		materialName = new String(name, StandardCharsets.UTF_8);
+	}
+
+	public String getMaterialName() {
+		return materialName;
+	}
+
+	public boolean isLocalSpace() {
+		return (flags & FLAG_LOCAL_SPACE) != 0;
+	}
+
+	public boolean isSorted() {
+		return (flags & FLAG_SORTED) != 0;
+	}
+
+	/**
+	 * Get the time between frames.
+	 *
+	 * @return step
+	 */
+	public float getStep() {
+		return step;
+	}
+
+	public int getFrameCount() {
+		return frameCount;
+	}
+
+	public float getDuration() {
+		return frameCount * step;
+	}
+
+	/**
+	 * Get the most particles in any one frame.
+	 *
+	 * @return particles
+	 */
+	public int getMaxCount() {
+		return maxCount;
+	}
+
+	/**
+	 * Get the size of the mapped file.
+	 *
+	 * @return bytes
+	 */
+	public long getSize() {
+		return buffer.limit();
+	}
+
+	/**
+	 * Decode a frame. Once the frame has grown to the most particles in any
+	 * frame, this allocates nothing.
+	 *
+	 * @param index frame index
+	 * @param frame frame to fill
+	 * @throws IndexOutOfBoundsException if there is no such frame
+	 */
+	public void read(int index, ParticleFrame frame) {
+		if (index < 0 || index >= frameCount) {
+			throw new IndexOutOfBoundsException(
+					String.format("Frame %d of particle bake with %d frames.", index, frameCount));
+		}
+		final ByteBuffer b = buffer;
+		int o = (int) b.getLong((int) (indexOffset + index * 8L));
+		int count = b.getInt(o);
+		float ox = b.getFloat(o + 4), oy = b.getFloat(o + 8), oz = b.getFloat(o + 12);
+		float sx = b.getFloat(o + 16), sy = b.getFloat(o + 20), sz = b.getFloat(o + 24);
+		float ss = b.getFloat(o + 28);
+		frame.ensureCapacity(count);
+		final float[] px = frame.px, py = frame.py, pz = frame.pz, width = frame.width, height = frame.height,
+				rotation = frame.rotation, r = frame.r, g = frame.g, bl = frame.b, a = frame.a;
+		final float rs = TWO_PI / 65536f;
+		o += FRAME_HEADER_BYTES;
+		for (int i = 0; i < count; i++, o += PARTICLE_BYTES) {
+			px[i] = ox + (b.getShort(o) & 0xffff) * sx;
+			py[i] = oy + (b.getShort(o + 2) & 0xffff) * sy;
+			pz[i] = oz + (b.getShort(o + 4) & 0xffff) * sz;
+			width[i] = (b.getShort(o + 6) & 0xffff) * ss;
+			height[i] = (b.getShort(o + 8) & 0xffff) * ss;
+			rotation[i] = (b.getShort(o + 10) & 0xffff) * rs;
+			r[i] = (b.get(o + 12) & 0xff) / 255f;
+			g[i] = (b.get(o + 13) & 0xff) / 255f;
+			bl[i] = (b.get(o + 14) & 0xff) / 255f;
+			a[i] = (b.get(o + 15) & 0xff) / 255f;
+		}
+		frame.set(count, index * step);
+	}
+}
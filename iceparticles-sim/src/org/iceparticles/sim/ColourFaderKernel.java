@@ -0,0 +1,44 @@
+package org.iceparticles.sim;
+
+/**
+ * Changes the colour of every particle by a fixed amount per second, clamped to
+ * the range 0 to 1.
+ */
+public class ColourFaderKernel implements AffectorKernel {
+
+	private final float dr, dg, db, da;
+
+	public ColourFaderKernel(float dr, float dg, float db, float da) {
+		this.dr = dr;
+		this.dg = dg;
+		this.db = db;
+		this.da = da;
+	}
+
+	/**
+	 * Get the change per second of each component.
+	 *
+	 * @return red, green, blue and alpha rates
+	 */
+	public float[] getRates() {
+		return new float[] { dr, dg, db, da };
+	}
+
+	@Override
+	public void apply(ParticleStore s, int from, int to, float dt) {
+		final float[] life = s.life, r = s.r, g = s.g, b = s.b, a = s.a;
+		final float sr = dr * dt, sg = dg * dt, sb = db * dt, sa = da * dt;
+		for (int i = from; i < to; i++) {
+			if (life[i] > 0) {
+				r[i] = clamp(r[i] + sr);
+				g[i] = clamp(g[i] + sg);
+				b[i] = clamp(b[i] + sb);
+				a[i] = clamp(a[i] + sa);
+			}
+		}
+	}
+
+	static float clamp(float v) {
+		return v < 0 ? 0 : (v > 1 ? 1 : v);
+	}
+}
@@ -0,0 +1,55 @@
+package org.iceparticles.sim;
+
+/**
+ * Sets the colour of every particle by interpolating between up to six colours
+ * according to how far through its life it is. The colours are sampled into a
+ * {@link LifetimeTable} when the kernel is compiled, so each particle costs a
+ * single fetch and lerp.
+ */
+public class ColourInterpolatorKernel implements AffectorKernel {
+
+	private final LifetimeTable table;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param times ascending times (0 to 1)
+	 * @param colours 4 components per time
+	 */
+	public ColourInterpolatorKernel(float[] times, float[] colours) {
+		this(new LifetimeTable(times, colours, 4));
+	}
+
+	public ColourInterpolatorKernel(LifetimeTable table) {
+		if (table.getComponents() != 4) {
+			throw new IllegalArgumentException("Colour table must have 4 components.");
+		}
+		this.table = table;
+	}
+
+	public LifetimeTable getTable() {
+		return table;
+	}
+
+	@Override
+	public void apply(ParticleStore s, int from, int to, float dt) {
+		if (table.isEmpty()) {
+			return;
+		}
+		final float[] life = s.life, total = s.totalLife, r = s.r, g = s.g, b = s.b, a = s.a;
+		final float[] t = table.getTable();
+		final int last = LifetimeTable.RESOLUTION - 1;
+		for (int i = from; i < to; i++) {
+			if (life[i] > 0) {
+				float x = Math.max(0, 1f - life[i] / total[i]) * LifetimeTable.RESOLUTION;
+				int j = x > last ? last : (int) x;
+				float f = x - j;
+				int o = j << 2;
+				r[i] = t[o] + (t[o + 4] - t[o]) * f;
+				g[i] = t[o + 1] + (t[o + 5] - t[o + 1]) * f;
+				b[i] = t[o + 2] + (t[o + 6] - t[o + 2]) * f;
+				a[i] = t[o + 3] + (t[o + 7] - t[o + 3]) * f;
+			}
+		}
+	}
+}
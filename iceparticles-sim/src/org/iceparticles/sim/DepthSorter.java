@@ -0,0 +1,338 @@
+package org.iceparticles.sim;
+
+import java.util.Arrays;
+
+/**
+ * Sorts particles back to front, exploiting the fact that their order changes
+ * little from one frame to the next. The order of the previous sort is kept in
+ * a re-used index array; particles that have died are dropped from it and new
+ * particles appended. Then, depending on how far from sorted that is, either
+ * nothing is done (everything is within the threshold of being in order),
+ * an insertion sort is used (nearly sorted) or a radix sort over quantized
+ * depths (not sorted, e.g. after the camera turns).
+ */
+public class DepthSorter {
+
+	public enum Result {
+		SKIPPED, INSERTION, RADIX
+	}
+
+	private final static int RADIX_BITS = 8;
+	private final static int BUCKETS = 1 << RADIX_BITS;
+	private final static int KEY_MAX = 0xffff;
+	private final static int INSERTION_MOVES = 8;
+	private final static int MAX_INSERTION = 64;
+
+	private int[] order = new int[0];
+	private float[] depths = new float[0];
+	private float[] tmpDepths = new float[0];
+	private float[] slotDepths = new float[0];
+	private int[] tmpOrder = new int[0];
+	private int[] keys = new int[0];
+	private int[] tmpKeys = new int[0];
+	private int[] mark = new int[0];
+	private float[] lastLife = new float[0];
+	private final int[] counts = new int[BUCKETS];
+	private int count;
+	private int epoch;
+	private float threshold = 0.01f;
+	private Result result = Result.SKIPPED;
+
+	public float getThreshold() {
+		return threshold;
+	}
+
+	/**
+	 * Set how far (in depth) two particles may be out of order before the
+	 * order is considered stale and re-sorted.
+	 *
+	 * @param threshold threshold
+	 */
+	public void setThreshold(float threshold) {
+		this.threshold = threshold;
+	}
+
+	/**
+	 * Get the indices of the particles in back to front order. Only the first
+	 * {@link #getCount()} are valid.
+	 *
+	 * @return order
+	 */
+	public int[] getOrder() {
+		return order;
+	}
+
+	public int getCount() {
+		return count;
+	}
+
+	/**
+	 * Get what the last sort had to do.
+	 *
+	 * @return result
+	 */
+	public Result getResult() {
+		return result;
+	}
+
+	/**
+	 * Forget the previous order, so the next sort starts from scratch.
+	 */
+	public void reset() {
+		count = 0;
+	}
+
+	/**
+	 * Sort the live particles of a store.
+	 *
+	 * @param s store
+	 * @param cx camera position x
+	 * @param cy camera position y
+	 * @param cz camera position z
+	 * @param dx camera direction x
+	 * @param dy camera direction y
+	 * @param dz camera direction z
+	 * @return result
+	 */
+	public Result sort(ParticleStore s, float cx, float cy, float cz, float dx, float dy, float dz) {
+		return sort(s.px, s.py, s.pz, s.life, s.getEnd(), cx, cy, cz, dx, dy, dz);
+	}
+
+	/**
+	 * Sort the particles of a frame.
+	 *
+	 * @param f frame
+	 * @param cx camera position x
+	 * @param cy camera position y
+	 * @param cz camera position z
+	 * @param dx camera direction x
+	 * @param dy camera direction y
+	 * @param dz camera direction z
+	 * @return result
+	 */
+	public Result sort(ParticleFrame f, float cx, float cy, float cz, float dx, float dy, float dz) {
+		return sort(f.px, f.py, f.pz, null, f.getCount(), cx, cy, cz, dx, dy, dz);
+	}
+
+	/**
+	 * Sort particles <code>[0, end)</code>.
+	 *
+	 * @param px positions x
+	 * @param py positions y
+	 * @param pz positions z
+	 * @param life remaining life, particles with none are excluded. May be
+	 *            <code>null</code> if all particles are live.
+	 * @param end one past the last particle
+	 * @param cx camera position x
+	 * @param cy camera position y
+	 * @param cz camera position z
+	 * @param dx camera direction x
+	 * @param dy camera direction y
+	 * @param dz camera direction z
+	 * @return result
+	 */
+	public Result sort(float[] px, float[] py, float[] pz, float[] life, int end, float cx, float cy, float cz,
+			float dx, float dy, float dz) {
+		ensureCapacity(end);
+		if (++epoch == Integer.MAX_VALUE) {
+			Arrays.fill(mark, 0);
+			epoch = 1;
+		}
+
+		/*
+		 * Depth of every slot, in slot order so the positions are read
+		 * sequentially. Life only ever goes down, so if it has gone up the slot
+		 * has been re-used by a new particle and cannot keep its old place.
+		 */
+		final int keep = epoch, taken = -epoch;
+		float min = Float.MAX_VALUE, max = -Float.MAX_VALUE;
+		for (int i = 0; i < end; i++) {
+			if (life == null || life[i] > 0) {
+				float d = (px[i] - cx) * dx + (py[i] - cy) * dy + (pz[i] - cz) * dz;
+				slotDepths[i] = d;
+				if (d < min) {
+					min = d;
+				}
+				if (d > max) {
+					max = d;
+				}
+				if (life == null || life[i] <= lastLife[i]) {
+					mark[i] = keep;
+				}
+			}
+		}
+		if (life != null) {
+			System.arraycopy(life, 0, lastLife, 0, end);
+		}
+
+		// Keep the previous order, measuring how far out of order it now is
+		int n = 0;
+		float disorder = 0;
+		boolean stale = false;
+		float prev = Float.MAX_VALUE;
+		for (int k = 0; k < count; k++) {
+			int i = order[k];
+			if (i < end && mark[i] == keep) {
+				mark[i] = taken;
+				float d = slotDepths[i];
+				if (d > prev) {
+					disorder += d - prev;
+					if (d - prev > threshold) {
+						stale = true;
+					}
+				}
+				prev = d;
+				depths[n] = d;
+				order[n++] = i;
+			}
+		}
+		int kept = n;
+		for (int i = 0; i < end; i++) {
+			if (mark[i] != taken && (life == null || life[i] > 0)) {
+				depths[n] = slotDepths[i];
+				order[n++] = i;
+			}
+		}
+		count = n;
+		int born = n - kept;
+
+		/*
+		 * Estimate the work an insertion sort would do from how far particles
+		 * are out of order relative to the average spacing between them. The
+		 * estimate can be fooled (e.g. by a reversed order), so the insertion
+		 * sort also gives up if it goes too far over budget.
+		 */
+		float spacing = n > 1 ? (max - min) / (n - 1) : 0;
+		float moves = spacing > 0 ? disorder / spacing : 0;
+		long budget = (long) n * INSERTION_MOVES;
+		if (!stale && born == 0) {
+			result = Result.SKIPPED;
+		} else if (moves <= budget && born <= n / 2 && (!stale || insertionSort(0, kept, budget * 2))) {
+			if (born > 0) {
+				// New particles are sorted on their own then merged in
+				if (born > MAX_INSERTION) {
+					radixSort(kept, n);
+				}
+				insertionSort(kept, n, Long.MAX_VALUE);
+				merge(kept, n);
+			}
+			result = Result.INSERTION;
+		} else {
+			radixSort(0, n);
+			// Order within each quantized depth, so the next frame is coherent
+			insertionSort(0, n, Long.MAX_VALUE);
+			result = Result.RADIX;
+		}
+		return result;
+	}
+
+	private boolean insertionSort(int from, int to, long budget) {
+		final int[] o = order;
+		final float[] d = depths;
+		for (int k = from + 1; k < to; k++) {
+			float dk = d[k];
+			if (dk <= d[k - 1]) {
+				continue;
+			}
+			int ok = o[k];
+			int j = k - 1;
+			while (j >= from && d[j] < dk) {
+				d[j + 1] = d[j];
+				o[j + 1] = o[j];
+				j--;
+			}
+			d[j + 1] = dk;
+			o[j + 1] = ok;
+			budget -= k - 1 - j;
+			if (budget < 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void radixSort(int from, int to) {
+		float min = Float.MAX_VALUE, max = -Float.MAX_VALUE;
+		for (int k = from; k < to; k++) {
+			min = Math.min(min, depths[k]);
+			max = Math.max(max, depths[k]);
+		}
+		// Furthest first, so quantize the distance from the far end
+		float scale = max > min ? KEY_MAX / (max - min) : 0;
+		for (int k = from; k < to; k++) {
+			keys[k] = (int) ((max - depths[k]) * scale);
+		}
+		for (int shift = 0; shift < 16; shift += RADIX_BITS) {
+			Arrays.fill(counts, 0);
+			for (int k = from; k < to; k++) {
+				counts[(keys[k] >>> shift) & (BUCKETS - 1)]++;
+			}
+			int total = from;
+			for (int b = 0; b < BUCKETS; b++) {
+				int c = counts[b];
+				counts[b] = total;
+				total += c;
+			}
+			for (int k = from; k < to; k++) {
+				int pos = counts[(keys[k] >>> shift) & (BUCKETS - 1)]++;
+				tmpOrder[pos] = order[k];
+				tmpKeys[pos] = keys[k];
+				tmpDepths[pos] = depths[k];
+			}
+			swap();
+		}
+	}
+
+	private void merge(int mid, int to) {
+		int a = 0, b = mid, k = 0;
+		while (a < mid && b < to) {
+			if (depths[b] > depths[a]) {
+				tmpDepths[k] = depths[b];
+				tmpOrder[k++] = order[b++];
+			} else {
+				tmpDepths[k] = depths[a];
+				tmpOrder[k++] = order[a++];
+			}
+		}
+		while (a < mid) {
+			tmpDepths[k] = depths[a];
+			tmpOrder[k++] = order[a++];
+		}
+		while (b < to) {
+			tmpDepths[k] = depths[b];
+			tmpOrder[k++] = order[b++];
+		}
+		if (to < count) {
+			System.arraycopy(order, to, tmpOrder, to, count - to);
+		}
+		swap();
+	}
+
+	private void swap() {
+		int[] t = order;
+		order = tmpOrder;
+		tmpOrder = t;
+		t = keys;
+		keys = tmpKeys;
+		tmpKeys = t;
+		float[] f = depths;
+		depths = tmpDepths;
+		tmpDepths = f;
+	}
+
+	private void ensureCapacity(int required) {
+		if (required <= order.length) {
+			return;
+		}
+		int newCapacity = Math.max(required, order.length * 2);
+		order = Arrays.copyOf(order, newCapacity);
+		depths = Arrays.copyOf(depths, newCapacity);
+		mark = Arrays.copyOf(mark, newCapacity);
+		lastLife = Arrays.copyOf(lastLife, newCapacity);
+		tmpOrder = new int[newCapacity];
+		tmpDepths = new float[newCapacity];
+		slotDepths = new float[newCapacity];
+		keys = new int[newCapacity];
+		tmpKeys = new int[newCapacity];
+	}
+}
@@ -0,0 +1,48 @@
+package org.iceparticles.sim;
+
+/**
+ * Randomly perturbs the velocity of a proportion of particles each step.
+ */
+public class DirectionRandomiserKernel implements AffectorKernel {
+
+	private final float randomness;
+	private final float scope;
+	private final boolean keepVelocity;
+	private final ParticleRandom random;
+
+	public DirectionRandomiserKernel(float randomness, float scope, boolean keepVelocity, ParticleRandom random) {
+		this.randomness = randomness;
+		this.scope = scope;
+		this.keepVelocity = keepVelocity;
+		this.random = random;
+	}
+
+	@Override
+	public boolean isConcurrent() {
+		// Draws from a single random stream in slot order
+		return false;
+	}
+
+	@Override
+	public void apply(ParticleStore s, int from, int to, float dt) {
+		final float[] life = s.life, vx = s.vx, vy = s.vy, vz = s.vz;
+		final float amount = randomness * dt;
+		for (int i = from; i < to; i++) {
+			if (life[i] > 0 && random.nextFloat() < scope) {
+				float len = keepVelocity ? (float) Math.sqrt(vx[i] * vx[i] + vy[i] * vy[i] + vz[i] * vz[i]) : 0;
+				vx[i] += (random.nextFloat() * 2 - 1) * amount;
+				vy[i] += (random.nextFloat() * 2 - 1) * amount;
+				vz[i] += (random.nextFloat() * 2 - 1) * amount;
+				if (keepVelocity) {
+					float now = (float) Math.sqrt(vx[i] * vx[i] + vy[i] * vy[i] + vz[i] * vz[i]);
+					if (now > 0) {
+						float f = len / now;
+						vx[i] *= f;
+						vy[i] *= f;
+						vz[i] *= f;
+					}
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,262 @@
+package org.iceparticles.sim;
+
+import com.jme3.math.ColorRGBA;
+import com.jme3.math.FastMath;
+
+/**
+ * The array based equivalent of an OGRE particle emitter. Emits particles at a
+ * fixed rate directly into the slots of a {@link ParticleStore}.
+ */
+public class EmitterKernel {
+
+	public enum Shape {
+		POINT, BOX, CYLINDER, ELLIPSOID, HOLLOW_ELLIPSOID, RING
+	}
+
+	private final static float MIN_LIFE = 0.0001f;
+
+	private final Shape shape;
+	private final ParticleRandom random;
+
+	private float x, y, z;
+	private float dx = 0, dy = 1, dz = 0;
+	private float ux = 1, uy = 0, uz = 0;
+	private float wx = 0, wy = 0, wz = 1;
+	private float angle;
+	private float rate = 10;
+	private float ttlMin = 5, ttlMax = 5;
+	private float velocityMin = 1, velocityMax = 1;
+	private float r0 = 1, g0 = 1, b0 = 1, a0 = 1;
+	private float r1 = 1, g1 = 1, b1 = 1, a1 = 1;
+	private float shapeWidth, shapeHeight, shapeDepth;
+	private float particleWidth = 1, particleHeight = 1;
+	private float remainder;
+
+	public EmitterKernel(Shape shape, ParticleRandom random) {
+		this.shape = shape;
+		this.random = random;
+	}
+
+	public Shape getShape() {
+		return shape;
+	}
+
+	public void setPosition(float x, float y, float z) {
+		this.x = x;
+		this.y = y;
+		this.z = z;
+	}
+
+	/**
+	 * Set the main direction of emission, and calculate the two perpendicular
+	 * axes used to spread particles within the emission angle.
+	 *
+	 * @param x x
+	 * @param y y
+	 * @param z z
+	 */
+	public void setDirection(float x, float y, float z) {
+		float len = FastMath.sqrt(x * x + y * y + z * z);
+		if (len == 0) {
+			x = 0;
+			y = 1;
+			z = 0;
+			len = 1;
+		}
+		dx = x / len;
+		dy = y / len;
+		dz = z / len;
+
+		// Any vector not parallel to the direction
+		float hx = FastMath.abs(dx) < 0.9f ? 1 : 0;
+		float hy = hx == 0 ? 1 : 0;
+		ux = dy * 0 - dz * hy;
+		uy = dz * hx - dx * 0;
+		uz = dx * hy - dy * hx;
+		float ul = FastMath.sqrt(ux * ux + uy * uy + uz * uz);
+		ux /= ul;
+		uy /= ul;
+		uz /= ul;
+		wx = dy * uz - dz * uy;
+		wy = dz * ux - dx * uz;
+		wz = dx * uy - dy * ux;
+	}
+
+	/**
+	 * Set the maximum angle (in degrees) particles deviate from the main
+	 * direction.
+	 *
+	 * @param degrees angle
+	 */
+	public void setAngle(float degrees) {
+		this.angle = degrees * FastMath.DEG_TO_RAD;
+	}
+
+	public void setEmissionRate(float rate) {
+		this.rate = Math.max(0, rate);
+	}
+
+	public float getEmissionRate() {
+		return rate;
+	}
+
+	public void setTimeToLive(float min, float max) {
+		this.ttlMin = min;
+		this.ttlMax = Math.max(min, max);
+	}
+
+	public void setVelocity(float min, float max) {
+		this.velocityMin = min;
+		this.velocityMax = Math.max(min, max);
+	}
+
+	public void setColour(ColorRGBA start, ColorRGBA end) {
+		r0 = start.r;
+		g0 = start.g;
+		b0 = start.b;
+		a0 = start.a;
+		r1 = end.r;
+		g1 = end.g;
+		b1 = end.b;
+		a1 = end.a;
+	}
+
+	public void setShapeSize(float width, float height, float depth) {
+		this.shapeWidth = width;
+		this.shapeHeight = height;
+		this.shapeDepth = depth;
+	}
+
+	public void setParticleSize(float width, float height) {
+		this.particleWidth = width;
+		this.particleHeight = height;
+	}
+
+	/**
+	 * Emit as many particles as are due for the elapsed time, relative to the
+	 * given origin. Particles are spread over the step as if each had been
+	 * emitted at its due time, so large steps (e.g. when prewarming) do not
+	 * emit particles in clumps.
+	 *
+	 * @param store store
+	 * @param affectors affectors to initialise new particles with
+	 * @param ox origin x
+	 * @param oy origin y
+	 * @param oz origin z
+	 * @param dt time step
+	 * @return number of particles emitted
+	 */
+	public int emit(ParticleStore store, AffectorKernel[] affectors, float ox, float oy, float oz, float dt) {
+		remainder += rate * dt;
+		int due = (int) remainder;
+		remainder -= due;
+		for (int n = 0; n < due; n++) {
+			int i = store.allocate();
+			if (i == -1) {
+				// Quota exhausted, OGRE drops any further emissions
+				remainder = 0;
+				return n;
+			}
+			initialise(store, i, ox, oy, oz);
+			for (AffectorKernel affector : affectors) {
+				affector.initialise(store, i);
+			}
+			if (store.lx != null) {
+				// Interpolate from where it was emitted
+				store.lx[i] = store.px[i];
+				store.ly[i] = store.py[i];
+				store.lz[i] = store.pz[i];
+			}
+			float age = dt * (n + 0.5f) / due;
+			if (age < store.life[i]) {
+				store.life[i] -= age;
+				store.px[i] += store.vx[i] * age;
+				store.py[i] += store.vy[i] * age;
+				store.pz[i] += store.vz[i] * age;
+			}
+		}
+		return due;
+	}
+
+	private void initialise(ParticleStore s, int i, float ox, float oy, float oz) {
+		float px = 0, py = 0, pz = 0;
+		switch (shape) {
+		case BOX:
+			px = (random.nextFloat() - 0.5f) * shapeWidth;
+			py = (random.nextFloat() - 0.5f) * shapeHeight;
+			pz = (random.nextFloat() - 0.5f) * shapeDepth;
+			break;
+		case CYLINDER: {
+			float t = random.nextFloat() * FastMath.TWO_PI;
+			float rad = FastMath.sqrt(random.nextFloat()) * 0.5f;
+			px = FastMath.cos(t) * rad * shapeWidth;
+			py = (random.nextFloat() - 0.5f) * shapeHeight;
+			pz = FastMath.sin(t) * rad * shapeDepth;
+			break;
+		}
+		case ELLIPSOID:
+		case HOLLOW_ELLIPSOID: {
+			float ex, ey, ez, l;
+			do {
+				ex = random.nextFloat() * 2 - 1;
+				ey = random.nextFloat() * 2 - 1;
+				ez = random.nextFloat() * 2 - 1;
+				l = ex * ex + ey * ey + ez * ez;
+			} while (l > 1 || l == 0);
+			if (shape == Shape.HOLLOW_ELLIPSOID) {
+				l = FastMath.sqrt(l);
+				ex /= l;
+				ey /= l;
+				ez /= l;
+			}
+			px = ex * shapeWidth * 0.5f;
+			py = ey * shapeHeight * 0.5f;
+			pz = ez * shapeDepth * 0.5f;
+			break;
+		}
+		case RING: {
+			float t = random.nextFloat() * FastMath.TWO_PI;
+			px = FastMath.cos(t) * shapeWidth * 0.5f;
+			py = FastMath.sin(t) * shapeHeight * 0.5f;
+			pz = (random.nextFloat() - 0.5f) * shapeDepth;
+			break;
+		}
+		default:
+			break;
+		}
+		s.px[i] = ox + x + px;
+		s.py[i] = oy + y + py;
+		s.pz[i] = oz + z + pz;
+
+		// Direction within the cone around the main direction
+		float ex = dx, ey = dy, ez = dz;
+		if (angle > 0) {
+			float theta = angle * random.nextFloat();
+			float phi = FastMath.TWO_PI * random.nextFloat();
+			float st = FastMath.sin(theta), ct = FastMath.cos(theta);
+			float cp = FastMath.cos(phi), sp = FastMath.sin(phi);
+			ex = dx * ct + (ux * cp + wx * sp) * st;
+			ey = dy * ct + (uy * cp + wy * sp) * st;
+			ez = dz * ct + (uz * cp + wz * sp) * st;
+		}
+		float speed = velocityMin + (velocityMax - velocityMin) * random.nextFloat();
+		s.vx[i] = ex * speed;
+		s.vy[i] = ey * speed;
+		s.vz[i] = ez * speed;
+
+		float c = random.nextFloat();
+		s.r[i] = r0 + (r1 - r0) * c;
+		s.g[i] = g0 + (g1 - g0) * c;
+		s.b[i] = b0 + (b1 - b0) * c;
+		s.a[i] = a0 + (a1 - a0) * c;
+
+		s.width[i] = particleWidth;
+		s.height[i] = particleHeight;
+		s.rotation[i] = 0;
+		s.rotationSpeed[i] = 0;
+
+		float ttl = Math.max(MIN_LIFE, ttlMin + (ttlMax - ttlMin) * random.nextFloat());
+		s.life[i] = ttl;
+		s.totalLife[i] = ttl;
+	}
+}
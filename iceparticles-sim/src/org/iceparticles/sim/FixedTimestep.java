@@ -0,0 +1,84 @@
+package org.iceparticles.sim;
+
+/**
+ * Turns variable frame times into a whole number of fixed simulation steps.
+ * Time left over is carried to the next frame, and as a fraction of a step is
+ * how far rendering should interpolate between the last two steps. If a frame
+ * would need more than the maximum number of steps (e.g. after a hitch), the
+ * excess time is dropped, so one slow frame cannot cause ever slower ones.
+ */
+public class FixedTimestep {
+
+	public final static int DEFAULT_MAX_STEPS = 4;
+
+	private final float step;
+	private int maxSteps;
+	private float accumulator;
+	private float dropped;
+
+	public FixedTimestep(float step) {
+		this(step, DEFAULT_MAX_STEPS);
+	}
+
+	public FixedTimestep(float step, int maxSteps) {
+		if (step <= 0) {
+			throw new IllegalArgumentException("Step must be greater than zero.");
+		}
+		this.step = step;
+		setMaxSteps(maxSteps);
+	}
+
+	public float getStep() {
+		return step;
+	}
+
+	public int getMaxSteps() {
+		return maxSteps;
+	}
+
+	public void setMaxSteps(int maxSteps) {
+		this.maxSteps = Math.max(1, maxSteps);
+	}
+
+	/**
+	 * Get the total time dropped because frames needed more than the maximum
+	 * number of steps.
+	 *
+	 * @return dropped seconds
+	 */
+	public float getDropped() {
+		return dropped;
+	}
+
+	/**
+	 * Add the time elapsed since the last call, and get the number of steps
+	 * that should now be simulated.
+	 *
+	 * @param dt elapsed time
+	 * @return steps
+	 */
+	public int advance(float dt) {
+		accumulator += dt;
+		int steps = (int) (accumulator / step);
+		if (steps > maxSteps) {
+			dropped += (steps - maxSteps) * step;
+			accumulator -= (steps - maxSteps) * step;
+			steps = maxSteps;
+		}
+		accumulator = Math.max(0, accumulator - steps * step);
+		return steps;
+	}
+
+	/**
+	 * Get how far between the last step and the next the current time is.
+	 *
+	 * @return fraction of a step, from 0 to 1
+	 */
+	public float getAlpha() {
+		return Math.min(1, accumulator / step);
+	}
+
+	public void reset() {
+		accumulator = 0;
+	}
+}
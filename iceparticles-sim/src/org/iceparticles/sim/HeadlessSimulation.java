@@ -0,0 +1,360 @@
+package org.iceparticles.sim;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import org.icescene.ogreparticle.OGREParticleConfiguration;
+import org.icescene.ogreparticle.OGREParticleEmitter;
+import org.icescene.ogreparticle.OGREParticleScript;
+
+import com.jme3.asset.AssetManager;
+import com.jme3.asset.DesktopAssetManager;
+import com.jme3.asset.plugins.FileLocator;
+import com.jme3.scene.Node;
+import com.jme3.scene.control.Control;
+
+import emitter.Emitter;
+
+/**
+ * Runs particle scripts without a display or renderer. Emitters and their
+ * affectors are created exactly as the viewer does, but are attached to a
+ * detached scene graph that is stepped at a fixed time step. Alternatively,
+ * scripts may be run as a {@link ScriptSimulation} (see
+ * {@link #setKernels(boolean)}).
+ */
+public class HeadlessSimulation {
+
+	private final static Logger LOG = Logger.getLogger(HeadlessSimulation.class.getName());
+
+	public final static float DEFAULT_STEP = 1f / 60f;
+
+	public static void main(String[] args) throws Exception {
+		List<String> argList = new ArrayList<String>(Arrays.asList(args));
+		boolean kernels = argList.remove("-k");
+		float prewarm = 0;
+		int idx = argList.indexOf("-w");
+		if (idx != -1 && idx + 1 < argList.size()) {
+			argList.remove(idx);
+			prewarm = Float.parseFloat(argList.remove(idx));
+		}
+		long seed = 0;
+		idx = argList.indexOf("-s");
+		if (idx != -1 && idx + 1 < argList.size()) {
+			argList.remove(idx);
+			seed = Long.parseLong(argList.remove(idx));
+		}
+		File bakeDir = null;
+		idx = argList.indexOf("-b");
+		if (idx != -1 && idx + 1 < argList.size()) {
+			argList.remove(idx);
+			bakeDir = new File(argList.remove(idx));
+		}
+		args = argList.toArray(new String[0]);
+		if (args.length < 1) {
+			System.err.println("Usage: HeadlessSimulation [-k] [-w <prewarmSeconds>] [-s <seed>] [-b <bakeDir>] "
+					+ "<file.particle> [seconds] [step] [assetsDir]");
+			System.exit(1);
+		}
+		float seconds = args.length > 1 ? Float.parseFloat(args[1]) : 10f;
+		float step = args.length > 2 ? Float.parseFloat(args[2])
+				: (bakeDir == null ? DEFAULT_STEP : ParticleBaker.DEFAULT_STEP);
+		AssetManager assetManager = new DesktopAssetManager(true);
+		if (args.length > 3) {
+			assetManager.registerLocator(args[3], FileLocator.class);
+		}
+
+		HeadlessSimulation sim = new HeadlessSimulation(assetManager);
+		sim.setStep(step);
+		sim.setKernels(kernels);
+		sim.setSeed(seed);
+		OGREParticleConfiguration cfg = load(new File(args[0]));
+
+		if (bakeDir != null) {
+			if (!bakeDir.exists() && !bakeDir.mkdirs()) {
+				throw new IOException(String.format("Could not create %s", bakeDir));
+			}
+			for (OGREParticleScript script : cfg.getBackingObject().values()) {
+				ParticleBaker baker = new ParticleBaker(new ScriptSimulation(script, sim.getSeed(script)));
+				baker.setStep(step);
+				baker.setPrewarm(prewarm);
+				File file = new File(bakeDir, getBakeName(cfg, script));
+				long started = System.nanoTime();
+				int frames = baker.bake(file, seconds);
+				System.out.println(String.format("Baked %s to %s, %d frames, %d bytes in %.2fms", script.getName(),
+						file, frames, file.length(), (System.nanoTime() - started) / 1000000.0));
+			}
+			return;
+		}
+
+		sim.addConfiguration(cfg);
+
+		if (prewarm > 0) {
+			long prewarmStarted = System.nanoTime();
+			sim.prewarm(prewarm, ScriptSimulation.PREWARM_STEP);
+			System.out.println(String.format("Prewarmed %.2fs in %.2fms, %d particles", prewarm,
+					(System.nanoTime() - prewarmStarted) / 1000000.0, sim.getActiveParticleCount()));
+		}
+
+		int stepsPerSecond = Math.max(1, Math.round(1f / step));
+		int total = Math.round(seconds / step);
+		long started = System.nanoTime();
+		for (int i = 1; i <= total; i++) {
+			sim.step();
+			if (i % stepsPerSecond == 0) {
+				System.out.println(String.format("%6.2fs %8d particles", sim.getTime(), sim.getActiveParticleCount()));
+			}
+		}
+		double ms = (System.nanoTime() - started) / 1000000.0;
+		System.out.println(String.format("%d steps in %.2fms (%.4fms/step)", total, ms, ms / Math.max(1, total)));
+	}
+
+	/**
+	 * Load a particle configuration from a file.
+	 *
+	 * @param file particle file
+	 * @return configuration
+	 * @throws IOException on error
+	 */
+	public static OGREParticleConfiguration load(File file) throws IOException {
+		String name = file.getName();
+		if (name.endsWith(".particle")) {
+			name = name.substring(0, name.length() - 9);
+		}
+		OGREParticleConfiguration cfg = new OGREParticleConfiguration(name);
+		InputStream in = new FileInputStream(file);
+		try {
+			cfg.load(in);
+		} finally {
+			in.close();
+		}
+		return cfg;
+	}
+
+	/**
+	 * Get the name of the file a script is baked to.
+	 *
+	 * @param configuration configuration the script is in
+	 * @param script script
+	 * @return file name
+	 */
+	public static String getBakeName(OGREParticleConfiguration configuration, OGREParticleScript script) {
+		String name = configuration.getConfigurationName() + "-" + script.getName();
+		return name.replaceAll("[^A-Za-z0-9_.-]", "_") + BakedParticles.EXTENSION;
+	}
+
+	private final AssetManager assetManager;
+	private final Node rootNode = new Node("HeadlessParticles");
+	private final Map<OGREParticleScript, Node> scripts = new LinkedHashMap<OGREParticleScript, Node>();
+	private final Map<OGREParticleScript, ScriptSimulation> simulations = new LinkedHashMap<OGREParticleScript, ScriptSimulation>();
+	private float step = DEFAULT_STEP;
+	private boolean kernels;
+	private long seed;
+	private long steps;
+
+	public HeadlessSimulation(AssetManager assetManager) {
+		this.assetManager = assetManager;
+	}
+
+	public AssetManager getAssetManager() {
+		return assetManager;
+	}
+
+	public float getStep() {
+		return step;
+	}
+
+	public void setStep(float step) {
+		if (step <= 0) {
+			throw new IllegalArgumentException("Step must be greater than zero.");
+		}
+		this.step = step;
+	}
+
+	public boolean isKernels() {
+		return kernels;
+	}
+
+	/**
+	 * Set whether scripts added from now on are simulated with kernels over a
+	 * {@link ParticleStore} rather than by the emitter runtime. Scripts the
+	 * kernels do not support are still run by the emitter runtime.
+	 *
+	 * @param kernels use kernels
+	 */
+	public void setKernels(boolean kernels) {
+		this.kernels = kernels;
+	}
+
+	public long getSeed() {
+		return seed;
+	}
+
+	/**
+	 * Set the seed scripts added from now on are run with. Zero runs each
+	 * script with a seed derived from its name, as the viewer does for
+	 * scripts with no seed set. Only scripts run with kernels are seeded, the
+	 * emitter runtime draws from a generator shared with the rest of the
+	 * application, so is not repeatable.
+	 *
+	 * @param seed seed
+	 */
+	public void setSeed(long seed) {
+		this.seed = seed;
+	}
+
+	/**
+	 * Get the seed a script is run with.
+	 *
+	 * @param script script
+	 * @return seed
+	 */
+	public long getSeed(OGREParticleScript script) {
+		return ParticleRandom.seedFor(script.getName(), seed);
+	}
+
+	public long getSteps() {
+		return steps;
+	}
+
+	public float getTime() {
+		return steps * step;
+	}
+
+	public void addConfiguration(OGREParticleConfiguration configuration) {
+		for (OGREParticleScript script : configuration.getBackingObject().values()) {
+			addScript(script);
+		}
+	}
+
+	public Node addScript(OGREParticleScript script) {
+		removeScript(script);
+		if (kernels && Kernels.isSupported(script)) {
+			simulations.put(script, new ScriptSimulation(script, getSeed(script)));
+			return null;
+		} else if (kernels) {
+			LOG.warning(String.format("%s is not supported by kernels, running it with the emitter runtime.",
+					script.getName()));
+		}
+		Node node = new Node(script.getName());
+		for (OGREParticleEmitter e : script.getEmitters()) {
+			Emitter emitter = e.createEmitter(assetManager);
+			emitter.setEnabled(true);
+			emitter.setEmitterTestMode(false, false);
+			emitter.initialize(assetManager);
+			node.addControl(emitter);
+		}
+		LOG.info(String.format("Added %s with %d emitters", script.getName(), node.getNumControls()));
+		rootNode.attachChild(node);
+		scripts.put(script, node);
+		return node;
+	}
+
+	public void removeScript(OGREParticleScript script) {
+		simulations.remove(script);
+		Node node = scripts.remove(script);
+		if (node != null) {
+			node.removeFromParent();
+		}
+	}
+
+	public List<OGREParticleScript> getScripts() {
+		List<OGREParticleScript> l = new ArrayList<OGREParticleScript>(scripts.keySet());
+		l.addAll(simulations.keySet());
+		return Collections.unmodifiableList(l);
+	}
+
+	public ScriptSimulation getSimulation(OGREParticleScript script) {
+		return simulations.get(script);
+	}
+
+	public List<Emitter> getEmitters(OGREParticleScript script) {
+		List<Emitter> emitters = new ArrayList<Emitter>();
+		Node node = scripts.get(script);
+		if (node != null) {
+			for (int i = 0; i < node.getNumControls(); i++) {
+				Control c = node.getControl(i);
+				if (c instanceof Emitter) {
+					emitters.add((Emitter) c);
+				}
+			}
+		}
+		return emitters;
+	}
+
+	/**
+	 * Advance every script by one fixed step.
+	 */
+	public void step() {
+		rootNode.updateLogicalState(step);
+		rootNode.updateGeometricState();
+		for (ScriptSimulation sim : simulations.values()) {
+			sim.step(step);
+		}
+		steps++;
+	}
+
+	/**
+	 * Advance every script by (at least) the given number of seconds.
+	 *
+	 * @param seconds seconds to simulate
+	 */
+	public void run(float seconds) {
+		int n = (int) Math.ceil(seconds / step);
+		for (int i = 0; i < n; i++) {
+			step();
+		}
+	}
+
+	/**
+	 * Fast forward every script at a coarse step. Kernel simulations are
+	 * prewarmed with {@link ScriptSimulation#prewarm(float, float)}, emitters
+	 * by updating them directly.
+	 *
+	 * @param seconds time to simulate
+	 * @param prewarmStep coarse step
+	 */
+	public void prewarm(float seconds, float prewarmStep) {
+		for (ScriptSimulation sim : simulations.values()) {
+			sim.prewarm(seconds, prewarmStep);
+		}
+		if (!scripts.isEmpty()) {
+			int n = (int) Math.ceil(seconds / prewarmStep);
+			for (int i = 0; i < n; i++) {
+				rootNode.updateLogicalState(seconds / n);
+			}
+			rootNode.updateGeometricState();
+		}
+	}
+
+	public int getActiveParticleCount() {
+		int count = 0;
+		for (OGREParticleScript script : scripts.keySet()) {
+			count += getActiveParticleCount(script);
+		}
+		for (ScriptSimulation sim : simulations.values()) {
+			count += sim.getStore().getActiveCount();
+		}
+		return count;
+	}
+
+	public int getActiveParticleCount(OGREParticleScript script) {
+		ScriptSimulation sim = simulations.get(script);
+		if (sim != null) {
+			return sim.getStore().getActiveCount();
+		}
+		int count = 0;
+		for (Emitter e : getEmitters(script)) {
+			count += e.getActiveParticleCount();
+		}
+		return count;
+	}
+}
@@ -0,0 +1,494 @@
+package org.iceparticles.sim;
+
+import static org.objectweb.asm.Opcodes.AALOAD;
+import static org.objectweb.asm.Opcodes.ACC_FINAL;
+import static org.objectweb.asm.Opcodes.ACC_PRIVATE;
+import static org.objectweb.asm.Opcodes.ACC_PUBLIC;
+import static org.objectweb.asm.Opcodes.ACC_SUPER;
+import static org.objectweb.asm.Opcodes.ALOAD;
+import static org.objectweb.asm.Opcodes.ASTORE;
+import static org.objectweb.asm.Opcodes.DUP2;
+import static org.objectweb.asm.Opcodes.F2I;
+import static org.objectweb.asm.Opcodes.FADD;
+import static org.objectweb.asm.Opcodes.FALOAD;
+import static org.objectweb.asm.Opcodes.FASTORE;
+import static org.objectweb.asm.Opcodes.FCMPG;
+import static org.objectweb.asm.Opcodes.FCMPL;
+import static org.objectweb.asm.Opcodes.FCONST_0;
+import static org.objectweb.asm.Opcodes.FCONST_1;
+import static org.objectweb.asm.Opcodes.FDIV;
+import static org.objectweb.asm.Opcodes.FLOAD;
+import static org.objectweb.asm.Opcodes.FMUL;
+import static org.objectweb.asm.Opcodes.FSTORE;
+import static org.objectweb.asm.Opcodes.FSUB;
+import static org.objectweb.asm.Opcodes.GETFIELD;
+import static org.objectweb.asm.Opcodes.GOTO;
+import static org.objectweb.asm.Opcodes.I2F;
+import static org.objectweb.asm.Opcodes.IADD;
+import static org.objectweb.asm.Opcodes.ICONST_2;
+import static org.objectweb.asm.Opcodes.IFGE;
+import static org.objectweb.asm.Opcodes.IFLE;
+import static org.objectweb.asm.Opcodes.IF_ICMPGE;
+import static org.objectweb.asm.Opcodes.ILOAD;
+import static org.objectweb.asm.Opcodes.INVOKESPECIAL;
+import static org.objectweb.asm.Opcodes.ISHL;
+import static org.objectweb.asm.Opcodes.ISTORE;
+import static org.objectweb.asm.Opcodes.PUTFIELD;
+import static org.objectweb.asm.Opcodes.RETURN;
+import static org.objectweb.asm.Opcodes.V1_8;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Type;
+
+/**
+ * Generates a single kernel class for a chain of affector kernels, with the
+ * parameters of each affector inlined as constants. The generated
+ * {@link AffectorKernel#apply(ParticleStore, int, int, float)} makes one pass
+ * over the slots, applying the whole chain to each live particle with no
+ * virtual calls, and no branches on options the affectors do not use (e.g. a
+ * force with no Y component never touches the Y velocity).
+ * <p>
+ * Only the linear force, colour fader, colour interpolator, scaler and rotator
+ * kernels can be generated. A chain containing any other kernel is not
+ * generated at all. Generated kernels only replace
+ * {@link AffectorKernel#apply(ParticleStore, int, int, float)}, new particles
+ * are still initialised by the original kernels.
+ * <p>
+ * Each class is defined in a class loader of its own, so it may be unloaded
+ * once the script it was generated for is edited or removed.
+ */
+public class KernelGenerator {
+
+	private final static Logger LOG = Logger.getLogger(KernelGenerator.class.getName());
+
+	private final static String PACKAGE = "org/iceparticles/sim/generated/";
+	private final static String STORE = Type.getInternalName(ParticleStore.class);
+	private final static String KERNEL = Type.getInternalName(AffectorKernel.class);
+	private final static String APPLY = Type.getMethodDescriptor(Type.VOID_TYPE, Type.getType(ParticleStore.class),
+			Type.INT_TYPE, Type.INT_TYPE, Type.FLOAT_TYPE);
+	private final static String ARRAY = "[F";
+
+	// Arguments of apply()
+	private final static int THIS = 0, S = 1, FROM = 2, TO = 3, DT = 4;
+
+	private final static AtomicInteger counter = new AtomicInteger();
+
+	/**
+	 * Get if a kernel may be part of a generated chain.
+	 *
+	 * @param kernel kernel
+	 * @return supported
+	 */
+	public static boolean isSupported(AffectorKernel kernel) {
+		return kernel instanceof LinearForceKernel || kernel instanceof ColourFaderKernel
+				|| kernel instanceof ColourInterpolatorKernel || kernel instanceof ScalerKernel
+				|| kernel instanceof RotatorKernel;
+	}
+
+	/**
+	 * Generate a kernel that applies a chain of kernels.
+	 *
+	 * @param affectors chain
+	 * @return kernel or <code>null</code> if any kernel of the chain is not
+	 *         supported, or the class could not be defined
+	 */
+	public static AffectorKernel generate(AffectorKernel[] affectors) {
+		for (AffectorKernel k : affectors) {
+			if (!isSupported(k)) {
+				return null;
+			}
+		}
+		String name = PACKAGE + "GeneratedChain" + counter.incrementAndGet();
+		try {
+			KernelGenerator gen = new KernelGenerator(name, affectors);
+			byte[] bytes = gen.generate();
+			Class<?> clazz = new Loader(KernelGenerator.class.getClassLoader()).define(name.replace('/', '.'),
+					bytes);
+			return (AffectorKernel) clazz.getConstructor(float[][].class)
+					.newInstance((Object) gen.tables.toArray(new float[0][]));
+		} catch (Exception | LinkageError e) {
+			LOG.log(Level.WARNING, "Could not generate affector kernel, the chain will be interpreted.", e);
+			return null;
+		}
+	}
+
+	private final String name;
+	private final AffectorKernel[] affectors;
+	private final List<float[]> tables = new ArrayList<float[]>();
+	private final Map<String, Integer> arrays = new LinkedHashMap<String, Integer>();
+	private MethodVisitor mv;
+	private int nextLocal = DT + 1;
+	private int i, v, x, j, f, o;
+
+	private KernelGenerator(String name, AffectorKernel[] affectors) {
+		this.name = name;
+		this.affectors = affectors;
+	}
+
+	private byte[] generate() {
+		ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_FRAMES) {
+			@Override
+			protected String getCommonSuperClass(String type1, String type2) {
+				// Only ever asked about the store and float arrays
+				return "java/lang/Object";
+			}
+		};
+		cw.visit(V1_8, ACC_PUBLIC | ACC_FINAL | ACC_SUPER, name, null, "java/lang/Object", new String[] { KERNEL });
+
+		for (AffectorKernel k : affectors) {
+			if (k instanceof ColourInterpolatorKernel && !((ColourInterpolatorKernel) k).getTable().isEmpty()) {
+				cw.visitField(ACC_PRIVATE | ACC_FINAL, "t" + tables.size(), ARRAY, null, null).visitEnd();
+				tables.add(((ColourInterpolatorKernel) k).getTable().getTable());
+			}
+		}
+
+		mv = cw.visitMethod(ACC_PUBLIC, "<init>", "([[F)V", null, null);
+		mv.visitCode();
+		mv.visitVarInsn(ALOAD, 0);
+		mv.visitMethodInsn(INVOKESPECIAL, "java/lang/Object", "<init>", "()V", false);
+		for (int t = 0; t < tables.size(); t++) {
+			mv.visitVarInsn(ALOAD, 0);
+			mv.visitVarInsn(ALOAD, 1);
+			mv.visitLdcInsn(t);
+			mv.visitInsn(AALOAD);
+			mv.visitFieldInsn(PUTFIELD, name, "t" + t, ARRAY);
+		}
+		mv.visitInsn(RETURN);
+		mv.visitMaxs(0, 0);
+		mv.visitEnd();
+
+		mv = cw.visitMethod(ACC_PUBLIC, "apply", APPLY, null, null);
+		mv.visitCode();
+		applyMethod();
+		mv.visitMaxs(0, 0);
+		mv.visitEnd();
+
+		cw.visitEnd();
+		return cw.toByteArray();
+	}
+
+	private void applyMethod() {
+		// Everything invariant over the loop is loaded into locals first
+		array("life");
+		int[] tableLocals = new int[tables.size()];
+		for (int t = 0; t < tableLocals.length; t++) {
+			mv.visitVarInsn(ALOAD, THIS);
+			mv.visitFieldInsn(GETFIELD, name, "t" + t, ARRAY);
+			tableLocals[t] = nextLocal++;
+			mv.visitVarInsn(ASTORE, tableLocals[t]);
+		}
+		int[][] steps = new int[affectors.length][];
+		for (int k = 0; k < affectors.length; k++) {
+			steps[k] = prologue(affectors[k]);
+		}
+		i = nextLocal++;
+		v = nextLocal++;
+		x = nextLocal++;
+		j = nextLocal++;
+		f = nextLocal++;
+		o = nextLocal++;
+
+		// for (int i = from; i < to; i++) if (life[i] > 0)
+		Label loop = new Label(), next = new Label(), end = new Label();
+		mv.visitVarInsn(ILOAD, FROM);
+		mv.visitVarInsn(ISTORE, i);
+		mv.visitLabel(loop);
+		mv.visitVarInsn(ILOAD, i);
+		mv.visitVarInsn(ILOAD, TO);
+		mv.visitJumpInsn(IF_ICMPGE, end);
+		element("life");
+		mv.visitInsn(FCONST_0);
+		mv.visitInsn(FCMPL);
+		mv.visitJumpInsn(IFLE, next);
+
+		int table = 0;
+		for (int k = 0; k < affectors.length; k++) {
+			AffectorKernel a = affectors[k];
+			if (a instanceof LinearForceKernel) {
+				linearForce((LinearForceKernel) a, steps[k]);
+			} else if (a instanceof ColourFaderKernel) {
+				colourFader(steps[k]);
+			} else if (a instanceof ScalerKernel) {
+				scaler(steps[k]);
+			} else if (a instanceof RotatorKernel) {
+				rotator();
+			} else if (a instanceof ColourInterpolatorKernel
+					&& !((ColourInterpolatorKernel) a).getTable().isEmpty()) {
+				colourInterpolator(tableLocals[table++]);
+			}
+		}
+
+		mv.visitLabel(next);
+		mv.visitIincInsn(i, 1);
+		mv.visitJumpInsn(GOTO, loop);
+		mv.visitLabel(end);
+		mv.visitInsn(RETURN);
+	}
+
+	/**
+	 * Load the arrays a kernel uses, and compute the amounts it changes
+	 * particles by in this step. Slots of amounts that are zero are -1.
+	 */
+	private int[] prologue(AffectorKernel a) {
+		if (a instanceof LinearForceKernel) {
+			LinearForceKernel lf = (LinearForceKernel) a;
+			float[] force = { lf.getForceX(), lf.getForceY(), lf.getForceZ() };
+			String[] velocities = { "vx", "vy", "vz" };
+			int[] steps = { -1, -1, -1 };
+			for (int c = 0; c < 3; c++) {
+				// Averaging moves towards the force even when it is zero
+				if (force[c] != 0 || lf.isAverage()) {
+					array(velocities[c]);
+					if (!lf.isAverage()) {
+						steps[c] = step(force[c]);
+					}
+				}
+			}
+			return steps;
+		} else if (a instanceof ColourFaderKernel) {
+			float[] rates = ((ColourFaderKernel) a).getRates();
+			String[] colours = { "r", "g", "b", "a" };
+			int[] steps = { -1, -1, -1, -1 };
+			for (int c = 0; c < 4; c++) {
+				if (rates[c] != 0) {
+					array(colours[c]);
+					steps[c] = step(rates[c]);
+				}
+			}
+			return steps;
+		} else if (a instanceof ScalerKernel) {
+			float rate = ((ScalerKernel) a).getRate();
+			if (rate == 0) {
+				return new int[] { -1 };
+			}
+			array("width");
+			array("height");
+			return new int[] { step(rate) };
+		} else if (a instanceof RotatorKernel) {
+			array("rotation");
+			array("rotationSpeed");
+		} else if (a instanceof ColourInterpolatorKernel) {
+			array("totalLife");
+			array("r");
+			array("g");
+			array("b");
+			array("a");
+		}
+		return null;
+	}
+
+	private void linearForce(LinearForceKernel lf, int[] steps) {
+		float[] force = { lf.getForceX(), lf.getForceY(), lf.getForceZ() };
+		String[] velocities = { "vx", "vy", "vz" };
+		for (int c = 0; c < 3; c++) {
+			if (lf.isAverage()) {
+				// v[i] = (v[i] + force) * 0.5f
+				elementForUpdate(velocities[c]);
+				mv.visitLdcInsn(force[c]);
+				mv.visitInsn(FADD);
+				mv.visitLdcInsn(0.5f);
+				mv.visitInsn(FMUL);
+				mv.visitInsn(FASTORE);
+			} else if (steps[c] != -1) {
+				// v[i] += step
+				elementForUpdate(velocities[c]);
+				mv.visitVarInsn(FLOAD, steps[c]);
+				mv.visitInsn(FADD);
+				mv.visitInsn(FASTORE);
+			}
+		}
+	}
+
+	private void colourFader(int[] steps) {
+		String[] colours = { "r", "g", "b", "a" };
+		for (int c = 0; c < 4; c++) {
+			if (steps[c] != -1) {
+				// c[i] = max(0, min(1, c[i] + step))
+				elementForUpdate(colours[c]);
+				mv.visitVarInsn(FLOAD, steps[c]);
+				mv.visitInsn(FADD);
+				clamp(true);
+				mv.visitInsn(FASTORE);
+			}
+		}
+	}
+
+	private void scaler(int[] steps) {
+		if (steps[0] == -1) {
+			return;
+		}
+		for (String size : new String[] { "width", "height" }) {
+			// s[i] = max(0, s[i] + step)
+			elementForUpdate(size);
+			mv.visitVarInsn(FLOAD, steps[0]);
+			mv.visitInsn(FADD);
+			clamp(false);
+			mv.visitInsn(FASTORE);
+		}
+	}
+
+	private void rotator() {
+		// rotation[i] += rotationSpeed[i] * dt
+		elementForUpdate("rotation");
+		element("rotationSpeed");
+		mv.visitVarInsn(FLOAD, DT);
+		mv.visitInsn(FMUL);
+		mv.visitInsn(FADD);
+		mv.visitInsn(FASTORE);
+	}
+
+	private void colourInterpolator(int table) {
+		// x = max(0, 1 - life[i] / totalLife[i]) * RESOLUTION
+		mv.visitInsn(FCONST_1);
+		element("life");
+		element("totalLife");
+		mv.visitInsn(FDIV);
+		mv.visitInsn(FSUB);
+		clamp(false);
+		mv.visitLdcInsn((float) LifetimeTable.RESOLUTION);
+		mv.visitInsn(FMUL);
+		mv.visitVarInsn(FSTORE, x);
+		// j = x > RESOLUTION - 1 ? RESOLUTION - 1 : (int) x
+		Label inRange = new Label(), done = new Label();
+		mv.visitVarInsn(FLOAD, x);
+		mv.visitLdcInsn((float) (LifetimeTable.RESOLUTION - 1));
+		mv.visitInsn(FCMPL);
+		mv.visitJumpInsn(IFLE, inRange);
+		mv.visitLdcInsn(LifetimeTable.RESOLUTION - 1);
+		mv.visitJumpInsn(GOTO, done);
+		mv.visitLabel(inRange);
+		mv.visitVarInsn(FLOAD, x);
+		mv.visitInsn(F2I);
+		mv.visitLabel(done);
+		mv.visitVarInsn(ISTORE, j);
+		// f = x - j
+		mv.visitVarInsn(FLOAD, x);
+		mv.visitVarInsn(ILOAD, j);
+		mv.visitInsn(I2F);
+		mv.visitInsn(FSUB);
+		mv.visitVarInsn(FSTORE, f);
+		// o = j << 2
+		mv.visitVarInsn(ILOAD, j);
+		mv.visitInsn(ICONST_2);
+		mv.visitInsn(ISHL);
+		mv.visitVarInsn(ISTORE, o);
+
+		String[] colours = { "r", "g", "b", "a" };
+		for (int c = 0; c < 4; c++) {
+			// c[i] = t[o + c] + (t[o + c + 4] - t[o + c]) * f
+			mv.visitVarInsn(ALOAD, arrays.get(colours[c]));
+			mv.visitVarInsn(ILOAD, i);
+			tableElement(table, c);
+			tableElement(table, c + 4);
+			tableElement(table, c);
+			mv.visitInsn(FSUB);
+			mv.visitVarInsn(FLOAD, f);
+			mv.visitInsn(FMUL);
+			mv.visitInsn(FADD);
+			mv.visitInsn(FASTORE);
+		}
+	}
+
+	/**
+	 * Clamp the value on the stack to be no less than 0, and if
+	 * <code>unit</code> no more than 1. Branches are cheaper than
+	 * {@link Math#max(float, float)}, which must also order zeroes and NaN.
+	 */
+	private void clamp(boolean unit) {
+		Label positive = new Label(), done = new Label();
+		mv.visitVarInsn(FSTORE, v);
+		// v < 0 ? 0 : (v > 1 ? 1 : v)
+		mv.visitVarInsn(FLOAD, v);
+		mv.visitInsn(FCONST_0);
+		mv.visitInsn(FCMPG);
+		mv.visitJumpInsn(IFGE, positive);
+		mv.visitInsn(FCONST_0);
+		mv.visitJumpInsn(GOTO, done);
+		mv.visitLabel(positive);
+		if (unit) {
+			Label below = new Label();
+			mv.visitVarInsn(FLOAD, v);
+			mv.visitInsn(FCONST_1);
+			mv.visitInsn(FCMPL);
+			mv.visitJumpInsn(IFLE, below);
+			mv.visitInsn(FCONST_1);
+			mv.visitJumpInsn(GOTO, done);
+			mv.visitLabel(below);
+		}
+		mv.visitVarInsn(FLOAD, v);
+		mv.visitLabel(done);
+	}
+
+	private void tableElement(int table, int offset) {
+		mv.visitVarInsn(ALOAD, table);
+		mv.visitVarInsn(ILOAD, o);
+		if (offset != 0) {
+			mv.visitLdcInsn(offset);
+			mv.visitInsn(IADD);
+		}
+		mv.visitInsn(FALOAD);
+	}
+
+	/**
+	 * Load an array of the store into a local, if it is not already.
+	 */
+	private void array(String field) {
+		if (!arrays.containsKey(field)) {
+			mv.visitVarInsn(ALOAD, S);
+			mv.visitFieldInsn(GETFIELD, STORE, field, ARRAY);
+			mv.visitVarInsn(ASTORE, nextLocal);
+			arrays.put(field, nextLocal++);
+		}
+	}
+
+	/**
+	 * Compute <code>amount * dt</code> into a local.
+	 */
+	private int step(float amount) {
+		mv.visitLdcInsn(amount);
+		mv.visitVarInsn(FLOAD, DT);
+		mv.visitInsn(FMUL);
+		mv.visitVarInsn(FSTORE, nextLocal);
+		return nextLocal++;
+	}
+
+	/**
+	 * Push <code>field[i]</code>.
+	 */
+	private void element(String field) {
+		mv.visitVarInsn(ALOAD, arrays.get(field));
+		mv.visitVarInsn(ILOAD, i);
+		mv.visitInsn(FALOAD);
+	}
+
+	/**
+	 * Push <code>field, i, field[i]</code>, ready for the new value to be
+	 * computed and stored.
+	 */
+	private void elementForUpdate(String field) {
+		mv.visitVarInsn(ALOAD, arrays.get(field));
+		mv.visitVarInsn(ILOAD, i);
+		mv.visitInsn(DUP2);
+		mv.visitInsn(FALOAD);
+	}
+
+	private static class Loader extends ClassLoader {
+		Loader(ClassLoader parent) {
+			super(parent);
+		}
+
+		Class<?> define(String name, byte[] bytes) {
+			return defineClass(name, bytes, 0, bytes.length);
+		}
+	}
+}
@@ -0,0 +1,219 @@
+package org.iceparticles.sim;
+
+import java.util.logging.Logger;
+
+import org.icescene.ogreparticle.AbstractOGREParticleEmitter;
+import org.icescene.ogreparticle.OGREParticleAffector;
+import org.icescene.ogreparticle.OGREParticleEmitter;
+import org.icescene.ogreparticle.OGREParticleScript;
+import org.icescene.ogreparticle.affectors.ColourFaderAffector;
+import org.icescene.ogreparticle.affectors.ColourInterpolatorAffector;
+import org.icescene.ogreparticle.affectors.DirectionRandomiserAffector;
+import org.icescene.ogreparticle.affectors.LinearForceAffector;
+import org.icescene.ogreparticle.affectors.RotationAffector;
+import org.icescene.ogreparticle.affectors.ScaleAffector;
+import org.icescene.ogreparticle.emitters.BoxEmitter;
+import org.icescene.ogreparticle.emitters.CylinderEmitter;
+import org.icescene.ogreparticle.emitters.EllipsoidEmitter;
+import org.icescene.ogreparticle.emitters.HollowEllipsoidEmitter;
+import org.icescene.ogreparticle.emitters.PointEmitter;
+import org.icescene.ogreparticle.emitters.RingEmitter;
+
+import com.jme3.math.ColorRGBA;
+import com.jme3.math.Vector2f;
+import com.jme3.math.Vector3f;
+
+/**
+ * Compiles OGRE emitters and affectors into kernels. Only the emitter and
+ * affector types listed here are supported, and their attributes are read
+ * through their own accessors. A script with any other type (see
+ * {@link #isSupported(OGREParticleScript)}) should be run by the emitter
+ * runtime instead, rather than the kernels simulating a different effect.
+ */
+public class Kernels {
+
+	private final static Logger LOG = Logger.getLogger(Kernels.class.getName());
+
+	/**
+	 * The number of colour stages of a colour interpolator.
+	 */
+	public final static int COLOUR_STAGES = 6;
+
+	/**
+	 * Get if every emitter and affector of a script can be compiled.
+	 *
+	 * @param script script
+	 * @return supported
+	 */
+	public static boolean isSupported(OGREParticleScript script) {
+		for (OGREParticleEmitter e : script.getEmitters()) {
+			if (!isSupported(e)) {
+				return false;
+			}
+		}
+		for (OGREParticleAffector a : script.getAffectors()) {
+			if (!isSupported(a)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public static boolean isSupported(OGREParticleEmitter emitter) {
+		if (shape(emitter) == null) {
+			return false;
+		}
+		AbstractOGREParticleEmitter e = (AbstractOGREParticleEmitter) emitter;
+		return e.getPosition() != null && e.getDirection() != null && e.getColourRangeStart() != null
+				&& e.getColourRangeEnd() != null;
+	}
+
+	public static boolean isSupported(OGREParticleAffector affector) {
+		if (affector instanceof LinearForceAffector) {
+			LinearForceAffector a = (LinearForceAffector) affector;
+			return a.getForceVector() != null && a.getForceApplication() != null;
+		} else if (affector instanceof ColourInterpolatorAffector) {
+			ColourInterpolatorAffector a = (ColourInterpolatorAffector) affector;
+			for (int i = 0; i < COLOUR_STAGES; i++) {
+				if (a.getColourAdjust(i) == null) {
+					return false;
+				}
+			}
+			return true;
+		}
+		return affector instanceof ColourFaderAffector || affector instanceof ScaleAffector
+				|| affector instanceof RotationAffector || affector instanceof DirectionRandomiserAffector;
+	}
+
+	/**
+	 * Compile an emitter.
+	 *
+	 * @param emitter emitter
+	 * @param script script
+	 * @param random random
+	 * @return kernel or <code>null</code> if the emitter is not supported
+	 */
+	public static EmitterKernel emitter(OGREParticleEmitter emitter, OGREParticleScript script, ParticleRandom random) {
+		if (!isSupported(emitter)) {
+			LOG.warning(String.format("No kernel for emitter %s of %s, it will be ignored.",
+					emitter.getClass().getSimpleName(), script.getName()));
+			return null;
+		}
+		AbstractOGREParticleEmitter e = (AbstractOGREParticleEmitter) emitter;
+		EmitterKernel k = new EmitterKernel(shape(emitter), random);
+		Vector3f pos = e.getPosition();
+		k.setPosition(pos.x, pos.y, pos.z);
+		Vector3f dir = e.getDirection();
+		k.setDirection(dir.x, dir.y, dir.z);
+		k.setAngle(e.getAngle());
+		k.setEmissionRate(e.getEmissionRate());
+		k.setTimeToLive(e.getMinTimeToLive(), e.getMaxTimeToLive());
+		k.setVelocity(e.getMinParticleVelocity(), e.getMaxParticleVelocity());
+		k.setColour(e.getColourRangeStart(), e.getColourRangeEnd());
+		if (emitter instanceof BoxEmitter) {
+			BoxEmitter b = (BoxEmitter) emitter;
+			k.setShapeSize(b.getWidth(), b.getHeight(), b.getDepth());
+		} else if (emitter instanceof HollowEllipsoidEmitter) {
+			HollowEllipsoidEmitter b = (HollowEllipsoidEmitter) emitter;
+			k.setShapeSize(b.getWidth(), b.getHeight(), b.getDepth());
+		} else if (emitter instanceof EllipsoidEmitter) {
+			EllipsoidEmitter b = (EllipsoidEmitter) emitter;
+			k.setShapeSize(b.getWidth(), b.getHeight(), b.getDepth());
+		} else if (emitter instanceof CylinderEmitter) {
+			CylinderEmitter b = (CylinderEmitter) emitter;
+			k.setShapeSize(b.getWidth(), b.getHeight(), b.getDepth());
+		} else if (emitter instanceof RingEmitter) {
+			RingEmitter b = (RingEmitter) emitter;
+			k.setShapeSize(b.getWidth(), b.getHeight(), b.getDepth());
+		}
+		Vector2f size = script.getParticleSize();
+		if (size != null) {
+			k.setParticleSize(size.x, size.y);
+		}
+		return k;
+	}
+
+	/**
+	 * Compile an affector.
+	 *
+	 * @param affector affector
+	 * @param random random
+	 * @return kernel or <code>null</code> if the affector is not supported
+	 */
+	public static AffectorKernel affector(OGREParticleAffector affector, ParticleRandom random) {
+		return affector(affector, random, null);
+	}
+
+	/**
+	 * Compile an affector that may have been compiled before. Kernels that
+	 * precompute tables return the previous kernel if the properties they are
+	 * computed from have not changed.
+	 *
+	 * @param affector affector
+	 * @param random random
+	 * @param previous kernel the affector was last compiled to or
+	 *            <code>null</code>
+	 * @return kernel or <code>null</code> if the affector is not supported
+	 */
+	public static AffectorKernel affector(OGREParticleAffector affector, ParticleRandom random,
+			AffectorKernel previous) {
+		if (!isSupported(affector)) {
+			LOG.warning(String.format("No kernel for affector %s, it will be ignored.",
+					affector.getClass().getSimpleName()));
+			return null;
+		}
+		if (affector instanceof LinearForceAffector) {
+			LinearForceAffector a = (LinearForceAffector) affector;
+			Vector3f force = a.getForceVector();
+			return new LinearForceKernel(force.x, force.y, force.z,
+					a.getForceApplication() == LinearForceAffector.ForceApplication.AVERAGE);
+		} else if (affector instanceof ColourInterpolatorAffector) {
+			// As in OGRE, every stage is used, unset stages are at the end of life
+			ColourInterpolatorAffector a = (ColourInterpolatorAffector) affector;
+			float[] t = new float[COLOUR_STAGES];
+			float[] c = new float[COLOUR_STAGES * 4];
+			for (int i = 0; i < COLOUR_STAGES; i++) {
+				t[i] = a.getTimeAdjust(i);
+				ColorRGBA col = a.getColourAdjust(i);
+				c[i * 4] = col.r;
+				c[i * 4 + 1] = col.g;
+				c[i * 4 + 2] = col.b;
+				c[i * 4 + 3] = col.a;
+			}
+			if (previous instanceof ColourInterpolatorKernel
+					&& ((ColourInterpolatorKernel) previous).getTable().hasKeys(t, c)) {
+				return previous;
+			}
+			return new ColourInterpolatorKernel(t, c);
+		} else if (affector instanceof ColourFaderAffector) {
+			ColourFaderAffector a = (ColourFaderAffector) affector;
+			return new ColourFaderKernel(a.getRedAdjust(), a.getGreenAdjust(), a.getBlueAdjust(), a.getAlphaAdjust());
+		} else if (affector instanceof ScaleAffector) {
+			return new ScalerKernel(((ScaleAffector) affector).getAdjust());
+		} else if (affector instanceof RotationAffector) {
+			RotationAffector a = (RotationAffector) affector;
+			return new RotatorKernel(a.getRotationRangeStart(), a.getRotationRangeEnd(),
+					a.getRotationSpeedRangeStart(), a.getRotationSpeedRangeEnd(), random);
+		}
+		DirectionRandomiserAffector a = (DirectionRandomiserAffector) affector;
+		return new DirectionRandomiserKernel(a.getRandomness(), a.getScope(), a.getKeepVelocity(), random);
+	}
+
+	private static EmitterKernel.Shape shape(OGREParticleEmitter emitter) {
+		// Subclasses are tested before the types they may extend
+		if (emitter instanceof HollowEllipsoidEmitter) {
+			return EmitterKernel.Shape.HOLLOW_ELLIPSOID;
+		} else if (emitter instanceof EllipsoidEmitter) {
+			return EmitterKernel.Shape.ELLIPSOID;
+		} else if (emitter instanceof BoxEmitter) {
+			return EmitterKernel.Shape.BOX;
+		} else if (emitter instanceof CylinderEmitter) {
+			return EmitterKernel.Shape.CYLINDER;
+		} else if (emitter instanceof RingEmitter) {
+			return EmitterKernel.Shape.RING;
+		} else if (emitter instanceof PointEmitter) {
+			return EmitterKernel.Shape.POINT;
+		}
+		return null;
+	}
+}
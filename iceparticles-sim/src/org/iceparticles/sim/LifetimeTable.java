@@ -0,0 +1,115 @@
+package org.iceparticles.sim;
+
+import java.util.Arrays;
+
+/**
+ * A piecewise linear function of normalised particle age (0 when emitted, 1
+ * when expired), sampled at regular intervals. Looking up a value is a single
+ * fetch and lerp however many keys the function has, rather than a search
+ * through the keys for every particle.
+ * <p>
+ * The keys are kept, so a kernel may tell if an edited affector still results
+ * in the same table and keep it rather than sampling it again.
+ */
+public class LifetimeTable {
+
+	/**
+	 * The number of intervals the age range is divided into.
+	 */
+	public final static int RESOLUTION = 256;
+
+	private final float[] times;
+	private final float[] values;
+	private final int components;
+	private final float[] table;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param times ascending times (0 to 1)
+	 * @param values <code>components</code> values per time
+	 * @param components number of values per time
+	 */
+	public LifetimeTable(float[] times, float[] values, int components) {
+		if (values.length != times.length * components) {
+			throw new IllegalArgumentException(
+					String.format("Expected %d values for %d times.", times.length * components, times.length));
+		}
+		this.times = times.clone();
+		this.values = values.clone();
+		this.components = components;
+		table = new float[(RESOLUTION + 1) * components];
+		if (times.length > 0) {
+			for (int j = 0; j <= RESOLUTION; j++) {
+				evaluate(j / (float) RESOLUTION, j * components);
+			}
+		}
+	}
+
+	public int getComponents() {
+		return components;
+	}
+
+	/**
+	 * Get if there are no keys, in which case every value is zero.
+	 *
+	 * @return empty
+	 */
+	public boolean isEmpty() {
+		return times.length == 0;
+	}
+
+	/**
+	 * Get if this table was made from the given keys.
+	 *
+	 * @param times times
+	 * @param values values
+	 * @return same keys
+	 */
+	public boolean hasKeys(float[] times, float[] values) {
+		return Arrays.equals(this.times, times) && Arrays.equals(this.values, values);
+	}
+
+	/**
+	 * Get the sampled values. The values at age <code>j / RESOLUTION</code>
+	 * start at index <code>j * components</code>, and there is a sample at
+	 * age 1, so the sample after any age below 1 is always present.
+	 *
+	 * @return table
+	 */
+	public float[] getTable() {
+		return table;
+	}
+
+	/**
+	 * Look up a single component.
+	 *
+	 * @param age normalised age
+	 * @param component component
+	 * @return value
+	 */
+	public float get(float age, int component) {
+		float x = (age < 0 ? 0 : (age > 1 ? 1 : age)) * RESOLUTION;
+		int j = Math.min((int) x, RESOLUTION - 1);
+		int o = j * components + component;
+		return table[o] + (table[o + components] - table[o]) * (x - j);
+	}
+
+	private void evaluate(float age, int o) {
+		final int n = times.length;
+		int k = 0;
+		while (k < n - 1 && age > times[k + 1]) {
+			k++;
+		}
+		int v0 = k * components;
+		if (k == n - 1 || age <= times[k]) {
+			System.arraycopy(values, v0, table, o, components);
+		} else {
+			int v1 = v0 + components;
+			float f = (age - times[k]) / (times[k + 1] - times[k]);
+			for (int c = 0; c < components; c++) {
+				table[o + c] = values[v0 + c] + (values[v1 + c] - values[v0 + c]) * f;
+			}
+		}
+	}
+}
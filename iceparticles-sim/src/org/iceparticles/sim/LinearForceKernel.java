@@ -0,0 +1,57 @@
+package org.iceparticles.sim;
+
+/**
+ * Applies a constant force to every particle, either adding to its velocity or
+ * averaging with it.
+ */
+public class LinearForceKernel implements AffectorKernel {
+
+	private final float fx, fy, fz;
+	private final boolean average;
+
+	public LinearForceKernel(float fx, float fy, float fz, boolean average) {
+		this.fx = fx;
+		this.fy = fy;
+		this.fz = fz;
+		this.average = average;
+	}
+
+	public float getForceX() {
+		return fx;
+	}
+
+	public float getForceY() {
+		return fy;
+	}
+
+	public float getForceZ() {
+		return fz;
+	}
+
+	public boolean isAverage() {
+		return average;
+	}
+
+	@Override
+	public void apply(ParticleStore s, int from, int to, float dt) {
+		final float[] life = s.life, vx = s.vx, vy = s.vy, vz = s.vz;
+		if (average) {
+			for (int i = from; i < to; i++) {
+				if (life[i] > 0) {
+					vx[i] = (vx[i] + fx) * 0.5f;
+					vy[i] = (vy[i] + fy) * 0.5f;
+					vz[i] = (vz[i] + fz) * 0.5f;
+				}
+			}
+		} else {
+			final float sx = fx * dt, sy = fy * dt, sz = fz * dt;
+			for (int i = from; i < to; i++) {
+				if (life[i] > 0) {
+					vx[i] += sx;
+					vy[i] += sy;
+					vz[i] += sz;
+				}
+			}
+		}
+	}
+}
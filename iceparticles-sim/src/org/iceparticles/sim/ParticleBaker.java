@@ -0,0 +1,203 @@
+package org.iceparticles.sim;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+import org.icescene.ogreparticle.OGREParticleScript;
+
+/**
+ * Records a script into a file that may be played back without simulating
+ * (see {@link BakedParticles}), for effects that never change at runtime. The
+ * script is run as a {@link ScriptSimulation}, so the same script and seed
+ * always bake the same file. Particles are emitted relative to the origin, so
+ * baked world space scripts play back moving with whatever they are attached
+ * to.
+ */
+public class ParticleBaker {
+
+	public final static float DEFAULT_STEP = 1f / 30f;
+
+	private final ScriptSimulation simulation;
+	private float step = DEFAULT_STEP;
+	private float prewarm;
+
+	public ParticleBaker(ScriptSimulation simulation) {
+		this.simulation = simulation;
+	}
+
+	public ScriptSimulation getSimulation() {
+		return simulation;
+	}
+
+	public float getStep() {
+		return step;
+	}
+
+	/**
+	 * Set the time between recorded frames. The simulation is stepped at the
+	 * same rate.
+	 *
+	 * @param step step
+	 */
+	public void setStep(float step) {
+		if (step <= 0) {
+			throw new IllegalArgumentException("Step must be greater than zero.");
+		}
+		this.step = step;
+	}
+
+	public float getPrewarm() {
+		return prewarm;
+	}
+
+	/**
+	 * Set the time simulated before the first frame is recorded, e.g. so a
+	 * looping ambient effect is recorded at its steady state.
+	 *
+	 * @param prewarm seconds
+	 */
+	public void setPrewarm(float prewarm) {
+		this.prewarm = Math.max(0, prewarm);
+	}
+
+	/**
+	 * Simulate and record the script.
+	 *
+	 * @param file file to write
+	 * @param seconds time to record
+	 * @return number of frames written
+	 * @throws IOException on error, if the script is not supported by kernels
+	 *             or if the bake would be larger than
+	 *             {@link BakedParticles#MAX_SIZE}
+	 */
+	public int bake(File file, float seconds) throws IOException {
+		OGREParticleScript script = simulation.getScript();
+		if (!Kernels.isSupported(script)) {
+			throw new IOException(String.format("%s has emitters or affectors that cannot be baked.",
+					script.getName()));
+		}
+		simulation.setOrigin(0, 0, 0);
+		simulation.prewarm(prewarm, ScriptSimulation.PREWARM_STEP);
+		int frames = Math.max(1, Math.round(seconds / step));
+		byte[] name = script.getMaterialName() == null ? new byte[0]
+				: script.getMaterialName().getBytes(StandardCharsets.UTF_8);
+		ParticleFrame frame = new ParticleFrame();
+		ByteBuffer buf = ByteBuffer.allocate(BakedParticles.HEADER_BYTES + 2 + name.length)
+				.order(ByteOrder.LITTLE_ENDIAN);
+		long[] index = new long[frames];
+		int maxCount = 0;
+
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		boolean baked = false;
+		try {
+			raf.setLength(0);
+			FileChannel channel = raf.getChannel();
+
+			// The header is written again at the end, once the index is known
+			buf.position(BakedParticles.HEADER_BYTES);
+			buf.putShort((short) name.length).put(name).flip();
+			write(channel, buf);
+			long offset = buf.limit();
+
+			for (int i = 0; i < frames; i++) {
+				simulation.step(step);
+				frame.copy(simulation.getStore(), simulation.getTime());
+				int count = frame.getCount();
+				int bytes = BakedParticles.FRAME_HEADER_BYTES + count * BakedParticles.PARTICLE_BYTES;
+				if (offset + bytes + frames * 8L > BakedParticles.MAX_SIZE) {
+					throw new IOException(String.format(
+							"Bake of %s would be larger than %d bytes at frame %d of %d, "
+									+ "record fewer seconds or lower the quota.",
+							script.getName(), BakedParticles.MAX_SIZE, i + 1, frames));
+				}
+				if (buf.capacity() < bytes) {
+					buf = ByteBuffer.allocate(Math.max(bytes, buf.capacity() * 2)).order(ByteOrder.LITTLE_ENDIAN);
+				}
+				buf.clear();
+				encode(frame, buf);
+				buf.flip();
+				write(channel, buf);
+				index[i] = offset;
+				offset += bytes;
+				maxCount = Math.max(maxCount, count);
+			}
+
+			ByteBuffer idx = ByteBuffer.allocate(frames * 8).order(ByteOrder.LITTLE_ENDIAN);
+			for (long o : index) {
+				idx.putLong(o);
+			}
+			idx.flip();
+			write(channel, idx);
+
+			int flags = (script.isLocalSpace() ? BakedParticles.FLAG_LOCAL_SPACE : 0)
+					| (script.isSorted() ? BakedParticles.FLAG_SORTED : 0);
+			ByteBuffer header = ByteBuffer.allocate(BakedParticles.HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+			header.putInt(BakedParticles.MAGIC).putInt(BakedParticles.VERSION).putInt(flags).putFloat(step)
+					.putInt(frames).putInt(maxCount).putLong(offset).flip();
+			channel.position(0);
+			write(channel, header);
+			baked = true;
+		} finally {
+			raf.close();
+			if (!baked) {
+				file.delete();
+			}
+		}
+		return frames;
+	}
+
+	private static void encode(ParticleFrame f, ByteBuffer buf) {
+		final int count = f.getCount();
+		float minX = Float.MAX_VALUE, minY = Float.MAX_VALUE, minZ = Float.MAX_VALUE;
+		float maxX = -Float.MAX_VALUE, maxY = -Float.MAX_VALUE, maxZ = -Float.MAX_VALUE, maxSize = 0;
+		for (int i = 0; i < count; i++) {
+			minX = Math.min(minX, f.px[i]);
+			minY = Math.min(minY, f.py[i]);
+			minZ = Math.min(minZ, f.pz[i]);
+			maxX = Math.max(maxX, f.px[i]);
+			maxY = Math.max(maxY, f.py[i]);
+			maxZ = Math.max(maxZ, f.pz[i]);
+			maxSize = Math.max(maxSize, Math.max(f.width[i], f.height[i]));
+		}
+		if (count == 0) {
+			minX = minY = minZ = maxX = maxY = maxZ = 0;
+		}
+		float sx = (maxX - minX) / 65535f, sy = (maxY - minY) / 65535f, sz = (maxZ - minZ) / 65535f;
+		float ss = maxSize / 65535f;
+		buf.putInt(count).putFloat(minX).putFloat(minY).putFloat(minZ).putFloat(sx).putFloat(sy).putFloat(sz)
+				.putFloat(ss);
+		for (int i = 0; i < count; i++) {
+			float rot = f.rotation[i] % BakedParticles.TWO_PI;
+			if (rot < 0) {
+				rot += BakedParticles.TWO_PI;
+			}
+			buf.putShort(quantize(f.px[i] - minX, sx)).putShort(quantize(f.py[i] - minY, sy))
+					.putShort(quantize(f.pz[i] - minZ, sz)).putShort(quantize(f.width[i], ss))
+					.putShort(quantize(f.height[i], ss))
+					.putShort((short) ((int) (rot / BakedParticles.TWO_PI * 65536f + 0.5f) & 0xffff))
+					.put(unit(f.r[i])).put(unit(f.g[i])).put(unit(f.b[i])).put(unit(f.a[i]));
+		}
+	}
+
+	private static short quantize(float value, float scale) {
+		if (scale == 0) {
+			return 0;
+		}
+		return (short) Math.max(0, Math.min(65535, (int) (value / scale + 0.5f)));
+	}
+
+	private static byte unit(float value) {
+		return (byte) Math.max(0, Math.min(255, (int) (value * 255f + 0.5f)));
+	}
+
+	private static void write(FileChannel channel, ByteBuffer buf) throws IOException {
+		while (buf.hasRemaining()) {
+			channel.write(buf);
+		}
+	}
+}
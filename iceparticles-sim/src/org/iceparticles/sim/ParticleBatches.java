@@ -0,0 +1,132 @@
+package org.iceparticles.sim;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A {@link ParticleMeshBuilder} per key (e.g. material), so that the particles
+ * of many scripts sharing the key can be merged into one mesh (and so one draw
+ * call). Each build, the builder for a key is started the first time it is
+ * asked for, and particles from any number of sources appended to it. Batches
+ * not asked for in a build are left empty.
+ *
+ * @param <K> key type
+ */
+public class ParticleBatches<K> {
+
+	public static class Batch<K> {
+		private final K key;
+		private final ParticleMeshBuilder builder = new ParticleMeshBuilder();
+		private int build;
+		private int sources;
+
+		Batch(K key) {
+			this.key = key;
+		}
+
+		public K getKey() {
+			return key;
+		}
+
+		public ParticleMeshBuilder getBuilder() {
+			return builder;
+		}
+
+		/**
+		 * Get the number of sources added to the batch in the last build.
+		 *
+		 * @return sources
+		 */
+		public int getSources() {
+			return sources;
+		}
+	}
+
+	private final Map<K, Batch<K>> batches = new HashMap<K, Batch<K>>();
+	private final List<Batch<K>> list = new ArrayList<Batch<K>>();
+	private int build;
+
+	/**
+	 * Start a new build of all batches.
+	 */
+	public void begin() {
+		build++;
+	}
+
+	/**
+	 * Get the builder to add a source of particles to, creating the batch if
+	 * needed.
+	 *
+	 * @param key key
+	 * @return builder
+	 */
+	public ParticleMeshBuilder add(K key) {
+		Batch<K> batch = batches.get(key);
+		if (batch == null) {
+			batch = new Batch<K>(key);
+			batches.put(key, batch);
+			list.add(batch);
+		}
+		if (batch.build != build) {
+			batch.build = build;
+			batch.sources = 0;
+			batch.builder.begin();
+		}
+		batch.sources++;
+		return batch.builder;
+	}
+
+	/**
+	 * Finish the build of all batches, emptying any nothing was added to.
+	 */
+	public void end() {
+		for (int i = 0; i < list.size(); i++) {
+			Batch<K> batch = list.get(i);
+			if (batch.build != build) {
+				batch.sources = 0;
+				if (batch.builder.getQuads() == 0) {
+					continue;
+				}
+				batch.builder.begin();
+			}
+			batch.builder.end();
+		}
+	}
+
+	public Batch<K> get(K key) {
+		return batches.get(key);
+	}
+
+	/**
+	 * Get the number of batches.
+	 *
+	 * @return size
+	 */
+	public int size() {
+		return list.size();
+	}
+
+	/**
+	 * Get a batch by index, in order of creation.
+	 *
+	 * @param index index
+	 * @return batch
+	 */
+	public Batch<K> get(int index) {
+		return list.get(index);
+	}
+
+	public void remove(K key) {
+		Batch<K> batch = batches.remove(key);
+		if (batch != null) {
+			list.remove(batch);
+		}
+	}
+
+	public void clear() {
+		batches.clear();
+		list.clear();
+	}
+}
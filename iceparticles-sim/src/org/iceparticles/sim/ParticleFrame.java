@@ -0,0 +1,97 @@
+package org.iceparticles.sim;
+
+import java.util.Arrays;
+
+/**
+ * A compact copy of the renderable attributes of the live particles in a
+ * {@link ParticleStore}, as handed from a simulation thread to the render
+ * thread. The arrays only grow, so once they reach the script's quota, copying
+ * allocates nothing.
+ */
+public class ParticleFrame {
+
+	public float[] px = new float[0], py = new float[0], pz = new float[0];
+	public float[] r = new float[0], g = new float[0], b = new float[0], a = new float[0];
+	public float[] width = new float[0], height = new float[0];
+	public float[] rotation = new float[0];
+
+	private int count;
+	private float time;
+
+	/**
+	 * Get the number of particles in the frame.
+	 *
+	 * @return count
+	 */
+	public int getCount() {
+		return count;
+	}
+
+	/**
+	 * Get the simulation time the frame was captured at.
+	 *
+	 * @return time
+	 */
+	public float getTime() {
+		return time;
+	}
+
+	/**
+	 * Replace the contents of this frame with the live particles of a store.
+	 *
+	 * @param s store
+	 * @param time simulation time
+	 */
+	public void copy(ParticleStore s, float time) {
+		ensureCapacity(s.getActiveCount());
+		final float[] life = s.life;
+		final int end = s.getEnd();
+		int n = 0;
+		for (int i = 0; i < end; i++) {
+			if (life[i] > 0) {
+				px[n] = s.px[i];
+				py[n] = s.py[i];
+				pz[n] = s.pz[i];
+				r[n] = s.r[i];
+				g[n] = s.g[i];
+				b[n] = s.b[i];
+				a[n] = s.a[i];
+				width[n] = s.width[i];
+				height[n] = s.height[i];
+				rotation[n] = s.rotation[i];
+				n++;
+			}
+		}
+		this.count = n;
+		this.time = time;
+	}
+
+	/**
+	 * Set the number of particles and time of a frame whose arrays have been
+	 * filled directly (e.g. by {@link BakedParticles}).
+	 *
+	 * @param count count
+	 * @param time time
+	 */
+	void set(int count, float time) {
+		this.count = count;
+		this.time = time;
+	}
+
+	void ensureCapacity(int required) {
+		if (required <= px.length) {
+			return;
+		}
+		int newCapacity = Math.max(required, px.length * 2);
+		px = Arrays.copyOf(px, newCapacity);
+		py = Arrays.copyOf(py, newCapacity);
+		pz = Arrays.copyOf(pz, newCapacity);
+		r = Arrays.copyOf(r, newCapacity);
+		g = Arrays.copyOf(g, newCapacity);
+		b = Arrays.copyOf(b, newCapacity);
+		a = Arrays.copyOf(a, newCapacity);
+		width = Arrays.copyOf(width, newCapacity);
+		height = Arrays.copyOf(height, newCapacity);
+		rotation = Arrays.copyOf(rotation, newCapacity);
+	}
+}
@@ -0,0 +1,356 @@
+package org.iceparticles.sim;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+
+import com.jme3.math.FastMath;
+import com.jme3.math.Matrix3f;
+import com.jme3.math.Transform;
+import com.jme3.scene.Mesh;
+import com.jme3.scene.VertexBuffer;
+import com.jme3.scene.VertexBuffer.Type;
+import com.jme3.util.BufferUtils;
+
+/**
+ * Writes the live particles of a {@link ParticleStore} into a dynamic mesh of
+ * camera facing quads. The buffers grow as needed and are re-used between
+ * frames. Building needs only the camera axes, so may be done (and inspected)
+ * without a renderer.
+ */
+public class ParticleMeshBuilder {
+
+	/**
+	 * Bytes of vertex data (position and colour of four vertices) written per
+	 * particle.
+	 */
+	public final static int BYTES_PER_PARTICLE = 4 * (3 + 4) * 4;
+
+	/**
+	 * Bytes of buffer (including texture coordinates and indices) needed per
+	 * particle of capacity.
+	 */
+	public final static int BYTES_PER_CAPACITY = 4 * (3 + 4 + 2) * 4 + 6 * 4;
+
+	private final Mesh mesh = new Mesh();
+	private FloatBuffer positions;
+	private FloatBuffer colours;
+	private FloatBuffer texCoords;
+	private IntBuffer indices;
+	private int capacity;
+	private int quads;
+	private int countedQuads = -1;
+	private boolean transformed;
+	private float alpha = 1;
+	private float tx, ty, tz, scale = 1;
+	private float m00 = 1, m01, m02, m10, m11 = 1, m12, m20, m21, m22 = 1;
+	private final Matrix3f tmpMatrix = new Matrix3f();
+
+	public ParticleMeshBuilder() {
+		mesh.setMode(Mesh.Mode.Triangles);
+		ensureCapacity(16);
+	}
+
+	public Mesh getMesh() {
+		return mesh;
+	}
+
+	/**
+	 * Get the number of particles written by the last build.
+	 *
+	 * @return quads
+	 */
+	public int getQuads() {
+		return quads;
+	}
+
+	/**
+	 * Get the number of bytes of vertex data written by the last build.
+	 *
+	 * @return bytes
+	 */
+	public int getVertexBytes() {
+		return quads * BYTES_PER_PARTICLE;
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Estimate the direct memory used by the buffers.
+	 *
+	 * @return bytes
+	 */
+	public long getMemoryUsage() {
+		return capacity * (long) BYTES_PER_CAPACITY;
+	}
+
+	/**
+	 * Set the transform applied to the particles added after this, e.g. when
+	 * particles from local space scripts are batched together in world space.
+	 * Scale is assumed to be uniform.
+	 *
+	 * @param transform transform or <code>null</code> for none
+	 */
+	public void setTransform(Transform transform) {
+		transformed = transform != null && !transform.equals(Transform.IDENTITY);
+		if (transformed) {
+			transform.getRotation().toRotationMatrix(tmpMatrix);
+			m00 = tmpMatrix.get(0, 0);
+			m01 = tmpMatrix.get(0, 1);
+			m02 = tmpMatrix.get(0, 2);
+			m10 = tmpMatrix.get(1, 0);
+			m11 = tmpMatrix.get(1, 1);
+			m12 = tmpMatrix.get(1, 2);
+			m20 = tmpMatrix.get(2, 0);
+			m21 = tmpMatrix.get(2, 1);
+			m22 = tmpMatrix.get(2, 2);
+			tx = transform.getTranslation().x;
+			ty = transform.getTranslation().y;
+			tz = transform.getTranslation().z;
+			scale = transform.getScale().x;
+		}
+	}
+
+	/**
+	 * Set how far between their last and current positions particles from
+	 * interpolated stores (see {@link ParticleStore#setInterpolated(boolean)})
+	 * added after this are placed.
+	 *
+	 * @param alpha fraction of a step, 1 for the current positions
+	 */
+	public void setInterpolation(float alpha) {
+		this.alpha = alpha;
+	}
+
+	/**
+	 * Start a new build.
+	 */
+	public void begin() {
+		quads = 0;
+		transformed = false;
+		alpha = 1;
+		positions.clear();
+		colours.clear();
+	}
+
+	/**
+	 * Append the live particles of a store, oriented to the given camera axes.
+	 *
+	 * @param s store
+	 * @param rx camera right x
+	 * @param ry camera right y
+	 * @param rz camera right z
+	 * @param ux camera up x
+	 * @param uy camera up y
+	 * @param uz camera up z
+	 */
+	public void add(ParticleStore s, float rx, float ry, float rz, float ux, float uy, float uz) {
+		final int end = s.getEnd();
+		ensureCapacity(quads + s.getActiveCount());
+		final float[] life = s.life;
+		for (int i = 0; i < end; i++) {
+			if (life[i] > 0) {
+				addParticle(s, i, rx, ry, rz, ux, uy, uz);
+			}
+		}
+	}
+
+	/**
+	 * Append a single particle. {@link #ensureCapacity(int)} must have been
+	 * called for it.
+	 *
+	 * @param s store
+	 * @param i slot
+	 * @param rx camera right x
+	 * @param ry camera right y
+	 * @param rz camera right z
+	 * @param ux camera up x
+	 * @param uy camera up y
+	 * @param uz camera up z
+	 */
+	public void addParticle(ParticleStore s, int i, float rx, float ry, float rz, float ux, float uy, float uz) {
+		if (alpha < 1 && s.lx != null) {
+			float lx = s.lx[i], ly = s.ly[i], lz = s.lz[i];
+			quad(lx + (s.px[i] - lx) * alpha, ly + (s.py[i] - ly) * alpha, lz + (s.pz[i] - lz) * alpha, s.width[i],
+					s.height[i], s.rotation[i], s.r[i], s.g[i], s.b[i], s.a[i], rx, ry, rz, ux, uy, uz);
+			return;
+		}
+		quad(s.px[i], s.py[i], s.pz[i], s.width[i], s.height[i], s.rotation[i], s.r[i], s.g[i], s.b[i], s.a[i], rx, ry,
+				rz, ux, uy, uz);
+	}
+
+	/**
+	 * Append particles of a store in the given order (e.g. as sorted by a
+	 * {@link DepthSorter}).
+	 *
+	 * @param s store
+	 * @param order slots
+	 * @param count number of slots in order
+	 * @param rx camera right x
+	 * @param ry camera right y
+	 * @param rz camera right z
+	 * @param ux camera up x
+	 * @param uy camera up y
+	 * @param uz camera up z
+	 */
+	public void add(ParticleStore s, int[] order, int count, float rx, float ry, float rz, float ux, float uy,
+			float uz) {
+		ensureCapacity(quads + count);
+		for (int k = 0; k < count; k++) {
+			addParticle(s, order[k], rx, ry, rz, ux, uy, uz);
+		}
+	}
+
+	/**
+	 * Append particles of a frame in the given order.
+	 *
+	 * @param f frame
+	 * @param order indices
+	 * @param count number of indices in order
+	 * @param rx camera right x
+	 * @param ry camera right y
+	 * @param rz camera right z
+	 * @param ux camera up x
+	 * @param uy camera up y
+	 * @param uz camera up z
+	 */
+	public void add(ParticleFrame f, int[] order, int count, float rx, float ry, float rz, float ux, float uy,
+			float uz) {
+		ensureCapacity(quads + count);
+		for (int k = 0; k < count; k++) {
+			int i = order[k];
+			quad(f.px[i], f.py[i], f.pz[i], f.width[i], f.height[i], f.rotation[i], f.r[i], f.g[i], f.b[i], f.a[i], rx,
+					ry, rz, ux, uy, uz);
+		}
+	}
+
+	/**
+	 * Append all particles of a frame, oriented to the given camera axes.
+	 *
+	 * @param f frame
+	 * @param rx camera right x
+	 * @param ry camera right y
+	 * @param rz camera right z
+	 * @param ux camera up x
+	 * @param uy camera up y
+	 * @param uz camera up z
+	 */
+	public void add(ParticleFrame f, float rx, float ry, float rz, float ux, float uy, float uz) {
+		final int count = f.getCount();
+		ensureCapacity(quads + count);
+		for (int i = 0; i < count; i++) {
+			quad(f.px[i], f.py[i], f.pz[i], f.width[i], f.height[i], f.rotation[i], f.r[i], f.g[i], f.b[i], f.a[i], rx,
+					ry, rz, ux, uy, uz);
+		}
+	}
+
+	private void quad(float x, float y, float z, float w, float h, float rot, float r, float g, float b, float a,
+			float rx, float ry, float rz, float ux, float uy, float uz) {
+		if (transformed) {
+			float wx = (m00 * x + m01 * y + m02 * z) * scale + tx;
+			float wy = (m10 * x + m11 * y + m12 * z) * scale + ty;
+			float wz = (m20 * x + m21 * y + m22 * z) * scale + tz;
+			x = wx;
+			y = wy;
+			z = wz;
+			w *= scale;
+			h *= scale;
+		}
+		float hw = w * 0.5f, hh = h * 0.5f;
+		float ax = rx, ay = ry, az = rz;
+		float bx = ux, by = uy, bz = uz;
+		if (rot != 0) {
+			float c = FastMath.cos(rot), sn = FastMath.sin(rot);
+			ax = rx * c + ux * sn;
+			ay = ry * c + uy * sn;
+			az = rz * c + uz * sn;
+			bx = ux * c - rx * sn;
+			by = uy * c - ry * sn;
+			bz = uz * c - rz * sn;
+		}
+		ax *= hw;
+		ay *= hw;
+		az *= hw;
+		bx *= hh;
+		by *= hh;
+		bz *= hh;
+		positions.put(x - ax - bx).put(y - ay - by).put(z - az - bz);
+		positions.put(x + ax - bx).put(y + ay - by).put(z + az - bz);
+		positions.put(x + ax + bx).put(y + ay + by).put(z + az + bz);
+		positions.put(x - ax + bx).put(y - ay + by).put(z - az + bz);
+		for (int v = 0; v < 4; v++) {
+			colours.put(r).put(g).put(b).put(a);
+		}
+		quads++;
+	}
+
+	/**
+	 * Finish the build, flagging the buffers as changed. The bounds of the mesh
+	 * are not updated, this is left to the owner of the mesh (e.g. using
+	 * <code>Geometry.updateModelBound()</code>).
+	 */
+	public void end() {
+		positions.flip();
+		colours.flip();
+		texCoords.limit(quads * 8);
+		indices.limit(quads * 6);
+		mesh.getBuffer(Type.Position).updateData(positions);
+		mesh.getBuffer(Type.Color).updateData(colours);
+		mesh.getBuffer(Type.TexCoord).updateData(texCoords);
+		mesh.getBuffer(Type.Index).updateData(indices);
+		// Counting allocates, and the counts only change with the quads
+		if (quads != countedQuads) {
+			mesh.updateCounts();
+			countedQuads = quads;
+		}
+	}
+
+	/**
+	 * Make sure there is room for at least the given number of particles. Any
+	 * particles already added in the current build are kept.
+	 *
+	 * @param required particles
+	 */
+	public void ensureCapacity(int required) {
+		if (required <= capacity) {
+			return;
+		}
+		int newCapacity = Math.max(required, capacity * 2);
+
+		FloatBuffer newPositions = BufferUtils.createFloatBuffer(newCapacity * 4 * 3);
+		FloatBuffer newColours = BufferUtils.createFloatBuffer(newCapacity * 4 * 4);
+		if (positions != null) {
+			positions.flip();
+			colours.flip();
+			newPositions.put(positions);
+			newColours.put(colours);
+		}
+		positions = newPositions;
+		colours = newColours;
+
+		// Texture coordinates and indices are the same for every quad
+		texCoords = BufferUtils.createFloatBuffer(newCapacity * 4 * 2);
+		indices = BufferUtils.createIntBuffer(newCapacity * 6);
+		for (int q = 0; q < newCapacity; q++) {
+			texCoords.put(0).put(0).put(1).put(0).put(1).put(1).put(0).put(1);
+			int v = q * 4;
+			indices.put(v).put(v + 1).put(v + 2).put(v + 2).put(v + 3).put(v);
+		}
+		texCoords.flip();
+		indices.flip();
+
+		mesh.clearBuffer(Type.Position);
+		mesh.clearBuffer(Type.Color);
+		mesh.clearBuffer(Type.TexCoord);
+		mesh.clearBuffer(Type.Index);
+		mesh.setBuffer(Type.Position, 3, newPositions);
+		mesh.setBuffer(Type.Color, 4, newColours);
+		mesh.setBuffer(Type.TexCoord, 2, texCoords);
+		mesh.setBuffer(Type.Index, 3, indices);
+		mesh.getBuffer(Type.Position).setUsage(VertexBuffer.Usage.Stream);
+		mesh.getBuffer(Type.Color).setUsage(VertexBuffer.Usage.Stream);
+		capacity = newCapacity;
+		countedQuads = -1;
+	}
+}
@@ -0,0 +1,92 @@
+package org.iceparticles.sim;
+
+/**
+ * A small, fast random number generator (SplitMix64) for kernels. Unlike
+ * {@link java.util.Random} it is not synchronized and allocates nothing, and
+ * independent streams can be derived from a single seed, so each emitter and
+ * affector of a script gets its own repeatable sequence. Not thread safe.
+ */
+public class ParticleRandom {
+
+	private final static long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+
+	private long state;
+
+	public ParticleRandom(long seed) {
+		this.state = seed;
+	}
+
+	/**
+	 * Create the generator for one of the streams of a seed. The same seed and
+	 * stream always give the same sequence.
+	 *
+	 * @param seed seed
+	 * @param stream stream
+	 * @return generator
+	 */
+	public static ParticleRandom stream(long seed, int stream) {
+		return new ParticleRandom(mix(seed + mix((stream + 1) * GOLDEN_GAMMA)));
+	}
+
+	/**
+	 * Get a seed derived from a name, e.g. of a script, used when no seed is
+	 * given.
+	 *
+	 * @param name name
+	 * @return seed
+	 */
+	public static long seedFor(String name) {
+		return mix(name == null ? 0 : name.hashCode());
+	}
+
+	/**
+	 * Get the seed a script is actually run with, so that it looks the same
+	 * every time it is run, whether or not a seed was set. Everything that
+	 * runs a script (the viewer, headless simulation and baking) must use
+	 * this, so that they all give the same particles.
+	 *
+	 * @param name name of the script
+	 * @param seed seed set for the script, or zero if none
+	 * @return seed
+	 */
+	public static long seedFor(String name, long seed) {
+		return seed == 0 ? seedFor(name) : seed;
+	}
+
+	public void setSeed(long seed) {
+		this.state = seed;
+	}
+
+	public long nextLong() {
+		return mix(state += GOLDEN_GAMMA);
+	}
+
+	public int nextInt() {
+		return (int) (nextLong() >>> 32);
+	}
+
+	/**
+	 * Get a float uniformly distributed between 0 (inclusive) and 1
+	 * (exclusive).
+	 *
+	 * @return float
+	 */
+	public float nextFloat() {
+		return (nextLong() >>> 40) * 0x1.0p-24f;
+	}
+
+	/**
+	 * Derive a new, independent generator from this one.
+	 *
+	 * @return generator
+	 */
+	public ParticleRandom split() {
+		return new ParticleRandom(nextLong());
+	}
+
+	private static long mix(long z) {
+		z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+		z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+		return z ^ (z >>> 31);
+	}
+}
@@ -0,0 +1,289 @@
+package org.iceparticles.sim;
+
+import java.util.Arrays;
+
+/**
+ * Particle storage as a structure of arrays. Each attribute of every particle
+ * is held in its own primitive array, indexed by particle slot, so the update
+ * loops touch contiguous memory and allocate nothing.
+ * <p>
+ * A slot is live while its remaining <code>life</code> is greater than zero.
+ * Slots above {@link #getEnd()} have never been used. Like OGRE particle pools,
+ * the arrays only ever grow.
+ * <p>
+ * By default a killed slot is left where it is and re-used by the next
+ * particle emitted, so bursts of short lived particles leave many dead slots
+ * that every loop must skip. When compacting (see
+ * {@link #setCompacting(boolean)}), the particle in the last slot is instead
+ * moved into the killed slot, so the live particles are always the slots
+ * <code>[0, end)</code>.
+ */
+public class ParticleStore {
+
+	private final static int MIN_CAPACITY = 16;
+
+	public float[] px, py, pz;
+	public float[] vx, vy, vz;
+	public float[] r, g, b, a;
+	public float[] width, height;
+	public float[] rotation, rotationSpeed;
+	public float[] life, totalLife;
+	/**
+	 * Positions before the last step, only kept when interpolated (see
+	 * {@link #setInterpolated(boolean)}), otherwise <code>null</code>.
+	 */
+	public float[] lx, ly, lz;
+
+	private int capacity;
+	private int limit;
+	private int active;
+	private int end;
+	private int[] free;
+	private int freeCount;
+	private boolean compacting;
+
+	public ParticleStore(int limit) {
+		this.limit = Math.max(0, limit);
+		allocateArrays(Math.min(this.limit, MIN_CAPACITY));
+	}
+
+	/**
+	 * Get the maximum number of live particles (i.e. the script quota).
+	 *
+	 * @return limit
+	 */
+	public int getLimit() {
+		return limit;
+	}
+
+	/**
+	 * Set the maximum number of live particles. If there are currently more
+	 * than this, the excess are killed.
+	 *
+	 * @param limit limit
+	 */
+	public void setLimit(int limit) {
+		this.limit = Math.max(0, limit);
+		for (int i = end - 1; i >= 0 && active > this.limit; i--) {
+			if (life[i] > 0) {
+				kill(i);
+			}
+		}
+	}
+
+	public int getActiveCount() {
+		return active;
+	}
+
+	/**
+	 * Get one past the highest slot that may contain a live particle. Update
+	 * loops iterate <code>[0, end)</code>.
+	 *
+	 * @return end
+	 */
+	public int getEnd() {
+		return end;
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	public boolean isInterpolated() {
+		return lx != null;
+	}
+
+	/**
+	 * Set whether the positions before the last step are kept, so rendering
+	 * may interpolate between them and the current positions.
+	 *
+	 * @param interpolated interpolated
+	 */
+	public void setInterpolated(boolean interpolated) {
+		if (interpolated && lx == null) {
+			lx = Arrays.copyOf(px, capacity);
+			ly = Arrays.copyOf(py, capacity);
+			lz = Arrays.copyOf(pz, capacity);
+		} else if (!interpolated) {
+			lx = ly = lz = null;
+		}
+	}
+
+	public boolean isCompacting() {
+		return compacting;
+	}
+
+	/**
+	 * Set whether killing a particle moves the particle in the last slot into
+	 * its place, keeping the live particles contiguous. Particles then change
+	 * slot as others die, so anything that must follow a particle from one
+	 * step to the next cannot rely on its slot. Turning compaction on compacts
+	 * the store straight away.
+	 *
+	 * @param compacting compacting
+	 */
+	public void setCompacting(boolean compacting) {
+		this.compacting = compacting;
+		if (compacting) {
+			compact();
+		}
+	}
+
+	/**
+	 * Move live particles from the top of the store into dead slots below
+	 * them, until the live particles are the slots <code>[0, end)</code>.
+	 */
+	public void compact() {
+		int to = 0;
+		int from = end - 1;
+		while (true) {
+			while (to < end && life[to] > 0) {
+				to++;
+			}
+			while (from > to && life[from] <= 0) {
+				from--;
+			}
+			if (from <= to) {
+				break;
+			}
+			move(from, to);
+			life[from] = 0;
+			from--;
+			to++;
+		}
+		end = active;
+		freeCount = 0;
+	}
+
+	public boolean isAlive(int i) {
+		return life[i] > 0;
+	}
+
+	/**
+	 * Grow the arrays to hold at least the given number of particles (up to the
+	 * limit), so that no allocation happens while they are emitted.
+	 *
+	 * @param required particles
+	 */
+	public void reserve(int required) {
+		required = Math.min(required, limit);
+		if (required > capacity) {
+			allocateArrays(required);
+		}
+	}
+
+	/**
+	 * Reserve a slot for a new particle. All of its attributes must be set by
+	 * the caller.
+	 *
+	 * @return slot or -1 if the limit has been reached
+	 */
+	public int allocate() {
+		if (active >= limit) {
+			return -1;
+		}
+		int slot;
+		if (freeCount > 0) {
+			slot = free[--freeCount];
+		} else {
+			if (end == capacity) {
+				allocateArrays(Math.min(Math.max(MIN_CAPACITY, capacity * 2), Math.max(limit, capacity + 1)));
+			}
+			slot = end++;
+		}
+		active++;
+		return slot;
+	}
+
+	/**
+	 * Kill a particle. When compacting, the particle in the last slot is moved
+	 * into the killed slot, so a loop over the slots that kills must visit the
+	 * slot again (or loop downwards).
+	 *
+	 * @param i slot
+	 */
+	public void kill(int i) {
+		if (compacting) {
+			int last = end - 1;
+			if (i != last) {
+				move(last, i);
+			}
+			life[last] = 0;
+			end = last;
+		} else {
+			life[i] = 0;
+			free[freeCount++] = i;
+		}
+		active--;
+	}
+
+	public void clear() {
+		Arrays.fill(life, 0, end, 0);
+		active = 0;
+		end = 0;
+		freeCount = 0;
+	}
+
+	/**
+	 * Estimate the heap used by the arrays.
+	 *
+	 * @return bytes
+	 */
+	public long getMemoryUsage() {
+		return capacity * 4L * (lx == null ? 17 : 20);
+	}
+
+	private void move(int from, int to) {
+		px[to] = px[from];
+		py[to] = py[from];
+		pz[to] = pz[from];
+		vx[to] = vx[from];
+		vy[to] = vy[from];
+		vz[to] = vz[from];
+		r[to] = r[from];
+		g[to] = g[from];
+		b[to] = b[from];
+		a[to] = a[from];
+		width[to] = width[from];
+		height[to] = height[from];
+		rotation[to] = rotation[from];
+		rotationSpeed[to] = rotationSpeed[from];
+		life[to] = life[from];
+		totalLife[to] = totalLife[from];
+		if (lx != null) {
+			lx[to] = lx[from];
+			ly[to] = ly[from];
+			lz[to] = lz[from];
+		}
+	}
+
+	private void allocateArrays(int newCapacity) {
+		px = grow(px, newCapacity);
+		py = grow(py, newCapacity);
+		pz = grow(pz, newCapacity);
+		vx = grow(vx, newCapacity);
+		vy = grow(vy, newCapacity);
+		vz = grow(vz, newCapacity);
+		r = grow(r, newCapacity);
+		g = grow(g, newCapacity);
+		b = grow(b, newCapacity);
+		a = grow(a, newCapacity);
+		width = grow(width, newCapacity);
+		height = grow(height, newCapacity);
+		rotation = grow(rotation, newCapacity);
+		rotationSpeed = grow(rotationSpeed, newCapacity);
+		life = grow(life, newCapacity);
+		totalLife = grow(totalLife, newCapacity);
+		if (lx != null) {
+			lx = grow(lx, newCapacity);
+			ly = grow(ly, newCapacity);
+			lz = grow(lz, newCapacity);
+		}
+		free = free == null ? new int[newCapacity] : Arrays.copyOf(free, newCapacity);
+		capacity = newCapacity;
+	}
+
+	private static float[] grow(float[] arr, int newCapacity) {
+		return arr == null ? new float[newCapacity] : Arrays.copyOf(arr, newCapacity);
+	}
+}
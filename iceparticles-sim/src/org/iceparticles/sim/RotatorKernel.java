@@ -0,0 +1,47 @@
+package org.iceparticles.sim;
+
+import com.jme3.math.FastMath;
+
+/**
+ * Gives each new particle a random initial rotation and rotation speed within a
+ * range, and rotates every particle by its speed.
+ */
+public class RotatorKernel implements AffectorKernel {
+
+	private final float rotationStart, rotationEnd;
+	private final float speedStart, speedEnd;
+	private final ParticleRandom random;
+
+	/**
+	 * Constructor. Angles are in degrees.
+	 *
+	 * @param rotationStart initial rotation range start
+	 * @param rotationEnd initial rotation range end
+	 * @param speedStart rotation speed range start
+	 * @param speedEnd rotation speed range end
+	 * @param random random
+	 */
+	public RotatorKernel(float rotationStart, float rotationEnd, float speedStart, float speedEnd, ParticleRandom random) {
+		this.rotationStart = rotationStart * FastMath.DEG_TO_RAD;
+		this.rotationEnd = rotationEnd * FastMath.DEG_TO_RAD;
+		this.speedStart = speedStart * FastMath.DEG_TO_RAD;
+		this.speedEnd = speedEnd * FastMath.DEG_TO_RAD;
+		this.random = random;
+	}
+
+	@Override
+	public void initialise(ParticleStore s, int i) {
+		s.rotation[i] = rotationStart + (rotationEnd - rotationStart) * random.nextFloat();
+		s.rotationSpeed[i] = speedStart + (speedEnd - speedStart) * random.nextFloat();
+	}
+
+	@Override
+	public void apply(ParticleStore s, int from, int to, float dt) {
+		final float[] life = s.life, rotation = s.rotation, speed = s.rotationSpeed;
+		for (int i = from; i < to; i++) {
+			if (life[i] > 0) {
+				rotation[i] += speed[i] * dt;
+			}
+		}
+	}
+}
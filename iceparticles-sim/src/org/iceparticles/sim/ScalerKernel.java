@@ -0,0 +1,29 @@
+package org.iceparticles.sim;
+
+/**
+ * Grows (or shrinks) every particle by a fixed amount per second.
+ */
+public class ScalerKernel implements AffectorKernel {
+
+	private final float rate;
+
+	public ScalerKernel(float rate) {
+		this.rate = rate;
+	}
+
+	public float getRate() {
+		return rate;
+	}
+
+	@Override
+	public void apply(ParticleStore s, int from, int to, float dt) {
+		final float[] life = s.life, width = s.width, height = s.height;
+		final float ds = rate * dt;
+		for (int i = from; i < to; i++) {
+			if (life[i] > 0) {
+				width[i] = Math.max(0, width[i] + ds);
+				height[i] = Math.max(0, height[i] + ds);
+			}
+		}
+	}
+}
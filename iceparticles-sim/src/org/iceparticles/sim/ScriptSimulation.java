@@ -0,0 +1,548 @@
+package org.iceparticles.sim;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.icescene.ogreparticle.OGREParticleAffector;
+import org.icescene.ogreparticle.OGREParticleEmitter;
+import org.icescene.ogreparticle.OGREParticleScript;
+
+/**
+ * Simulates an {@link OGREParticleScript} using kernels over a
+ * {@link ParticleStore}, rather than the emitter runtime. Once the store has
+ * grown to the script's quota, stepping allocates nothing.
+ * <p>
+ * Emitters and affectors that cannot be compiled (see
+ * {@link Kernels#isSupported(OGREParticleScript)}) are left out, so such
+ * scripts should be run by the emitter runtime instead.
+ */
+public class ScriptSimulation {
+
+	/**
+	 * The smallest range of slots a parallel affector task is split into.
+	 */
+	public final static int MIN_CHUNK = 2048;
+
+	/**
+	 * The default step used to prewarm simulations.
+	 */
+	public final static float PREWARM_STEP = 0.1f;
+
+	// Affector streams start after those of the emitters
+	private final static int STREAMS_PER_TYPE = 1 << 16;
+
+	private final OGREParticleScript script;
+	private final ParticleStore store;
+	private long seed;
+	private EmitterKernel[] emitters = new EmitterKernel[0];
+	private AffectorKernel[] affectors = new AffectorKernel[0];
+	// The kernel each affector was last compiled to
+	private Map<OGREParticleAffector, AffectorKernel> compiled = new IdentityHashMap<>();
+	private float ox, oy, oz;
+	private float time;
+	private ForkJoinPool pool;
+	private int parallelThreshold;
+	private boolean concurrent;
+	private volatile boolean fused;
+	private volatile boolean generated;
+	// Whether the current chain was prepared fused and generated
+	private boolean chainFused;
+	private boolean chainGenerated;
+	private FusedAffectorChain chain;
+	private AffectorKernel generatedKernel;
+	private volatile boolean compacting;
+	private volatile boolean interpolated;
+	// The kernels actually applied, either the affectors or the generated kernel
+	private AffectorKernel[] applied = affectors;
+	private float emissionScale = 1;
+	private float quotaScale = 1;
+	private ScriptStats stats;
+
+	/**
+	 * Constructor. The random streams are seeded from the name of the script,
+	 * so runs of the same script are repeatable.
+	 *
+	 * @param script script
+	 */
+	public ScriptSimulation(OGREParticleScript script) {
+		this(script, ParticleRandom.seedFor(script.getName()));
+	}
+
+	public ScriptSimulation(OGREParticleScript script, long seed) {
+		this.script = script;
+		this.seed = seed;
+		this.store = new ParticleStore(script.getQuota());
+		compile();
+	}
+
+	public OGREParticleScript getScript() {
+		return script;
+	}
+
+	public ParticleStore getStore() {
+		return store;
+	}
+
+	public float getTime() {
+		return time;
+	}
+
+	public long getSeed() {
+		return seed;
+	}
+
+	/**
+	 * Set the seed the random streams of the emitters and affectors are
+	 * derived from. Each gets its own stream, so the sequence of one does not
+	 * depend on the others. Takes effect when the kernels are next compiled.
+	 *
+	 * @param seed seed
+	 */
+	public void setSeed(long seed) {
+		this.seed = seed;
+	}
+
+	public EmitterKernel[] getEmitters() {
+		return emitters;
+	}
+
+	public AffectorKernel[] getAffectors() {
+		return affectors;
+	}
+
+	public ForkJoinPool getPool() {
+		return pool;
+	}
+
+	public int getParallelThreshold() {
+		return parallelThreshold;
+	}
+
+	public ScriptStats getStats() {
+		return stats;
+	}
+
+	/**
+	 * Set the stats each emitter and affector is timed into, and the particles
+	 * emitted and killed are counted in.
+	 *
+	 * @param stats stats or <code>null</code> for none
+	 */
+	public void setStats(ScriptStats stats) {
+		this.stats = stats;
+		if (stats != null) {
+			stats.setCounting(true);
+			nameTimers();
+		}
+	}
+
+	public float getEmissionScale() {
+		return emissionScale;
+	}
+
+	/**
+	 * Scale the emission rate of every emitter, e.g. for level of detail.
+	 *
+	 * @param emissionScale emission scale
+	 */
+	public void setEmissionScale(float emissionScale) {
+		this.emissionScale = Math.max(0, emissionScale);
+	}
+
+	public float getQuotaScale() {
+		return quotaScale;
+	}
+
+	/**
+	 * Scale the quota of the script, e.g. for level of detail. If there are
+	 * more live particles than the scaled quota, the excess are killed.
+	 *
+	 * @param quotaScale quota scale
+	 */
+	public void setQuotaScale(float quotaScale) {
+		this.quotaScale = Math.max(0, quotaScale);
+		store.setLimit(getEffectiveQuota());
+	}
+
+	/**
+	 * Get the quota after scaling.
+	 *
+	 * @return quota
+	 */
+	public int getEffectiveQuota() {
+		return Math.round(script.getQuota() * quotaScale);
+	}
+
+	/**
+	 * Apply the affector chain in parallel, splitting the particles into chunks
+	 * that are affected on the given pool. The chunks are joined before
+	 * {@link #step(float)} returns. While there are fewer live particles than
+	 * the threshold, or if any affector cannot be run concurrently, the
+	 * affectors are applied on the calling thread.
+	 *
+	 * @param pool pool or <code>null</code> to always apply on the calling
+	 *            thread
+	 * @param threshold minimum number of live particles
+	 */
+	public void setParallel(ForkJoinPool pool, int threshold) {
+		this.pool = pool;
+		this.parallelThreshold = threshold;
+	}
+
+	public boolean isFused() {
+		return fused;
+	}
+
+	/**
+	 * Set whether the affector chain is applied in a single pass over the
+	 * particles (see {@link FusedAffectorChain}), rather than a pass for each
+	 * affector. The result is the same either way. Takes effect at the start
+	 * of the next step, on whichever thread steps the simulation.
+	 *
+	 * @param fused fused
+	 */
+	public void setFused(boolean fused) {
+		this.fused = fused;
+	}
+
+	public boolean isGenerated() {
+		return generated;
+	}
+
+	/**
+	 * Get the kernel generated for the affector chain, as of the last step.
+	 * Only safe to call from the thread that steps the simulation.
+	 *
+	 * @return kernel or <code>null</code> if not generated or the chain could
+	 *         not be generated
+	 */
+	public AffectorKernel getGeneratedKernel() {
+		return generatedKernel;
+	}
+
+	/**
+	 * Set whether a kernel is generated for the affector chain (see
+	 * {@link KernelGenerator}), and applied instead of the chain. It is
+	 * generated again whenever the kernels are compiled. If the chain cannot be
+	 * generated, it is applied as usual. Takes effect at the start of the next
+	 * step, so the kernel is generated on whichever thread steps the
+	 * simulation.
+	 *
+	 * @param generated generated
+	 */
+	public void setGenerated(boolean generated) {
+		this.generated = generated;
+	}
+
+	public boolean isCompacting() {
+		return compacting;
+	}
+
+	/**
+	 * Set whether dead particles are compacted away as they die (see
+	 * {@link ParticleStore#setCompacting(boolean)}), so the update, sort and
+	 * mesh loops only iterate live particles. Takes effect at the start of the
+	 * next step, on whichever thread steps the simulation.
+	 *
+	 * @param compacting compacting
+	 */
+	public void setCompacting(boolean compacting) {
+		this.compacting = compacting;
+	}
+
+	public boolean isInterpolated() {
+		return interpolated;
+	}
+
+	/**
+	 * Set whether the positions before each step are kept (see
+	 * {@link ParticleStore#setInterpolated(boolean)}), so rendering may
+	 * interpolate between steps. Takes effect at the start of the next step,
+	 * on whichever thread steps the simulation.
+	 *
+	 * @param interpolated interpolated
+	 */
+	public void setInterpolated(boolean interpolated) {
+		this.interpolated = interpolated;
+	}
+
+	/**
+	 * (Re)compile the kernels from the current state of the script. Existing
+	 * particles are kept, so this may be called whenever the script is edited.
+	 * Tables precomputed by affector kernels are only computed again if their
+	 * affector changed.
+	 */
+	public void compile() {
+		List<EmitterKernel> e = new ArrayList<EmitterKernel>();
+		int stream = 0;
+		for (OGREParticleEmitter emitter : script.getEmitters()) {
+			EmitterKernel k = Kernels.emitter(emitter, script, ParticleRandom.stream(seed, stream++));
+			if (k != null) {
+				e.add(k);
+			}
+		}
+		List<AffectorKernel> a = new ArrayList<AffectorKernel>();
+		Map<OGREParticleAffector, AffectorKernel> c = new IdentityHashMap<OGREParticleAffector, AffectorKernel>();
+		stream = STREAMS_PER_TYPE;
+		for (OGREParticleAffector affector : script.getAffectors()) {
+			AffectorKernel k = Kernels.affector(affector, ParticleRandom.stream(seed, stream++),
+					compiled.get(affector));
+			if (k != null) {
+				a.add(k);
+				c.put(affector, k);
+			}
+		}
+		compiled = c;
+		emitters = e.toArray(new EmitterKernel[0]);
+		affectors = a.toArray(new AffectorKernel[0]);
+		concurrent = true;
+		for (AffectorKernel k : affectors) {
+			concurrent &= k.isConcurrent();
+		}
+		prepareChain();
+		store.setLimit(getEffectiveQuota());
+	}
+
+	/**
+	 * Set the point new particles are emitted relative to. For world space
+	 * scripts this is the world position of the node the script is attached
+	 * to, for local space scripts it is left at zero.
+	 *
+	 * @param x x
+	 * @param y y
+	 * @param z z
+	 */
+	public void setOrigin(float x, float y, float z) {
+		ox = x;
+		oy = y;
+		oz = z;
+	}
+
+	/**
+	 * Advance the simulation. Particles are aged, expired and moved, then
+	 * affected, then any new particles emitted.
+	 *
+	 * @param dt time step
+	 */
+	public void step(float dt) {
+		final ParticleStore s = store;
+		if (s.isCompacting() != compacting) {
+			s.setCompacting(compacting);
+		}
+		if (s.isInterpolated() != interpolated) {
+			s.setInterpolated(interpolated);
+		}
+		if (chainFused != fused || chainGenerated != generated) {
+			prepareChain();
+		}
+		final float[] life = s.life, px = s.px, py = s.py, pz = s.pz, vx = s.vx, vy = s.vy, vz = s.vz;
+		final float[] lx = s.lx, ly = s.ly, lz = s.lz;
+		final boolean interpolated = lx != null;
+		final boolean compacting = s.isCompacting();
+		int end = s.getEnd();
+		int killed = 0;
+		for (int i = 0; i < end; i++) {
+			if (life[i] > 0) {
+				life[i] -= dt;
+				if (life[i] <= 0) {
+					s.kill(i);
+					killed++;
+					if (compacting) {
+						// The last particle was moved here and is yet to be stepped
+						end = s.getEnd();
+						i--;
+					}
+				} else {
+					if (interpolated) {
+						lx[i] = px[i];
+						ly[i] = py[i];
+						lz[i] = pz[i];
+					}
+					px[i] += vx[i] * dt;
+					py[i] += vy[i] * dt;
+					pz[i] += vz[i] * dt;
+				}
+			}
+		}
+
+		if (stats != null) {
+			stats.countSlots(s.getEnd(), s.getActiveCount());
+		}
+		applyAffectors(dt);
+
+		// Emission is proportional to time, so scaling the time scales the rate
+		final float emitDt = dt * emissionScale;
+		final ScriptStats st = stats;
+		if (st == null) {
+			for (EmitterKernel emitter : emitters) {
+				emitter.emit(s, affectors, ox, oy, oz, emitDt);
+			}
+		} else {
+			final ScriptStats.Timer[] timers = st.getEmitters();
+			int emitted = 0;
+			for (int k = 0; k < emitters.length; k++) {
+				long started = System.nanoTime();
+				emitted += emitters[k].emit(s, affectors, ox, oy, oz, emitDt);
+				timers[k].add(System.nanoTime() - started);
+			}
+			st.count(emitted, killed);
+		}
+		time += dt;
+	}
+
+	/**
+	 * Advance the simulation by as many fixed steps as are due for the elapsed
+	 * time.
+	 *
+	 * @param timestep timestep
+	 * @param dt elapsed time
+	 * @return number of steps taken
+	 */
+	public int advance(FixedTimestep timestep, float dt) {
+		int steps = timestep.advance(dt);
+		for (int i = 0; i < steps; i++) {
+			step(timestep.getStep());
+		}
+		return steps;
+	}
+
+	/**
+	 * Fast forward the simulation, e.g. so long lived effects are at their
+	 * steady state before they are first rendered. The store is grown to the
+	 * quota up front, and affectors are never applied in parallel, so nothing
+	 * is allocated.
+	 *
+	 * @param seconds time to simulate
+	 * @param step coarse step to simulate at
+	 */
+	public void prewarm(float seconds, float step) {
+		if (seconds <= 0 || step <= 0) {
+			return;
+		}
+		store.reserve(getEffectiveQuota());
+		ForkJoinPool p = pool;
+		pool = null;
+		try {
+			int steps = (int) Math.ceil(seconds / step);
+			float dt = seconds / steps;
+			for (int i = 0; i < steps; i++) {
+				step(dt);
+			}
+		} finally {
+			pool = p;
+		}
+	}
+
+	protected void applyAffectors(float dt) {
+		final int end = store.getEnd();
+		final AffectorKernel[] a = applied;
+		final FusedAffectorChain c = chain;
+		ScriptStats.Timer[] timers = timers();
+		if (timers != null && timers.length != a.length) {
+			// The chain changed on another thread, the timers will follow
+			timers = null;
+		}
+		if (pool != null && concurrent && a.length > 0 && store.getActiveCount() >= parallelThreshold
+				&& end > MIN_CHUNK) {
+			int chunk = Math.max(MIN_CHUNK, end / (pool.getParallelism() * 4));
+			pool.invoke(new AffectorTask(a, c, timers, store, 0, end, chunk, dt));
+		} else {
+			apply(a, c, timers, store, 0, end, dt);
+		}
+	}
+
+	private void prepareChain() {
+		chainGenerated = generated;
+		generatedKernel = chainGenerated && affectors.length > 0 ? KernelGenerator.generate(affectors) : null;
+		AffectorKernel[] a = generatedKernel == null ? affectors : new AffectorKernel[] { generatedKernel };
+		chainFused = fused;
+		// A chain of one gains nothing from fusing
+		chain = chainFused && a.length > 1 ? new FusedAffectorChain(a) : null;
+		applied = a;
+		if (stats != null) {
+			nameTimers();
+		}
+	}
+
+	private ScriptStats.Timer[] timers() {
+		return stats == null ? null : stats.getAffectors();
+	}
+
+	private void nameTimers() {
+		String[] names = new String[emitters.length];
+		for (int i = 0; i < names.length; i++) {
+			names[i] = String.format("Emitter %d (%s)", i + 1, emitters[i].getShape());
+		}
+		stats.setEmitters(names);
+		names = new String[applied.length];
+		for (int i = 0; i < names.length; i++) {
+			names[i] = applied[i] == generatedKernel ? String.format("Generated (%d affectors)", affectors.length)
+					: applied[i].getClass().getSimpleName().replace("Kernel", "");
+		}
+		stats.setAffectors(names);
+	}
+
+	/**
+	 * Apply the affector chain to a range of slots, fused if there is a fused
+	 * chain, and timing each affector if there are timers.
+	 */
+	static void apply(AffectorKernel[] affectors, FusedAffectorChain chain, ScriptStats.Timer[] timers,
+			ParticleStore store, int from, int to, float dt) {
+		if (chain != null) {
+			chain.apply(store, from, to, dt, timers);
+		} else if (timers == null) {
+			for (AffectorKernel affector : affectors) {
+				affector.apply(store, from, to, dt);
+			}
+		} else {
+			for (int k = 0; k < affectors.length; k++) {
+				long started = System.nanoTime();
+				affectors[k].apply(store, from, to, dt);
+				timers[k].add(System.nanoTime() - started);
+			}
+		}
+	}
+
+	/**
+	 * Applies the whole affector chain to a range of slots, splitting it in
+	 * half until it is no larger than a chunk.
+	 */
+	@SuppressWarnings("serial")
+	static class AffectorTask extends RecursiveAction {
+		private final AffectorKernel[] affectors;
+		private final FusedAffectorChain chain;
+		private final ScriptStats.Timer[] timers;
+		private final ParticleStore store;
+		private final int from;
+		private final int to;
+		private final int chunk;
+		private final float dt;
+
+		AffectorTask(AffectorKernel[] affectors, FusedAffectorChain chain, ScriptStats.Timer[] timers,
+				ParticleStore store, int from, int to, int chunk, float dt) {
+			this.affectors = affectors;
+			this.chain = chain;
+			this.timers = timers;
+			this.store = store;
+			this.from = from;
+			this.to = to;
+			this.chunk = chunk;
+			this.dt = dt;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from <= chunk) {
+				apply(affectors, chain, timers, store, from, to, dt);
+			} else {
+				int mid = (from + to) >>> 1;
+				invokeAll(new AffectorTask(affectors, chain, timers, store, from, mid, chunk, dt),
+						new AffectorTask(affectors, chain, timers, store, mid, to, chunk, dt));
+			}
+		}
+	}
+}
@@ -0,0 +1,325 @@
+package org.iceparticles.sim;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Timings and counters of a running script, for finding out which part of it
+ * is expensive. Everything is accumulated in {@link LongAdder}s, so may be
+ * added to cheaply from any thread (e.g. by affectors applied to chunks in
+ * parallel), and is only summed when the render thread samples it, usually
+ * once a second.
+ */
+public class ScriptStats {
+
+	/**
+	 * Time spent in one part of a script.
+	 */
+	public static class Timer {
+		private final String name;
+		private final LongAdder nanos = new LongAdder();
+		private long lastNanos;
+		private volatile float millis;
+
+		public Timer(String name) {
+			this.name = name;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public void add(long nanos) {
+			this.nanos.add(nanos);
+		}
+
+		/**
+		 * Get the average time spent per frame between the last two samples.
+		 *
+		 * @return milliseconds
+		 */
+		public float getMillis() {
+			return millis;
+		}
+
+		void sample(long frames) {
+			long n = nanos.sum();
+			millis = frames == 0 ? 0 : (n - lastNanos) / 1000000f / frames;
+			lastNanos = n;
+		}
+	}
+
+	/**
+	 * The number of recent updates percentiles are taken over.
+	 */
+	public final static int RECENT_UPDATES = 256;
+
+	private final static Timer[] NO_TIMERS = new Timer[0];
+
+	private final String name;
+	private final Timer update = new Timer("Update");
+	private volatile Timer[] emitters = NO_TIMERS;
+	private volatile Timer[] affectors = NO_TIMERS;
+	private final LongAdder frames = new LongAdder();
+	private final LongAdder emitted = new LongAdder();
+	private final LongAdder killed = new LongAdder();
+	private final LongAdder vertexBytes = new LongAdder();
+	private final LongAdder allocated = new LongAdder();
+	private final LongAdder slots = new LongAdder();
+	private final LongAdder liveSlots = new LongAdder();
+	private final long[] recent = new long[RECENT_UPDATES];
+	private volatile int recentCount;
+	private volatile int alive;
+	private volatile boolean counting;
+	private volatile boolean trackingAllocations;
+	private long lastSample;
+	private long lastFrames, lastEmitted, lastKilled, lastVertexBytes, lastAllocated, lastSlots, lastLiveSlots;
+	private volatile float emittedPerSecond, killedPerSecond, vertexBytesPerSecond;
+	private volatile float allocatedPerFrame, allocatedPerParticle;
+	private volatile float liveRatio = 1;
+
+	public ScriptStats(String name) {
+		this.name = name;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Get the timer of the whole update of the script.
+	 *
+	 * @return update timer
+	 */
+	public Timer getUpdate() {
+		return update;
+	}
+
+	/**
+	 * Add the time of one whole update of the script.
+	 *
+	 * @param nanos nanoseconds
+	 */
+	public void recordUpdate(long nanos) {
+		update.add(nanos);
+		// Only ever updated by the one thread the script is updated on
+		int n = recentCount;
+		recent[n % RECENT_UPDATES] = nanos;
+		recentCount = n + 1;
+	}
+
+	/**
+	 * Get a percentile of the time of the recent updates (see
+	 * {@link #RECENT_UPDATES}). May be called from any thread.
+	 *
+	 * @param percentile percentile, from 0 to 100
+	 * @return milliseconds
+	 */
+	public float getUpdatePercentile(double percentile) {
+		int n = Math.min(recentCount, RECENT_UPDATES);
+		if (n == 0) {
+			return 0;
+		}
+		long[] sorted = Arrays.copyOf(recent, n);
+		Arrays.sort(sorted);
+		int idx = (int) Math.ceil(Math.max(0, Math.min(100, percentile)) / 100.0 * n) - 1;
+		return sorted[Math.max(0, idx)] / 1000000f;
+	}
+
+	public Timer[] getEmitters() {
+		return emitters;
+	}
+
+	/**
+	 * Set the names of the emitters, creating a timer for each.
+	 *
+	 * @param names names
+	 */
+	public void setEmitters(String... names) {
+		emitters = createTimers(emitters, names);
+	}
+
+	public Timer[] getAffectors() {
+		return affectors;
+	}
+
+	/**
+	 * Set the names of the affectors, creating a timer for each.
+	 *
+	 * @param names names
+	 */
+	public void setAffectors(String... names) {
+		affectors = createTimers(affectors, names);
+	}
+
+	/**
+	 * Get whether particles emitted and killed are counted. The emitter runtime
+	 * does not report them.
+	 *
+	 * @return counting
+	 */
+	public boolean isCounting() {
+		return counting;
+	}
+
+	public void setCounting(boolean counting) {
+		this.counting = counting;
+	}
+
+	/**
+	 * Get whether the bytes allocated by updates are measured (see
+	 * {@link AllocationMeter}). This is a diagnostic mode, as measuring has a
+	 * small cost of its own.
+	 *
+	 * @return tracking allocations
+	 */
+	public boolean isTrackingAllocations() {
+		return trackingAllocations && AllocationMeter.isSupported();
+	}
+
+	public void setTrackingAllocations(boolean trackingAllocations) {
+		this.trackingAllocations = trackingAllocations;
+	}
+
+	/**
+	 * Add bytes allocated by an update of the script.
+	 *
+	 * @param bytes bytes
+	 */
+	public void addAllocated(long bytes) {
+		if (bytes != 0) {
+			allocated.add(bytes);
+		}
+	}
+
+	/**
+	 * Count a frame, the unit timings are averaged over.
+	 */
+	public void frame() {
+		frames.increment();
+	}
+
+	public void count(int emitted, int killed) {
+		if (emitted != 0) {
+			this.emitted.add(emitted);
+		}
+		if (killed != 0) {
+			this.killed.add(killed);
+		}
+	}
+
+	public void addVertexBytes(int bytes) {
+		vertexBytes.add(bytes);
+	}
+
+	/**
+	 * Count the slots the update loops of a step iterate over, and how many of
+	 * them hold live particles.
+	 *
+	 * @param slots slots
+	 * @param live live particles
+	 */
+	public void countSlots(int slots, int live) {
+		this.slots.add(slots);
+		liveSlots.add(live);
+	}
+
+	/**
+	 * Get the proportion of the slots iterated that held live particles
+	 * between the last two samples. The rest are dead slots that were skipped.
+	 *
+	 * @return ratio, from 0 to 1
+	 */
+	public float getLiveRatio() {
+		return liveRatio;
+	}
+
+	public int getAlive() {
+		return alive;
+	}
+
+	public void setAlive(int alive) {
+		this.alive = alive;
+	}
+
+	public float getEmittedPerSecond() {
+		return emittedPerSecond;
+	}
+
+	public float getKilledPerSecond() {
+		return killedPerSecond;
+	}
+
+	public float getVertexBytesPerSecond() {
+		return vertexBytesPerSecond;
+	}
+
+	/**
+	 * Get the average bytes allocated per frame between the last two samples,
+	 * when tracking allocations.
+	 *
+	 * @return bytes
+	 */
+	public float getAllocatedPerFrame() {
+		return allocatedPerFrame;
+	}
+
+	/**
+	 * Get the average bytes allocated per live particle per frame between the
+	 * last two samples, when tracking allocations.
+	 *
+	 * @return bytes
+	 */
+	public float getAllocatedPerParticle() {
+		return allocatedPerParticle;
+	}
+
+	/**
+	 * Sum everything accumulated since the last sample into per frame
+	 * timings and per second rates.
+	 */
+	public void sample() {
+		long now = System.nanoTime();
+		float seconds = lastSample == 0 ? 0 : (now - lastSample) / 1000000000f;
+		lastSample = now;
+
+		long f = frames.sum();
+		long df = f - lastFrames;
+		lastFrames = f;
+		update.sample(df);
+		for (Timer t : emitters) {
+			t.sample(df);
+		}
+		for (Timer t : affectors) {
+			t.sample(df);
+		}
+
+		long e = emitted.sum(), k = killed.sum(), v = vertexBytes.sum();
+		emittedPerSecond = seconds == 0 ? 0 : (e - lastEmitted) / seconds;
+		killedPerSecond = seconds == 0 ? 0 : (k - lastKilled) / seconds;
+		vertexBytesPerSecond = seconds == 0 ? 0 : (v - lastVertexBytes) / seconds;
+		lastEmitted = e;
+		lastKilled = k;
+		lastVertexBytes = v;
+
+		long a = allocated.sum();
+		allocatedPerFrame = df == 0 ? 0 : (a - lastAllocated) / (float) df;
+		allocatedPerParticle = alive == 0 ? 0 : allocatedPerFrame / alive;
+		lastAllocated = a;
+
+		long sl = slots.sum(), l = liveSlots.sum();
+		liveRatio = sl == lastSlots ? 1 : (l - lastLiveSlots) / (float) (sl - lastSlots);
+		lastSlots = sl;
+		lastLiveSlots = l;
+	}
+
+	private static Timer[] createTimers(Timer[] existing, String[] names) {
+		Timer[] timers = new Timer[names.length];
+		for (int i = 0; i < names.length; i++) {
+			// Keep timers that have not changed, so their samples carry on
+			timers[i] = i < existing.length && existing[i].getName().equals(names[i]) ? existing[i]
+					: new Timer(names[i]);
+		}
+		return timers;
+	}
+}
@@ -0,0 +1,333 @@
+package org.iceparticles.sim;
+
+import java.util.Arrays;
+
+/**
+ * A uniform grid of particles used to frustum cull whole cells at a time. The
+ * grid is unbounded, cells being created as particles reach them and held in
+ * an open addressed hash table keyed by cell coordinates. Each cell keeps a
+ * linked list of its particles (through per-slot arrays).
+ * <p>
+ * {@link #update(float[], float[], float[], float[], float[], float[], int)}
+ * is incremental, only particles that have changed cell are moved between
+ * lists. {@link #cull(float[], int)} then tests the bounds of each occupied
+ * cell against the frustum planes, and collects the particles of the visible
+ * ones.
+ */
+public class SpatialGrid {
+
+	private final static int MIN_CELLS = 256;
+	private final static int NONE = -1;
+
+	private final float cellSize;
+	private final float inverseCellSize;
+
+	// Per cell
+	private int[] cellX, cellY, cellZ;
+	private boolean[] used;
+	private int[] head;
+	private int[] size;
+	private int[] occupiedIndex;
+	private boolean[] cellVisible;
+	private int[] occupied;
+	private int occupiedCount;
+	private int usedCount;
+
+	// Per slot
+	private int[] cell = new int[0];
+	private int[] next = new int[0];
+	private int[] prev = new int[0];
+	private int[] visible = new int[0];
+
+	private int end;
+	private int visibleCount;
+	private int cellsVisible;
+	private float margin;
+
+	public SpatialGrid(float cellSize) {
+		if (cellSize <= 0) {
+			throw new IllegalArgumentException("Cell size must be greater than zero.");
+		}
+		this.cellSize = cellSize;
+		this.inverseCellSize = 1f / cellSize;
+		allocateCells(MIN_CELLS);
+	}
+
+	public float getCellSize() {
+		return cellSize;
+	}
+
+	/**
+	 * Get the particles found to be visible by the last cull or filter. Only
+	 * the first {@link #getVisibleCount()} are valid.
+	 *
+	 * @return visible particles
+	 */
+	public int[] getVisible() {
+		return visible;
+	}
+
+	public int getVisibleCount() {
+		return visibleCount;
+	}
+
+	/**
+	 * Get the number of cells that contain particles, i.e. the number tested
+	 * by a cull.
+	 *
+	 * @return occupied cells
+	 */
+	public int getCellsOccupied() {
+		return occupiedCount;
+	}
+
+	/**
+	 * Get the number of cells found to be visible by the last cull.
+	 *
+	 * @return visible cells
+	 */
+	public int getCellsVisible() {
+		return cellsVisible;
+	}
+
+	/**
+	 * Update the grid from the live store.
+	 *
+	 * @param s store
+	 */
+	public void update(ParticleStore s) {
+		update(s.px, s.py, s.pz, s.width, s.height, s.life, s.getEnd());
+	}
+
+	/**
+	 * Update the grid from a frame.
+	 *
+	 * @param f frame
+	 */
+	public void update(ParticleFrame f) {
+		update(f.px, f.py, f.pz, f.width, f.height, null, f.getCount());
+	}
+
+	/**
+	 * Move particles <code>[0, end)</code> into the cells they now occupy.
+	 * Particles without life (if provided), or above the end, are removed.
+	 *
+	 * @param px positions x
+	 * @param py positions y
+	 * @param pz positions z
+	 * @param width particle widths
+	 * @param height particle heights
+	 * @param life remaining life, or <code>null</code> if all are live
+	 * @param end one past the last particle
+	 */
+	public void update(float[] px, float[] py, float[] pz, float[] width, float[] height, float[] life, int end) {
+		ensureCapacity(end);
+		for (int i = end; i < this.end; i++) {
+			if (cell[i] != NONE) {
+				unlink(i);
+			}
+		}
+		this.end = end;
+		float m = 0;
+		for (int i = 0; i < end; i++) {
+			if (life != null && life[i] <= 0) {
+				if (cell[i] != NONE) {
+					unlink(i);
+				}
+				continue;
+			}
+			int cx = (int) Math.floor(px[i] * inverseCellSize);
+			int cy = (int) Math.floor(py[i] * inverseCellSize);
+			int cz = (int) Math.floor(pz[i] * inverseCellSize);
+			int c = cell[i];
+			if (c == NONE || cellX[c] != cx || cellY[c] != cy || cellZ[c] != cz) {
+				if (c != NONE) {
+					unlink(i);
+				}
+				link(i, find(cx, cy, cz));
+			}
+			float half = Math.max(width[i], height[i]) * 0.5f;
+			if (half > m) {
+				m = half;
+			}
+		}
+		margin = m;
+	}
+
+	/**
+	 * Test every occupied cell against the frustum, and collect the particles
+	 * of those at least partly inside. A point is inside a plane when
+	 * <code>normal . point - constant &gt;= 0</code>.
+	 *
+	 * @param planes plane normals and constants, 4 floats per plane
+	 * @param planeCount number of planes
+	 * @return number of visible particles
+	 */
+	public int cull(float[] planes, int planeCount) {
+		visibleCount = 0;
+		cellsVisible = 0;
+		// Cells are loose by the size of the largest particle
+		final float e = cellSize * 0.5f + margin;
+		for (int o = 0; o < occupiedCount; o++) {
+			int c = occupied[o];
+			float cx = (cellX[c] + 0.5f) * cellSize;
+			float cy = (cellY[c] + 0.5f) * cellSize;
+			float cz = (cellZ[c] + 0.5f) * cellSize;
+			boolean inside = true;
+			for (int p = 0; p < planeCount && inside; p++) {
+				int k = p * 4;
+				float nx = planes[k], ny = planes[k + 1], nz = planes[k + 2];
+				float distance = nx * cx + ny * cy + nz * cz - planes[k + 3];
+				float radius = (Math.abs(nx) + Math.abs(ny) + Math.abs(nz)) * e;
+				inside = distance >= -radius;
+			}
+			cellVisible[c] = inside;
+			if (inside) {
+				cellsVisible++;
+				for (int i = head[c]; i != NONE; i = next[i]) {
+					visible[visibleCount++] = i;
+				}
+			}
+		}
+		return visibleCount;
+	}
+
+	/**
+	 * Filter an ordered list of particles (e.g. as sorted by a
+	 * {@link DepthSorter}) down to those in cells found visible by the last
+	 * {@link #cull(float[], int)}, keeping their order.
+	 *
+	 * @param order particles
+	 * @param count number of particles in order
+	 * @return number of visible particles
+	 */
+	public int filter(int[] order, int count) {
+		visibleCount = 0;
+		for (int k = 0; k < count; k++) {
+			int i = order[k];
+			int c = i < end ? cell[i] : NONE;
+			if (c != NONE && cellVisible[c]) {
+				visible[visibleCount++] = i;
+			}
+		}
+		return visibleCount;
+	}
+
+	/**
+	 * Remove all particles and cells from the grid.
+	 */
+	public void clear() {
+		Arrays.fill(cell, NONE);
+		end = 0;
+		allocateCells(MIN_CELLS);
+	}
+
+	private int find(int x, int y, int z) {
+		int mask = used.length - 1;
+		int c = hash(x, y, z) & mask;
+		while (used[c]) {
+			if (cellX[c] == x && cellY[c] == y && cellZ[c] == z) {
+				return c;
+			}
+			c = (c + 1) & mask;
+		}
+		if ((usedCount + 1) * 2 > used.length) {
+			/*
+			 * Cells are never removed individually, so once the table fills
+			 * it is rebuilt with just the occupied cells, growing only if
+			 * those alone would fill it
+			 */
+			rebuild(occupiedCount * 4 > used.length ? used.length * 2 : used.length);
+			return find(x, y, z);
+		}
+		used[c] = true;
+		cellX[c] = x;
+		cellY[c] = y;
+		cellZ[c] = z;
+		head[c] = NONE;
+		size[c] = 0;
+		cellVisible[c] = false;
+		usedCount++;
+		return c;
+	}
+
+	private void rebuild(int capacity) {
+		int[] oldX = cellX, oldY = cellY, oldZ = cellZ, oldHead = head, oldOccupied = occupied;
+		int oldOccupiedCount = occupiedCount;
+		allocateCells(capacity);
+		for (int o = 0; o < oldOccupiedCount; o++) {
+			int old = oldOccupied[o];
+			int c = find(oldX[old], oldY[old], oldZ[old]);
+			for (int i = oldHead[old], n; i != NONE; i = n) {
+				n = next[i];
+				link(i, c);
+			}
+		}
+	}
+
+	private void allocateCells(int capacity) {
+		cellX = new int[capacity];
+		cellY = new int[capacity];
+		cellZ = new int[capacity];
+		used = new boolean[capacity];
+		head = new int[capacity];
+		size = new int[capacity];
+		occupiedIndex = new int[capacity];
+		cellVisible = new boolean[capacity];
+		occupied = new int[capacity];
+		occupiedCount = 0;
+		usedCount = 0;
+	}
+
+	private void link(int i, int c) {
+		if (size[c] == 0) {
+			occupiedIndex[c] = occupiedCount;
+			occupied[occupiedCount++] = c;
+		}
+		cell[i] = c;
+		prev[i] = NONE;
+		next[i] = head[c];
+		if (head[c] != NONE) {
+			prev[head[c]] = i;
+		}
+		head[c] = i;
+		size[c]++;
+	}
+
+	private void unlink(int i) {
+		int c = cell[i];
+		if (prev[i] != NONE) {
+			next[prev[i]] = next[i];
+		} else {
+			head[c] = next[i];
+		}
+		if (next[i] != NONE) {
+			prev[next[i]] = prev[i];
+		}
+		cell[i] = NONE;
+		if (--size[c] == 0) {
+			int o = occupiedIndex[c];
+			int last = occupied[--occupiedCount];
+			occupied[o] = last;
+			occupiedIndex[last] = o;
+		}
+	}
+
+	private static int hash(int x, int y, int z) {
+		int h = x * 73856093 ^ y * 19349663 ^ z * 83492791;
+		return h ^ (h >>> 16);
+	}
+
+	private void ensureCapacity(int required) {
+		if (required <= cell.length) {
+			return;
+		}
+		int oldCapacity = cell.length;
+		int newCapacity = Math.max(required, oldCapacity * 2);
+		cell = Arrays.copyOf(cell, newCapacity);
+		Arrays.fill(cell, oldCapacity, newCapacity, NONE);
+		next = Arrays.copyOf(next, newCapacity);
+		prev = Arrays.copyOf(prev, newCapacity);
+		visible = new int[newCapacity];
+	}
+}
@@ -0,0 +1,67 @@
+package org.iceparticles.sim;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Lock free hand off of objects from a single writer thread to a single reader
+ * thread. The writer fills its back buffer and publishes it, the reader takes
+ * the most recently published buffer. Neither side ever waits for the other,
+ * and neither allocates.
+ *
+ * @param <T> buffer type
+ */
+public class TripleBuffer<T> {
+
+	private final static int INDEX = 0x3;
+	private final static int FRESH = 0x4;
+
+	private final Object[] buffers;
+	private final AtomicInteger middle = new AtomicInteger(1);
+	private int write = 0;
+	private int read = 2;
+
+	public TripleBuffer(T writeBuffer, T middleBuffer, T readBuffer) {
+		buffers = new Object[] { writeBuffer, middleBuffer, readBuffer };
+	}
+
+	/**
+	 * Get the buffer the writer should fill. Only to be called by the writer.
+	 *
+	 * @return write buffer
+	 */
+	@SuppressWarnings("unchecked")
+	public T getWriteBuffer() {
+		return (T) buffers[write];
+	}
+
+	/**
+	 * Make the write buffer available to the reader, and take the previous
+	 * middle buffer as the new write buffer. Only to be called by the writer.
+	 */
+	public void publish() {
+		write = middle.getAndSet(write | FRESH) & INDEX;
+	}
+
+	/**
+	 * Get if a buffer has been published since the reader last acquired.
+	 *
+	 * @return fresh
+	 */
+	public boolean isFresh() {
+		return (middle.get() & FRESH) != 0;
+	}
+
+	/**
+	 * Get the most recently published buffer. The reader owns it until the next
+	 * call. Only to be called by the reader.
+	 *
+	 * @return read buffer
+	 */
+	@SuppressWarnings("unchecked")
+	public T acquire() {
+		if (isFresh()) {
+			read = middle.getAndSet(read) & INDEX;
+		}
+		return (T) buffers[read];
+	}
+}